@@ -44,6 +44,8 @@ val run by tasks.getting(JavaExec::class) {
 tasks {
     test {
         maxHeapSize = "256m"
+        // one-nio sendfile needs the file descriptor of RandomAccessFile
+        jvmArgs("--add-opens", "java.base/java.io=ALL-UNNAMED")
         useJUnitPlatform()
     }
 }
@@ -53,7 +55,7 @@ application {
     mainClassName = "ru.mail.polis.Cluster"
 
     // And limit Xmx
-    applicationDefaultJvmArgs = listOf("-Xmx256m")
+    applicationDefaultJvmArgs = listOf("-Xmx256m", "--add-opens", "java.base/java.io=ALL-UNNAMED")
 }
 
 // Fail on warnings
@@ -0,0 +1,172 @@
+package ru.mail.polis.dao;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.utils.FastIOException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking facade of a {@link DAO} running the calls on a bounded storage executor,
+ * so a slow disk doesn't stall the threads serving the network.
+ * When the queue of the executor is full the returned future fails with {@link RejectedExecutionException}.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class AsyncDAO implements Closeable {
+    private final DAO dao;
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected;
+
+    /**
+     * Creates facade with its own executor.
+     *
+     * @param dao       storage
+     * @param threads   number of storage threads
+     * @param queueSize maximum number of calls waiting for a thread
+     */
+    public AsyncDAO(@NotNull final DAO dao, final int threads, final int queueSize) {
+        this.dao = dao;
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("storage-%d").setDaemon(true).build());
+        this.rejected = dao.metrics().counter("dao_async_rejected_total");
+        dao.metrics().gauge("dao_async_queue_size", () -> executor.getQueue().size());
+        dao.metrics().gauge("dao_async_active_threads", executor::getActiveCount);
+    }
+
+    /**
+     * Creates facade configured with {@code dao.async.threads} and {@code dao.async.queue} system properties.
+     */
+    @NotNull
+    public static AsyncDAO create(@NotNull final DAO dao) {
+        return new AsyncDAO(
+                dao,
+                Integer.getInteger("dao.async.threads", Runtime.getRuntime().availableProcessors() * 2),
+                Integer.getInteger("dao.async.queue", 1024));
+    }
+
+    /**
+     * Obtains the record, the future fails with {@link java.util.NoSuchElementException} if there is no such record.
+     */
+    @NotNull
+    public CompletableFuture<ExtendedRecord> getRecordAsync(@NotNull final ByteBuffer key) {
+        return supply(() -> dao.getRecord(key));
+    }
+
+    /**
+     * Obtains the records as {@link DAO#getRecords(List)} does.
+     */
+    @NotNull
+    public CompletableFuture<List<ExtendedRecord>> getRecordsAsync(@NotNull final List<ByteBuffer> keys) {
+        return supply(() -> dao.getRecords(keys));
+    }
+
+    @NotNull
+    public CompletableFuture<Void> upsertAsync(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        return supply(() -> {
+            dao.upsert(key, value);
+            return null;
+        });
+    }
+
+    @NotNull
+    public CompletableFuture<Void> removeAsync(@NotNull final ByteBuffer key) {
+        return supply(() -> {
+            dao.remove(key);
+            return null;
+        });
+    }
+
+    @NotNull
+    public CompletableFuture<Void> upsertRecordAsync(@NotNull final ByteBuffer key,
+                                                     @NotNull final ExtendedRecord record) {
+        return supply(() -> {
+            dao.upsertRecord(key, record);
+            return null;
+        });
+    }
+
+    @NotNull
+    public CompletableFuture<Void> upsertRecordAsync(@NotNull final ByteBuffer key,
+                                                     @NotNull final ExtendedRecord record,
+                                                     @NotNull final Durability durability) {
+        return supply(() -> {
+            dao.upsertRecord(key, record, durability);
+            return null;
+        });
+    }
+
+    /**
+     * Stores the records as {@link DAO#upsertRecords} does.
+     */
+    @NotNull
+    public CompletableFuture<Void> upsertRecordsAsync(@NotNull final List<ByteBuffer> keys,
+                                                      @NotNull final List<ExtendedRecord> records) {
+        return supply(() -> {
+            dao.upsertRecords(keys, records);
+            return null;
+        });
+    }
+
+    /**
+     * Merges the operand as {@link DAO#merge} does.
+     */
+    @NotNull
+    public CompletableFuture<ExtendedRecord> mergeAsync(@NotNull final ByteBuffer key,
+                                                        @NotNull final MergeOperator operator,
+                                                        @NotNull final ByteBuffer operand) {
+        return supply(() -> dao.merge(key, operator, operand));
+    }
+
+    @NotNull
+    private <T> CompletableFuture<T> supply(@NotNull final Call<T> call) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Stops the executor letting the queued calls complete.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Storage executor hasn't stopped in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FastIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException;
+    }
+}
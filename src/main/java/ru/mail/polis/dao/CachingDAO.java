@@ -0,0 +1,140 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link DAO} keeping recently read and written records in a {@link RecordCache}.
+ * Writes update the cache after the storage, and a record replaces the cached one
+ * only if it is not older, so a concurrent read can't bring a stale record back.
+ * The epoch of the cache is taken before every storage call, so the records read or written
+ * before the cache is cleared by a range removal or an ingestion aren't cached after it.
+ *
+ * @author Pavel Pokatilo
+ */
+final class CachingDAO extends ForwardingDAO {
+    private final RecordCache cache;
+
+    /**
+     * Creates cache in front of the storage.
+     *
+     * @param delegate storage
+     * @param capacity cache size in bytes
+     */
+    CachingDAO(@NotNull final DAO delegate, final long capacity) {
+        super(delegate);
+        this.cache = new RecordCache(capacity, delegate.metrics());
+    }
+
+    @NotNull
+    @Override
+    public ExtendedRecord getRecord(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final ExtendedRecord cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final long epoch = cache.epoch();
+        final ExtendedRecord record = delegate.getRecord(key);
+        cache.fill(key, record, epoch);
+        return record;
+    }
+
+    @NotNull
+    @Override
+    public List<ExtendedRecord> getRecords(@NotNull final List<ByteBuffer> keys) throws IOException {
+        final List<ExtendedRecord> records = new ArrayList<>(keys.size());
+        final List<Integer> missed = new ArrayList<>();
+        final List<ByteBuffer> missedKeys = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            final ExtendedRecord cached = cache.get(keys.get(i));
+            records.add(cached);
+            if (cached == null) {
+                missed.add(i);
+                missedKeys.add(keys.get(i));
+            }
+        }
+        if (missedKeys.isEmpty()) {
+            return records;
+        }
+        final long epoch = cache.epoch();
+        final List<ExtendedRecord> loaded = delegate.getRecords(missedKeys);
+        for (int i = 0; i < missed.size(); i++) {
+            final ExtendedRecord record = loaded.get(i);
+            if (record != null) {
+                cache.fill(missedKeys.get(i), record, epoch);
+                records.set(missed.get(i), record);
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord value) throws IOException {
+        final long epoch = cache.epoch();
+        delegate.upsertRecord(key, value);
+        cache.update(key, value, epoch);
+    }
+
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key,
+                             @NotNull final ExtendedRecord value,
+                             @NotNull final Durability durability) throws IOException {
+        final long epoch = cache.epoch();
+        delegate.upsertRecord(key, value, durability);
+        cache.update(key, value, epoch);
+    }
+
+    @Override
+    public void upsertRecords(@NotNull final List<ByteBuffer> keys,
+                              @NotNull final List<ExtendedRecord> records) throws IOException {
+        final long epoch = cache.epoch();
+        delegate.upsertRecords(keys, records);
+        for (int i = 0; i < keys.size(); i++) {
+            cache.update(keys.get(i), records.get(i), epoch);
+        }
+    }
+
+    /**
+     * Drops the whole cache once the range is removed, as the removal is rare and the range may be huge.
+     */
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from,
+                            @NotNull final ByteBuffer to,
+                            final long timestamp) throws IOException {
+        try {
+            delegate.removeRange(from, to, timestamp);
+        } finally {
+            cache.clear();
+        }
+    }
+
+    @NotNull
+    @Override
+    public ExtendedRecord merge(@NotNull final ByteBuffer key,
+                                @NotNull final MergeOperator operator,
+                                @NotNull final ByteBuffer operand) throws IOException {
+        final long epoch = cache.epoch();
+        final ExtendedRecord merged = delegate.merge(key, operator, operand);
+        cache.update(key, merged, epoch);
+        return merged;
+    }
+
+    /**
+     * Drops the whole cache once the records are stored, as they bypass it.
+     */
+    @Override
+    public long ingest(@NotNull final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records) throws IOException {
+        try {
+            return delegate.ingest(records);
+        } finally {
+            cache.clear();
+        }
+    }
+}
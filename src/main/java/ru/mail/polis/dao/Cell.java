@@ -0,0 +1,43 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Key and {@link ExtendedRecord} pair stored in one of {@link LsmDAO} tables.
+ * Cells with equal keys are ordered from the newest table generation to the oldest one,
+ * so the first cell of a key is always the actual one.
+ *
+ * @author Pavel Pokatilo
+ */
+final class Cell {
+    static final Comparator<Cell> COMPARATOR = Comparator
+            .comparing(Cell::getKey)
+            .thenComparing(Cell::getGeneration, Comparator.reverseOrder());
+
+    private final ByteBuffer key;
+    private final ExtendedRecord record;
+    private final int generation;
+
+    Cell(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord record, final int generation) {
+        this.key = key;
+        this.record = record;
+        this.generation = generation;
+    }
+
+    @NotNull
+    ByteBuffer getKey() {
+        return key;
+    }
+
+    @NotNull
+    ExtendedRecord getRecord() {
+        return record;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+}
@@ -0,0 +1,144 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Write-ahead log of a single {@link MemTable}.
+ * Entries have the same {@code keyLength key recordLength record} layout as {@link SSTable} cells.
+ * The entries are put to the table under the lock of the log, so the table gets the writes of a key
+ * in the order of the log and serves the same value before and after a restart.
+ * The lock is the monitor of the log, a writer holding it reads the tables and appends the entries
+ * it chooses with no other write in between.
+ * The table keeps the key and the record of the written entry, so the caller may reuse its buffers.
+ *
+ * @author Pavel Pokatilo
+ */
+final class CommitLog implements Closeable {
+    private final File file;
+    private final FileChannel channel;
+
+    CommitLog(@NotNull final File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Appends the entry to the log and puts it to the table.
+     * The entry reaches the OS page cache but is not synced, see {@link #sync()}.
+     */
+    void append(@NotNull final ByteBuffer key,
+                @NotNull final ExtendedRecord record,
+                @NotNull final MemTable table) throws IOException {
+        final ByteBuffer entry = ByteBuffer.allocate(entrySize(key, record));
+        putEntry(entry, key, record);
+        write(entry.flip(), table);
+    }
+
+    /**
+     * Appends the entries of the records to the log with a single write and puts them to the table.
+     *
+     * @param records records in the order of the keys
+     */
+    void appendAll(@NotNull final List<ByteBuffer> keys,
+                   @NotNull final List<ExtendedRecord> records,
+                   @NotNull final MemTable table) throws IOException {
+        int size = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            size += entrySize(keys.get(i), records.get(i));
+        }
+        final ByteBuffer entries = ByteBuffer.allocate(size);
+        for (int i = 0; i < keys.size(); i++) {
+            putEntry(entries, keys.get(i), records.get(i));
+        }
+        write(entries.flip(), table);
+    }
+
+    private static int entrySize(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord record) {
+        return Integer.BYTES * 2 + key.remaining() + record.sizeInBytes();
+    }
+
+    private static void putEntry(@NotNull final ByteBuffer entries,
+                                 @NotNull final ByteBuffer key,
+                                 @NotNull final ExtendedRecord record) {
+        entries.putInt(key.remaining())
+                .put(key.duplicate())
+                .putInt(record.sizeInBytes());
+        record.writeTo(entries);
+    }
+
+    private synchronized void write(@NotNull final ByteBuffer entries, @NotNull final MemTable table)
+            throws IOException {
+        while (entries.hasRemaining()) {
+            channel.write(entries);
+        }
+        read(entries.rewind(), table);
+    }
+
+    /**
+     * Syncs the appended entries to disk. The log must not be closed meanwhile.
+     */
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Reads all the complete entries of the log into the table. A torn tail is ignored.
+     */
+    static void replay(@NotNull final File file, @NotNull final MemTable table) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The table keeps slices of the entries, so they are read to the heap rather than mapped
+            final ByteBuffer log = ByteBuffer.allocate((int) channel.size());
+            while (log.hasRemaining() && channel.read(log) >= 0) {
+                // Read until the end of the file
+            }
+            read(log.flip(), table);
+        }
+    }
+
+    /**
+     * Puts the complete entries of the buffer to the table as slices of the buffer.
+     */
+    private static void read(@NotNull final ByteBuffer log, @NotNull final MemTable table) {
+        while (log.remaining() >= Integer.BYTES) {
+            final int keyLength = log.getInt();
+            if (keyLength < 0 || log.remaining() < keyLength + Integer.BYTES) {
+                break;
+            }
+            final ByteBuffer key = slice(log, keyLength);
+            final int recordLength = log.getInt();
+            if (recordLength < 0 || log.remaining() < recordLength) {
+                break;
+            }
+            table.upsert(key, ExtendedRecord.fromBytes(slice(log, recordLength)));
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer log, final int length) {
+        final ByteBuffer slice = log.slice().limit(length);
+        log.position(log.position() + length);
+        return slice.slice();
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
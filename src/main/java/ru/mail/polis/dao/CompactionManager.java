@@ -0,0 +1,264 @@
+package ru.mail.polis.dao;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.RateLimiter;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import ru.mail.polis.utils.FastIOException;
+import ru.mail.polis.utils.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Manual compaction of RocksDB split into key range slices, which runs in background
+ * with the compaction I/O limited by a {@link RateLimiter}.
+ * The slices are bounded by the first byte of the stored keys.
+ *
+ * <p>Between the slices the manager checks the foreground latency reported by the storage:
+ * if more than 1% of the operations took longer than the threshold, i.e. p99 is above it,
+ * the rate is halved and the compaction sleeps. The rate is restored as the latency recovers.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class CompactionManager implements Closeable {
+    private static final Log log = LogFactory.getLog(CompactionManager.class);
+    private static final int KEY_BYTE_VALUES = 256;
+    private static final int MIN_RATE_DIVIDER = 16;
+    private static final long BACKOFF_MILLIS = 1000;
+
+    private final RocksDB db;
+    private final RateLimiter rateLimiter;
+    private final long maxRate;
+    private final int slices;
+    private final long latencyThresholdNanos;
+    private final LongAdder operations = new LongAdder();
+    private final LongAdder slowOperations = new LongAdder();
+    private final LongAdder compactedSlices;
+    private final LongAdder backoffs;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("rocks-compaction-%d").setDaemon(true).build());
+    private volatile long rate;
+    private State state = State.IDLE;
+    private boolean paused;
+    private int slice;
+
+    /**
+     * State of the background compaction.
+     */
+    public enum State {
+        IDLE, RUNNING, PAUSED, BACKING_OFF
+    }
+
+    /**
+     * Creates manager of the opened database.
+     *
+     * @param db                     database
+     * @param rateLimiter            limiter installed into the database options
+     * @param maxRate                rate of the limiter in bytes per second when the latency is fine
+     * @param slices                 number of key ranges compacted one by one
+     * @param latencyThresholdMillis foreground p99 latency above which the compaction backs off
+     * @param metrics                registry for the counters
+     */
+    CompactionManager(@NotNull final RocksDB db,
+                      @NotNull final RateLimiter rateLimiter,
+                      final long maxRate,
+                      final int slices,
+                      final long latencyThresholdMillis,
+                      @NotNull final Metrics metrics) {
+        if (slices < 1 || slices > KEY_BYTE_VALUES) {
+            throw new IllegalArgumentException("Slices must be in [1, 256]: " + slices);
+        }
+        this.db = db;
+        this.rateLimiter = rateLimiter;
+        this.maxRate = maxRate;
+        this.rate = maxRate;
+        this.slices = slices;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.compactedSlices = metrics.counter("dao_compaction_slices_total");
+        this.backoffs = metrics.counter("dao_compaction_backoffs_total");
+        metrics.gauge("dao_compaction_rate_bytes", () -> rate);
+    }
+
+    /**
+     * Reports latency of a foreground operation.
+     */
+    void recordLatency(final long nanos) {
+        operations.increment();
+        if (nanos > latencyThresholdNanos) {
+            slowOperations.increment();
+        }
+    }
+
+    /**
+     * Starts the background compaction of all the slices unless it is already running.
+     *
+     * @return whether the compaction has been started
+     */
+    public synchronized boolean start() {
+        if (state != State.IDLE) {
+            return false;
+        }
+        state = paused ? State.PAUSED : State.RUNNING;
+        slice = 0;
+        executor.execute(this::runInBackground);
+        return true;
+    }
+
+    /**
+     * Pauses the background compaction after the current slice.
+     */
+    public synchronized void pause() {
+        paused = true;
+        if (state == State.RUNNING) {
+            state = State.PAUSED;
+        }
+    }
+
+    public synchronized void resume() {
+        paused = false;
+        if (state == State.PAUSED) {
+            state = State.RUNNING;
+        }
+        notifyAll();
+    }
+
+    @NotNull
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Writes the state of the background compaction as {@code name value} lines.
+     */
+    public synchronized void writeStatusTo(@NotNull final StringBuilder builder) {
+        builder.append("state ").append(state.name().toLowerCase()).append('\n')
+                .append("slice ").append(slice).append('\n')
+                .append("slices ").append(slices).append('\n')
+                .append("rate_bytes ").append(rate).append('\n')
+                .append("max_rate_bytes ").append(maxRate).append('\n');
+    }
+
+    /**
+     * Compacts all the slices in the calling thread without backing off.
+     */
+    void compactAll() throws IOException {
+        for (int i = 0; i < slices; i++) {
+            compactSlice(i);
+        }
+    }
+
+    private void runInBackground() {
+        try {
+            while (true) {
+                final int next = awaitSlice();
+                if (next >= slices) {
+                    break;
+                }
+                if (isOverloaded()) {
+                    backOff();
+                    continue;
+                }
+                restoreRate();
+                compactSlice(next);
+                synchronized (this) {
+                    slice = next + 1;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Exception while compacting", e);
+        } finally {
+            synchronized (this) {
+                state = State.IDLE;
+            }
+            setRate(maxRate);
+        }
+    }
+
+    private synchronized int awaitSlice() throws InterruptedException {
+        while (paused) {
+            state = State.PAUSED;
+            wait();
+        }
+        state = State.RUNNING;
+        return slice;
+    }
+
+    /**
+     * Checks whether foreground p99 latency since the previous check is above the threshold.
+     */
+    private boolean isOverloaded() {
+        final long total = operations.sumThenReset();
+        final long slow = slowOperations.sumThenReset();
+        return slow * 100 > total;
+    }
+
+    private void backOff() throws InterruptedException {
+        backoffs.increment();
+        setRate(Math.max(maxRate / MIN_RATE_DIVIDER, rate / 2));
+        synchronized (this) {
+            state = State.BACKING_OFF;
+        }
+        Thread.sleep(BACKOFF_MILLIS);
+    }
+
+    private void restoreRate() {
+        if (rate < maxRate) {
+            setRate(Math.min(maxRate, rate * 2));
+        }
+    }
+
+    private void setRate(final long newRate) {
+        rate = newRate;
+        rateLimiter.setBytesPerSecond(newRate);
+    }
+
+    private void compactSlice(final int index) throws IOException {
+        try {
+            db.compactRange(bound(index), bound(index + 1));
+        } catch (RocksDBException e) {
+            throw new FastIOException(e);
+        }
+        compactedSlices.increment();
+    }
+
+    /**
+     * Provides the first key of the slice, {@code null} for the beginning or the end of the key space.
+     */
+    @Nullable
+    private byte[] bound(final int index) {
+        if (index == 0 || index == slices) {
+            return null;
+        }
+        return new byte[]{(byte) (index * KEY_BYTE_VALUES / slices)};
+    }
+
+    /**
+     * Stops the background compaction waiting for the current slice.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        synchronized (this) {
+            notifyAll();
+        }
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.error("Compaction hasn't stopped in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FastIOException(e);
+        }
+    }
+}
@@ -19,12 +19,18 @@ package ru.mail.polis.dao;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.Record;
+import ru.mail.polis.utils.Metrics;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 
 /**
  * Storage interface.
@@ -106,5 +112,153 @@ public interface DAO extends Closeable {
     @NotNull
     ExtendedRecord getRecord(@NotNull final ByteBuffer key) throws IOException,NoSuchElementException;
 
+    /**
+     * Obtains {@link ExtendedRecord}s (tombstones included) for the given keys at once.
+     *
+     * @return records in the order of the keys, {@code null} for the keys not found
+     */
+    @NotNull
+    default List<ExtendedRecord> getRecords(@NotNull final List<ByteBuffer> keys) throws IOException {
+        final List<ExtendedRecord> records = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : keys) {
+            try {
+                records.add(getRecord(key));
+            } catch (NoSuchElementException e) {
+                records.add(null);
+            }
+        }
+        return records;
+    }
+
     void upsertRecord(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord value) throws IOException;
+
+    /**
+     * Stores the record with the durability, e.g. without the write-ahead log for cache-like values.
+     * The default implementation ignores the durability.
+     */
+    default void upsertRecord(@NotNull final ByteBuffer key,
+                              @NotNull final ExtendedRecord value,
+                              @NotNull final Durability durability) throws IOException {
+        upsertRecord(key, value);
+    }
+
+    /**
+     * Stores the records of the keys as one write of the storage, the later record of a repeated key wins.
+     * The default implementation stores the records one by one.
+     *
+     * @param keys    keys of the records
+     * @param records records in the order of the keys
+     */
+    default void upsertRecords(@NotNull final List<ByteBuffer> keys,
+                               @NotNull final List<ExtendedRecord> records) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            upsertRecord(keys.get(i), records.get(i));
+        }
+    }
+
+    /**
+     * Removes the values from "from" key (inclusive) to "to" key (exclusive) which aren't newer than the timestamp,
+     * so the later writes of the range still win.
+     * The default implementation writes a tombstone of the timestamp for every such value.
+     */
+    default void removeRange(@NotNull final ByteBuffer from,
+                             @NotNull final ByteBuffer to,
+                             final long timestamp) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        range(from, to).forEachRemaining(record -> keys.add(record.getKey()));
+        final List<ExtendedRecord> records = getRecords(keys);
+        final ExtendedRecord tombstone = new ExtendedRecord(ByteBuffer.allocate(0), timestamp, true);
+        for (int i = 0; i < keys.size(); i++) {
+            final ExtendedRecord record = records.get(i);
+            if (record != null && record.getTimestamp() <= timestamp) {
+                upsertRecord(keys.get(i), tombstone);
+            }
+        }
+    }
+
+    /**
+     * Atomically updates the value with the operand, so concurrent merges of the key never lose an update.
+     * The default implementation serializes all the merges of the storage.
+     *
+     * @return merged record
+     * @throws IllegalArgumentException if the operand is malformed
+     * @throws IllegalStateException    if the stored value can't be merged with the operand
+     */
+    @NotNull
+    default ExtendedRecord merge(@NotNull final ByteBuffer key,
+                                 @NotNull final MergeOperator operator,
+                                 @NotNull final ByteBuffer operand) throws IOException {
+        synchronized (this) {
+            ExtendedRecord stored;
+            try {
+                stored = getRecord(key);
+            } catch (NoSuchElementException e) {
+                stored = null;
+            }
+            final ExtendedRecord merged = operator.apply(stored, operand);
+            upsertRecord(key, merged);
+            return merged;
+        }
+    }
+
+    /**
+     * Stores the records in bulk. A record replaces the stored version of the key only if it is newer,
+     * the same way replicas are merged, so the records must carry their original timestamps.
+     *
+     * @param records records in the <b>ascending</b> order of the keys, see {@link RecordFeed}
+     * @return number of the stored records
+     */
+    default long ingest(@NotNull final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records) throws IOException {
+        long stored = 0;
+        while (records.hasNext()) {
+            final Map.Entry<ByteBuffer, ExtendedRecord> entry = records.next();
+            try {
+                if (getRecord(entry.getKey()).getTimestamp() >= entry.getValue().getTimestamp()) {
+                    continue;
+                }
+            } catch (NoSuchElementException e) {
+                // Absent keys are stored
+            }
+            upsertRecord(entry.getKey(), entry.getValue());
+            stored++;
+        }
+        return stored;
+    }
+
+    /**
+     * Passes every stored key, deleted ones included, to the action in <b>ascending</b> order.
+     * The default implementation walks {@link #iterator(ByteBuffer)}, so it sees live keys only;
+     * the engines override it to report tombstones too.
+     */
+    default void forEachKey(@NotNull final Consumer<ByteBuffer> action) throws IOException {
+        iterator(ByteBuffer.allocate(0)).forEachRemaining(record -> action.accept(record.getKey()));
+    }
+
+    /**
+     * Creates a consistent snapshot of the storage in a new directory next to the storage files.
+     * The files are hard-linked, so the snapshot is cheap. The caller deletes the directory when it is not needed.
+     *
+     * @return snapshot directory
+     * @throws UnsupportedOperationException if the storage doesn't support snapshots
+     */
+    @NotNull
+    default File checkpoint() throws IOException {
+        throw new UnsupportedOperationException("Checkpoints aren't supported");
+    }
+
+    /**
+     * Provides the manager of the background compaction if the storage supports it.
+     */
+    @Nullable
+    default CompactionManager compactionManager() {
+        return null;
+    }
+
+    /**
+     * Provides storage metrics.
+     */
+    @NotNull
+    default Metrics metrics() {
+        return new Metrics();
+    }
 }
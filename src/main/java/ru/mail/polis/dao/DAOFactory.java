@@ -18,6 +18,8 @@ package ru.mail.polis.dao;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -28,6 +30,20 @@ import org.jetbrains.annotations.NotNull;
  */
 public final class DAOFactory {
     static final long MAX_HEAP = 256 * 1024 * 1024;
+    static final String ENGINE_PROPERTY = "dao.engine";
+    /**
+     * Tombstones younger than that are kept so replicas which missed a delete can't resurrect the value.
+     */
+    static final long TOMBSTONE_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(
+            Long.getLong("dao.tombstone.grace.seconds", TimeUnit.DAYS.toSeconds(1)));
+    /**
+     * Size of the {@link RecordCache} in bytes, 0 to disable the cache.
+     */
+    static final String CACHE_PROPERTY = "dao.cache.bytes";
+    /**
+     * Whether lookups of absent keys are answered by {@link FilteringDAO}.
+     */
+    static final String FILTER_PROPERTY = "dao.filter.enabled";
 
     private DAOFactory() {
         // Not instantiatable
@@ -36,8 +52,15 @@ public final class DAOFactory {
     /**
      * Construct a {@link DAO} instance.
      *
+     * <p>The storage engine is chosen with {@code dao.engine} system property:
+     * {@code rocksdb} (default) for {@link DAOImplementation} tuned with {@link StorageConfig#load()}
+     * or {@code lsm} for {@link LsmDAO}.
+     * The engine is wrapped with {@link FilteringDAO} unless {@code dao.filter.enabled} is false
+     * and with {@link CachingDAO} unless {@code dao.cache.bytes} is 0.
+     * The empty folder is filled from a snapshot first if {@code dao.bootstrap.*} is set, see {@link Snapshots}.
+     *
      * @param data local disk folder to persist the data to
-     * @return a storage instance {@link DAOImplementation}
+     * @return a storage instance
      */
     @NotNull
     public static DAO create(@NotNull final File data) throws IOException {
@@ -53,6 +76,32 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new DAOImplementation(data);
+        Snapshots.bootstrap(data);
+        DAO dao = createEngine(data);
+        if (Boolean.parseBoolean(System.getProperty(FILTER_PROPERTY, "true"))) {
+            dao = new FilteringDAO(
+                    dao,
+                    data,
+                    Long.getLong("dao.filter.capacity", 1 << 16),
+                    Double.parseDouble(System.getProperty("dao.filter.fpp", "0.01")));
+        } else {
+            // The snapshot would miss the keys written without the filter
+            Files.deleteIfExists(new File(data, FilteringDAO.SNAPSHOT).toPath());
+        }
+        final long cacheBytes = Long.getLong(CACHE_PROPERTY, Runtime.getRuntime().maxMemory() / 16);
+        return cacheBytes > 0 ? new CachingDAO(dao, cacheBytes) : dao;
+    }
+
+    @NotNull
+    private static DAO createEngine(@NotNull final File data) throws IOException {
+        final String engine = System.getProperty(ENGINE_PROPERTY, "rocksdb");
+        switch (engine) {
+            case "rocksdb":
+                return new DAOImplementation(data, StorageConfig.load());
+            case "lsm":
+                return new LsmDAO(data);
+            default:
+                throw new IllegalArgumentException("Unknown storage engine: " + engine);
+        }
     }
 }
@@ -1,22 +1,51 @@
 package ru.mail.polis.dao;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.BloomFilter;
 import org.rocksdb.BuiltinComparator;
+import org.rocksdb.Cache;
+import org.rocksdb.Checkpoint;
+import org.rocksdb.EnvOptions;
+import org.rocksdb.IngestExternalFileOptions;
+import org.rocksdb.LRUCache;
 import org.rocksdb.Options;
+import org.rocksdb.RateLimiter;
+import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
+import org.rocksdb.SstFileWriter;
+import org.rocksdb.Statistics;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
 import ru.mail.polis.Record;
 import ru.mail.polis.utils.FastIOException;
 import ru.mail.polis.utils.FastNoSuchElementException;
+import ru.mail.polis.utils.Metrics;
 import ru.mail.polis.utils.RocksByteBufferUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Custom DAO storage implementation class.
@@ -26,8 +55,35 @@ import java.util.NoSuchElementException;
  */
 public class DAOImplementation implements DAO {
     private static final Log log = LogFactory.getLog(DAOImplementation.class);
+    private static final int SWEEP_BATCH = 1024;
+    private static final String INGEST_DIRECTORY = "ingest";
+    private static final int INGEST_BATCH = 1024;
+    private static final long INGEST_FILE_SIZE = 64L * 1024 * 1024;
     private final File data;
+    private final StorageConfig config;
+    private final Metrics metrics = new Metrics();
+    private final LongAdder collectedTombstones = metrics.counter("dao_tombstones_collected_total");
+    private final LongAdder expiredRecords = metrics.counter("dao_records_expired_total");
+    private final LongAdder migratedRecords = metrics.counter("dao_records_migrated_total");
+    private final LongAdder relocatedValues = metrics.counter("dao_vlog_values_relocated_total");
+    private final LongAdder rangeRemovedRecords = metrics.counter("dao_records_range_removed_total");
+    private final Map<Durability, LongAdder> writes = new EnumMap<>(Durability.class);
+    private final Map<Durability, LongAdder> writeNanos = new EnumMap<>(Durability.class);
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("rocks-maintenance-%d").setDaemon(true).build());
     private RocksDB db;
+    private Options options;
+    private GroupCommitWriter writer;
+    private ValueLog valueLog;
+    private RangeTombstones rangeTombstones;
+    private RateLimiter rateLimiter;
+    private Statistics statistics;
+    private Cache blockCache;
+    private BloomFilter bloomFilter;
+    private RocksMetrics rocksMetrics;
+    private CompactionManager compactionManager;
+    private int prefixLength;
+    private long readaheadSize;
 
     /**
      * Constructor overwritten from interface.
@@ -35,28 +91,174 @@ public class DAOImplementation implements DAO {
      * @param data File for creating LSM storage
      */
     public DAOImplementation(@NotNull final File data) {
+        this(data, StorageConfig.load());
+    }
+
+    /**
+     * Creates storage tuned with the config.
+     *
+     * @param data   File for creating LSM storage
+     * @param config tuning of RocksDB
+     */
+    public DAOImplementation(@NotNull final File data, @NotNull final StorageConfig config) {
         this.data = data;
+        this.config = config;
 
         try {
             initialize();
-        } catch (RocksDBException e) {
+        } catch (RocksDBException | IOException e) {
             log.error("Exception while initializing RocksDB", e);
         }
     }
 
-    private void initialize() throws RocksDBException {
+    private void initialize() throws RocksDBException, IOException {
         RocksDB.loadLibrary();
-        final Options options = new Options()
+        prefixLength = Integer.getInteger("dao.prefix.length", 0);
+        readaheadSize = config.getReadaheadSize();
+        final long compactionRate = Long.getLong("dao.compaction.rate.bytes", 64L * 1024 * 1024);
+        rateLimiter = new RateLimiter(compactionRate);
+        statistics = new Statistics();
+        options = new Options()
+                .setStatistics(statistics)
                 .setCreateIfMissing(true)
-                .setComparator(BuiltinComparator.BYTEWISE_COMPARATOR);
+                .setComparator(BuiltinComparator.BYTEWISE_COMPARATOR)
+                .setRateLimiter(rateLimiter);
+        blockCache = new LRUCache(config.getBlockCacheBytes());
+        bloomFilter = config.getBloomBits() > 0 ? new BloomFilter(config.getBloomBits(), false) : null;
+        config.applyTo(options, blockCache, bloomFilter);
+        if (prefixLength > 0) {
+            options.useFixedLengthPrefixExtractor(prefixLength);
+        }
         db = RocksDB.open(options, data.getAbsolutePath());
+        rocksMetrics = new RocksMetrics(db, statistics);
+        rocksMetrics.registerTo(metrics);
+        final boolean sync = Boolean.getBoolean("dao.commit.sync");
+        writer = new GroupCommitWriter(
+                db,
+                Long.getLong("dao.commit.window.micros", 0L),
+                sync ? Durability.SYNC : Durability.ASYNC,
+                Integer.getInteger("dao.commit.batch", 1024));
+        for (final Durability durability : Durability.values()) {
+            final String label = "{durability=\"" + durability.getName() + "\"}";
+            writes.put(durability, metrics.counter("dao_writes_total" + label));
+            final LongAdder nanos = new LongAdder();
+            writeNanos.put(durability, nanos);
+            metrics.counter("dao_write_seconds_total" + label, () -> nanos.sum() / 1e9);
+        }
+        valueLog = ValueLog.open(data, sync);
+        rangeTombstones = RangeTombstones.open(data);
+        metrics.gauge("dao_range_tombstones", () -> rangeTombstones.size());
+        compactionManager = new CompactionManager(
+                db,
+                rateLimiter,
+                compactionRate,
+                Integer.getInteger("dao.compaction.slices", 16),
+                Long.getLong("dao.compaction.latency.threshold.millis", 20L),
+                metrics);
+        final long sweepPeriod = Long.getLong("dao.tombstone.sweep.seconds", TimeUnit.HOURS.toSeconds(1));
+        maintenance.scheduleWithFixedDelay(this::runSweep, sweepPeriod, sweepPeriod, TimeUnit.SECONDS);
+    }
+
+    private void runSweep() {
+        try {
+            sweep();
+        } catch (IOException e) {
+            log.error("Exception while sweeping records", e);
+        }
+    }
+
+    void sweep() throws IOException {
+        sweep(false);
+    }
+
+    /**
+     * Deletes tombstones older than the grace period and the records of the removed ranges,
+     * replaces the younger expired records with tombstones and rewrites records of the legacy format.
+     * RocksJava can't run a compaction filter written in Java, so this pass drops the expired values instead.
+     * A record is changed only if the key hasn't been written since it was read.
+     *
+     * @param collectValues whether live values are moved to a new value log file and the older files are deleted
+     */
+    private void sweep(final boolean collectValues) throws IOException {
+        final long deadline = System.currentTimeMillis() - DAOFactory.TOMBSTONE_GRACE_MILLIS;
+        final int firstLiveValues = collectValues ? valueLog.roll() : 0;
+        final Replacements tombstones = new Replacements(collectedTombstones);
+        final Replacements expired = new Replacements(expiredRecords);
+        final Replacements legacy = new Replacements(migratedRecords);
+        final Replacements relocated = new Replacements(relocatedValues);
+        final Replacements rangeRemoved = new Replacements(rangeRemovedRecords);
+        boolean completed = true;
+        try (RocksIterator iterator = db.newIterator()) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    completed = false;
+                    break;
+                }
+                final byte[] value = iterator.value();
+                final ExtendedRecord record = ExtendedRecord.fromBytes(value);
+                if (rangeTombstones.shadows(iterator.key(), record.getTimestamp())) {
+                    rangeRemoved.add(iterator.key(), value, null);
+                } else if (record.isDeleted() && record.getTimestamp() < deadline) {
+                    tombstones.add(iterator.key(), value, null);
+                } else if (record.isExpired()) {
+                    expired.add(iterator.key(), value, record.toTombstone().toBytes());
+                } else if (ExtendedRecord.isLegacy(value)) {
+                    legacy.add(iterator.key(), value, record.toBytes());
+                } else if (collectValues) {
+                    final ExtendedRecord moved = valueLog.relocate(record, firstLiveValues);
+                    if (moved != null) {
+                        relocated.add(iterator.key(), value, moved.toBytes());
+                    }
+                }
+            }
+        }
+        tombstones.commit();
+        expired.commit();
+        legacy.commit();
+        relocated.commit();
+        rangeRemoved.commit();
+        if (completed) {
+            // The records the old removals hide are deleted by now
+            rangeTombstones.collect(deadline);
+        }
+        if (completed && collectValues) {
+            valueLog.deleteBefore(firstLiveValues);
+        }
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final ByteBuffer tempFrom = RocksByteBufferUtils.toUnsignedByteArray(from);
-        return RocksRecordIter.getIter(db.newIterator(), tempFrom);
+        return range(from, null);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        final byte[] tempFrom = RocksByteBufferUtils.toUnsignedByteArray(from);
+        final byte[] tempTo = to == null ? null : RocksByteBufferUtils.toUnsignedByteArray(to);
+        final ReadOptions readOptions = new ReadOptions().setReadaheadSize(readaheadSize);
+        if (prefixLength > 0) {
+            if (samePrefix(tempFrom, tempTo)) {
+                readOptions.setPrefixSameAsStart(true);
+            } else {
+                readOptions.setTotalOrderSeek(true);
+            }
+        }
+        return RocksRecordIter.getIter(db, readOptions, tempFrom, tempTo, valueLog, rangeTombstones);
+    }
+
+    /**
+     * Checks whether all the keys of the range share the prefix of the prefix extractor.
+     */
+    private boolean samePrefix(@NotNull final byte[] from, @Nullable final byte[] to) {
+        return to != null
+                && from.length >= prefixLength
+                && to.length >= prefixLength
+                && Arrays.equals(from, 0, prefixLength, to, 0, prefixLength);
     }
 
     @NotNull
@@ -81,44 +283,373 @@ public class DAOImplementation implements DAO {
 
     @Override
     public void compact() throws IOException {
+        sweep(true);
+        compactionManager.compactAll();
+    }
+
+    @NotNull
+    @Override
+    public File checkpoint() throws IOException {
+        final File directory = Snapshots.newDirectory(data);
         try {
-            db.compactRange();
-        } catch (RocksDBException e) {
-            throw new FastIOException(e);
+            valueLog.checkpoint(directory, () -> {
+                try (Checkpoint checkpoint = Checkpoint.create(db)) {
+                    checkpoint.createCheckpoint(directory.getAbsolutePath());
+                } catch (RocksDBException e) {
+                    throw new FastIOException(e);
+                }
+                rangeTombstones.checkpoint(directory);
+            });
+        } catch (IOException | RuntimeException e) {
+            // The links of a partial checkpoint would keep the files forever
+            Snapshots.discard(directory);
+            throw e;
         }
+        return directory;
+    }
+
+    @NotNull
+    @Override
+    public CompactionManager compactionManager() {
+        return compactionManager;
     }
 
     @NotNull
     @Override
     public ExtendedRecord getRecord(@NotNull ByteBuffer key) throws IOException, NoSuchElementException {
-        final ByteBuffer tempKey = RocksByteBufferUtils.toUnsignedByteArray(key);
+        final byte[] tempKey = RocksByteBufferUtils.toUnsignedKeyBuffer(key);
+        final long start = System.nanoTime();
         byte[] res;
         try {
-            res = db.get(RocksByteBufferUtils.copyByteBuffer(tempKey));
+            res = db.get(tempKey, 0, key.remaining());
         } catch (RocksDBException e) {
             throw new FastIOException(e);
+        } finally {
+            compactionManager.recordLatency(System.nanoTime() - start);
         }
-        if (res == null) {
+        final ExtendedRecord record = rangeTombstones.shadow(
+                tempKey, key.remaining(), res == null ? null : ExtendedRecord.fromBytes(res));
+        if (record == null) {
             throw new FastNoSuchElementException();
         }
+        return valueLog.resolve(record);
+    }
 
-        return ExtendedRecord.fromBytes(res);
+    @NotNull
+    @Override
+    public List<ExtendedRecord> getRecords(@NotNull final List<ByteBuffer> keys) throws IOException {
+        final List<byte[]> tempKeys = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : keys) {
+            tempKeys.add(RocksByteBufferUtils.toUnsignedByteArray(key));
+        }
+        final List<byte[]> values;
+        try {
+            values = db.multiGetAsList(tempKeys);
+        } catch (RocksDBException e) {
+            throw new FastIOException(e);
+        }
+        final List<ExtendedRecord> records = new ArrayList<>(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            final byte[] value = values.get(i);
+            final byte[] key = tempKeys.get(i);
+            final ExtendedRecord record = rangeTombstones.shadow(
+                    key, key.length, value == null ? null : ExtendedRecord.fromBytes(value));
+            records.add(record == null ? null : valueLog.resolve(record));
+        }
+        return records;
     }
 
     @Override
     public void upsertRecord(@NotNull ByteBuffer key, @NotNull ExtendedRecord value) throws IOException {
-        final ByteBuffer tempKey = RocksByteBufferUtils.toUnsignedByteArray(key);
+        upsertRecord(key, value, writer.getDefaultDurability());
+    }
+
+    /**
+     * Stores the record with {@code WriteOptions} of the durability, a synced value goes to the synced value log.
+     * The latency of the writes of each durability is reported by {@code dao_write_seconds_total}.
+     */
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key,
+                             @NotNull final ExtendedRecord value,
+                             @NotNull final Durability durability) throws IOException {
+        final byte[] tempKey = RocksByteBufferUtils.toUnsignedByteArray(key);
+        final long start = System.nanoTime();
         try {
-            db.put(RocksByteBufferUtils.copyByteBuffer(tempKey), value.toBytes());
+            valueLog.append(
+                    value,
+                    durability == Durability.SYNC,
+                    record -> writer.put(tempKey, record.toBytes(), durability));
+        } finally {
+            final long latency = System.nanoTime() - start;
+            compactionManager.recordLatency(latency);
+            writes.get(durability).increment();
+            writeNanos.get(durability).add(latency);
+        }
+    }
+
+    /**
+     * Stores the records in one {@code WriteBatch} of the group commit with the default durability,
+     * the large values are moved to the value log before.
+     */
+    @Override
+    public void upsertRecords(@NotNull final List<ByteBuffer> keys,
+                              @NotNull final List<ExtendedRecord> records) throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        final List<byte[]> tempKeys = new ArrayList<>(keys.size());
+        for (final ByteBuffer key : keys) {
+            tempKeys.add(RocksByteBufferUtils.toUnsignedByteArray(key));
+        }
+        final Durability durability = writer.getDefaultDurability();
+        final long start = System.nanoTime();
+        try {
+            valueLog.appendAll(records, durability == Durability.SYNC, stored -> {
+                final List<byte[]> values = new ArrayList<>(stored.size());
+                for (final ExtendedRecord record : stored) {
+                    values.add(record.toBytes());
+                }
+                writer.putAll(tempKeys, values, durability);
+            });
+        } finally {
+            final long latency = System.nanoTime() - start;
+            compactionManager.recordLatency(latency);
+            writes.get(durability).add(keys.size());
+            writeNanos.get(durability).add(latency);
+        }
+    }
+
+    /**
+     * Records the removal in {@link RangeTombstones} instead of a tombstone per key,
+     * so the records of the range which aren't newer than the removal are hidden at once.
+     * Then the hidden records are deleted in chunks, a record newer than the removal is kept
+     * even if it has got to the storage before the removal.
+     */
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from,
+                            @NotNull final ByteBuffer to,
+                            final long timestamp) throws IOException {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        final byte[] tempFrom = RocksByteBufferUtils.toUnsignedByteArray(from);
+        final byte[] tempTo = RocksByteBufferUtils.toUnsignedByteArray(to);
+        rangeTombstones.add(tempFrom, tempTo, timestamp);
+        final Replacements removed = new Replacements(rangeRemovedRecords);
+        try (Slice upperBound = new Slice(tempTo);
+             ReadOptions readOptions = new ReadOptions().setIterateUpperBound(upperBound);
+             RocksIterator iterator = db.newIterator(readOptions)) {
+            for (iterator.seek(tempFrom); iterator.isValid(); iterator.next()) {
+                final byte[] value = iterator.value();
+                if (ExtendedRecord.fromBytes(value).getTimestamp() <= timestamp) {
+                    removed.add(iterator.key(), value, null);
+                }
+            }
+        }
+        removed.commit();
+    }
+
+    /**
+     * Merges in the group commit leader, which reads the stored value after all the writes committed before.
+     * The merged value is stored inline, so the merge doesn't hold the value log.
+     */
+    @NotNull
+    @Override
+    public ExtendedRecord merge(@NotNull final ByteBuffer key,
+                                @NotNull final MergeOperator operator,
+                                @NotNull final ByteBuffer operand) throws IOException {
+        final byte[] tempKey = RocksByteBufferUtils.toUnsignedByteArray(key);
+        final long start = System.nanoTime();
+        try {
+            final byte[] merged = writer.merge(tempKey, stored -> {
+                final ExtendedRecord record = rangeTombstones.shadow(
+                        tempKey, tempKey.length, stored == null ? null : ExtendedRecord.fromBytes(stored));
+                return operator.apply(record == null ? null : valueLog.resolve(record), operand).toBytes();
+            });
+            return ExtendedRecord.fromBytes(merged);
+        } finally {
+            compactionManager.recordLatency(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Writes the records newer than the stored ones to SST files, which are moved into the database at once.
+     * The values are stored inline, so the files don't point to the value log, which may be compacted meanwhile.
+     * The ingested files override everything written before, so the keys written since the records were checked
+     * get their records back after the files are moved, unless the ingested records are newer.
+     */
+    @Override
+    public long ingest(@NotNull final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records) throws IOException {
+        final File directory = new File(new File(data, INGEST_DIRECTORY), Long.toString(System.nanoTime()));
+        Files.createDirectories(directory.toPath());
+        final Set<ByteBuffer> written = writer.track();
+        final List<String> files = new ArrayList<>();
+        final List<byte[]> keys = new ArrayList<>(INGEST_BATCH);
+        final List<ExtendedRecord> batch = new ArrayList<>(INGEST_BATCH);
+        long stored = 0;
+        long fileSize = 0;
+        SstFileWriter file = null;
+        try (EnvOptions envOptions = new EnvOptions()) {
+            while (records.hasNext()) {
+                final Map.Entry<ByteBuffer, ExtendedRecord> entry = records.next();
+                keys.add(RocksByteBufferUtils.toUnsignedByteArray(entry.getKey()));
+                batch.add(entry.getValue());
+                if (keys.size() < INGEST_BATCH && records.hasNext()) {
+                    continue;
+                }
+                final List<byte[]> existing = db.multiGetAsList(keys);
+                for (int i = 0; i < keys.size(); i++) {
+                    final ExtendedRecord record = batch.get(i);
+                    if (existing.get(i) != null
+                            && ExtendedRecord.fromBytes(existing.get(i)).getTimestamp() >= record.getTimestamp()
+                            || rangeTombstones.shadows(keys.get(i), record.getTimestamp())) {
+                        continue;
+                    }
+                    if (file == null) {
+                        final String path = new File(directory, files.size() + ".sst").getAbsolutePath();
+                        file = new SstFileWriter(envOptions, options);
+                        file.open(path);
+                        files.add(path);
+                        fileSize = 0;
+                    }
+                    final byte[] value = record.toBytes();
+                    file.put(keys.get(i), value);
+                    fileSize += keys.get(i).length + value.length;
+                    stored++;
+                    if (fileSize >= INGEST_FILE_SIZE) {
+                        file.finish();
+                        file.close();
+                        file = null;
+                    }
+                }
+                keys.clear();
+                batch.clear();
+            }
+            if (file != null) {
+                file.finish();
+            }
+            if (!files.isEmpty()) {
+                writer.exclusive(() -> ingestFiles(files, written));
+            }
+        } catch (RocksDBException e) {
+            throw new FastIOException(e);
+        } finally {
+            writer.untrack(written);
+            if (file != null) {
+                file.close();
+            }
+            ru.mail.polis.Files.recursiveDelete(directory);
+        }
+        return stored;
+    }
+
+    /**
+     * Moves the files into the database while no write is committed and puts back the records of the written keys
+     * which aren't older than the ingested ones.
+     *
+     * @param files   SST files to ingest
+     * @param written keys written since the records were checked
+     */
+    private void ingestFiles(@NotNull final List<String> files,
+                             @NotNull final Set<ByteBuffer> written) throws IOException {
+        final List<byte[]> keys = new ArrayList<>(written.size());
+        for (final ByteBuffer key : written) {
+            keys.add(key.array());
+        }
+        try (IngestExternalFileOptions ingestOptions = new IngestExternalFileOptions().setMoveFiles(true);
+             WriteBatch batch = new WriteBatch();
+             WriteOptions writeOptions = new WriteOptions().setSync(true)) {
+            final List<byte[]> before = keys.isEmpty() ? List.of() : db.multiGetAsList(keys);
+            db.ingestExternalFile(files, ingestOptions);
+            final List<byte[]> after = keys.isEmpty() ? List.of() : db.multiGetAsList(keys);
+            for (int i = 0; i < keys.size(); i++) {
+                final byte[] current = before.get(i);
+                final byte[] ingested = after.get(i);
+                if (current != null && ingested != null && !Arrays.equals(current, ingested)
+                        && ExtendedRecord.fromBytes(current).getTimestamp()
+                        >= ExtendedRecord.fromBytes(ingested).getTimestamp()) {
+                    batch.put(keys.get(i), current);
+                }
+            }
+            if (batch.count() > 0) {
+                db.write(writeOptions, batch);
+            }
         } catch (RocksDBException e) {
             throw new FastIOException(e);
         }
     }
 
+    @Override
+    public void forEachKey(@NotNull final Consumer<ByteBuffer> action) {
+        try (RocksIterator iterator = db.newIterator()) {
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                action.accept(RocksByteBufferUtils.fromUnsignedByteArray(iterator.key()));
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public Metrics metrics() {
+        return metrics;
+    }
+
     @Override
     public void close() throws IOException {
+        maintenance.shutdownNow();
+        try {
+            if (!maintenance.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.error("Maintenance hasn't stopped in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FastIOException(e);
+        }
+        compactionManager.close();
+        writer.close();
+        rocksMetrics.close();
         db.close();
+        options.close();
+        rateLimiter.close();
+        statistics.close();
+        blockCache.close();
+        if (bloomFilter != null) {
+            bloomFilter.close();
+        }
+        valueLog.close();
     }
 
 
+
+    /**
+     * Conditional replacements of the sweep committed in chunks.
+     */
+    private final class Replacements {
+        private final LongAdder counter;
+        private final List<byte[]> keys = new ArrayList<>(SWEEP_BATCH);
+        private final List<byte[]> expected = new ArrayList<>(SWEEP_BATCH);
+        private final List<byte[]> replacements = new ArrayList<>(SWEEP_BATCH);
+
+        Replacements(@NotNull final LongAdder counter) {
+            this.counter = counter;
+        }
+
+        void add(@NotNull final byte[] key,
+                 @NotNull final byte[] value,
+                 @Nullable final byte[] replacement) throws IOException {
+            keys.add(key);
+            expected.add(value);
+            replacements.add(replacement);
+            if (keys.size() == SWEEP_BATCH) {
+                commit();
+            }
+        }
+
+        void commit() throws IOException {
+            counter.add(writer.replaceIfUnchanged(keys, expected, replacements));
+            keys.clear();
+            expected.clear();
+            replacements.clear();
+        }
+    }
 }
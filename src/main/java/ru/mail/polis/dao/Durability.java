@@ -0,0 +1,50 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * How a write survives failures, see {@link DAO#upsertRecord(java.nio.ByteBuffer, ExtendedRecord, Durability)}.
+ * The levels are ordered from the weakest to the strongest.
+ *
+ * @author Pavel Pokatilo
+ */
+public enum Durability {
+    /**
+     * Skips the write-ahead log, so the write is lost if the process crashes before the memtable is flushed.
+     */
+    NONE,
+    /**
+     * Appends to the write-ahead log without syncing it, so the write survives a process crash
+     * but not a crash of the machine.
+     */
+    ASYNC,
+    /**
+     * Syncs the write-ahead log before the write completes.
+     */
+    SYNC;
+
+    /**
+     * Parses the level name, e.g. {@code sync}.
+     *
+     * @throws IllegalArgumentException if there is no such level
+     */
+    @NotNull
+    public static Durability of(@NotNull final String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    @NotNull
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Provides the stronger of the levels.
+     */
+    @NotNull
+    Durability max(@NotNull final Durability other) {
+        return compareTo(other) >= 0 ? this : other;
+    }
+}
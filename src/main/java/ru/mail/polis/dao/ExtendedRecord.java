@@ -1,49 +1,312 @@
 package ru.mail.polis.dao;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * Value with its timestamp and deletion flag.
+ * Serialized as {@code header timestamp value}, where header is a single byte
+ * holding the format version and the flags, and timestamp is an unsigned varint
+ * taking 6 bytes for the current millis. A record written with a TTL has the expiring flag
+ * and the expiration millis follow the timestamp as another varint.
+ * Legacy records start with {@code char 'd'|'e'}
+ * followed by {@code long} timestamp, i.e. with a zero byte, which is never a valid header.
+ *
+ * <p>An expired record reads as a tombstone of the same timestamp, so it hides older versions
+ * on the other replicas and is collected like a tombstone.
+ *
+ * <p>Large values are kept in a {@link ValueLog}: the stored record is external and holds
+ * a pointer instead of the value, the resolved record reads the value from its {@link ValueRegion}.
+ *
+ * <p>A framed record, see {@link #frame}, is backed by its serialized form, so it is stored
+ * and sent to the replicas without copying the value.
+ */
 public class ExtendedRecord {
-    private final ByteBuffer value;
+    private static final int VERSION_1 = 0x10;
+    private static final int VERSION_MASK = 0xF0;
+    private static final int DELETED_FLAG = 0x01;
+    private static final int EXTERNAL_FLAG = 0x02;
+    private static final int EXPIRING_FLAG = 0x04;
+    private static final int LEGACY_HEADER_SIZE = Character.BYTES + Long.BYTES;
+
     private final long timestamp;
     private final boolean deleted;
+    private final boolean external;
+    private final long expiresAt;
+    private final ValueRegion region;
+    private ByteBuffer value;
+    /**
+     * Serialized record holding the value, {@code null} unless the record is framed.
+     */
+    private byte[] frame;
 
 
     public ExtendedRecord(final ByteBuffer value, final long timestamp, final boolean deleted) {
+        this(value, timestamp, deleted, false, 0, null);
+    }
+
+
+    ExtendedRecord(final ValueRegion region, final long timestamp, final long expiresAt) {
+        this(null, timestamp, false, false, expiresAt, region);
+    }
+
+
+    private ExtendedRecord(final ByteBuffer value,
+                           final long timestamp,
+                           final boolean deleted,
+                           final boolean external,
+                           final long expiresAt,
+                           final ValueRegion region) {
         this.value = value;
         this.timestamp = timestamp;
         this.deleted = deleted;
+        this.external = external;
+        this.expiresAt = expiresAt;
+        this.region = region;
     }
 
 
+    /**
+     * Creates a value which expires at the given time.
+     *
+     * @param expiresAt expiration millis, 0 for a value which never expires
+     */
+    public static ExtendedRecord expiring(final ByteBuffer value, final long timestamp, final long expiresAt) {
+        return new ExtendedRecord(value, timestamp, false, false, expiresAt, null);
+    }
+
+
+    /**
+     * Frames the value, which follows {@code room} bytes of the array, writing the header in front of it,
+     * so the array becomes the serialized record. The value is copied to a new array
+     * if the header doesn't take the room exactly.
+     *
+     * @param frame     room for the header followed by the value
+     * @param room      size of the room, see {@link #headerSize(long, long)}
+     * @param expiresAt expiration millis, 0 for a value which never expires
+     */
+    public static ExtendedRecord frame(final byte[] frame, final int room, final long timestamp, final long expiresAt) {
+        final ExtendedRecord record = expiring(
+                ByteBuffer.wrap(frame, room, frame.length - room).slice(), timestamp, expiresAt);
+        if (record.headerSize() != room) {
+            return expiring(ByteBuffer.wrap(Arrays.copyOfRange(frame, room, frame.length)), timestamp, expiresAt);
+        }
+        record.writeHeaderTo(ByteBuffer.wrap(frame));
+        record.frame = frame;
+        return record;
+    }
+
+
+    /**
+     * Reads the value framed by {@link #frame}, e.g. sent by another node, keeping the array as its serialized form.
+     *
+     * @throws IllegalArgumentException if the array isn't a framed value
+     */
+    public static ExtendedRecord fromFrame(final byte[] frame) {
+        if (frame.length == 0 || frame[0] == 0) {
+            throw new IllegalArgumentException("Not a framed value");
+        }
+        final ExtendedRecord record;
+        try {
+            record = fromBytes(ByteBuffer.wrap(frame));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+        if (record.deleted || record.external) {
+            throw new IllegalArgumentException("Not a framed value");
+        }
+        record.frame = frame;
+        return record;
+    }
+
+
+    /**
+     * Provides the size of the serialized header of a value.
+     *
+     * @param expiresAt expiration millis, 0 for a value which never expires
+     */
+    public static int headerSize(final long timestamp, final long expiresAt) {
+        return 1 + varLongSize(timestamp) + (expiresAt == 0 ? 0 : varLongSize(expiresAt));
+    }
+
+
+    static ExtendedRecord external(final ByteBuffer pointer, final long timestamp, final long expiresAt) {
+        return new ExtendedRecord(pointer, timestamp, false, true, expiresAt, null);
+    }
+
+
+    /**
+     * Creates a tombstone of the same timestamp, which replaces the expired record.
+     */
+    ExtendedRecord toTombstone() {
+        return new ExtendedRecord(ByteBuffer.allocate(0), timestamp, true);
+    }
+
+
+    /**
+     * Serializes the record. The array of a framed record is returned as is and must not be modified.
+     */
     public byte[] toBytes() {
-        final char deletedChar = this.deleted ? 'd' : 'e';
-        return ByteBuffer.allocate(Character.BYTES + Long.BYTES + value.remaining())
-                .putChar(deletedChar).putLong(timestamp).put(value.duplicate()).array();
+        if (frame != null) {
+            return frame;
+        }
+        final byte[] bytes = new byte[sizeInBytes()];
+        writeTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+
+    /**
+     * Writes {@link #sizeInBytes()} bytes of the record to the buffer.
+     */
+    public void writeTo(final ByteBuffer buffer) {
+        writeHeaderTo(buffer);
+        buffer.put(payload().duplicate());
+    }
+
+
+    /**
+     * Serializes the record without the value, which follows the header.
+     */
+    public byte[] headerBytes() {
+        final byte[] bytes = new byte[headerSize()];
+        writeHeaderTo(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+
+    private void writeHeaderTo(final ByteBuffer buffer) {
+        buffer.put((byte) (VERSION_1
+                | (deleted ? DELETED_FLAG : 0)
+                | (external ? EXTERNAL_FLAG : 0)
+                | (expiresAt == 0 ? 0 : EXPIRING_FLAG)));
+        writeVarLong(buffer, timestamp);
+        if (expiresAt != 0) {
+            writeVarLong(buffer, expiresAt);
+        }
+    }
+
+
+    private static void writeVarLong(final ByteBuffer buffer, final long value) {
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            buffer.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+
+    private static long readVarLong(final ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
     }
 
 
     public static ExtendedRecord fromBytes(final byte[] bytes) {
-        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        return fromBytes(buffer);
+        return fromBytes(ByteBuffer.wrap(bytes));
     }
 
 
+    /**
+     * Reads the record of either format. The value is the rest of the buffer, which is not copied.
+     */
     public static ExtendedRecord fromBytes(final ByteBuffer buffer) {
-        final char symbol = buffer.getChar();
-        final long timestamp = buffer.getLong();
-        return new ExtendedRecord(buffer, timestamp, symbol == 'd');
+        final int header = buffer.get(buffer.position()) & 0xFF;
+        if (header == 0) {
+            final char symbol = buffer.getChar();
+            final long timestamp = buffer.getLong();
+            return new ExtendedRecord(buffer, timestamp, symbol == 'd');
+        }
+        if ((header & VERSION_MASK) != VERSION_1) {
+            throw new IllegalArgumentException("Unknown record format: " + header);
+        }
+        buffer.get();
+        final long timestamp = readVarLong(buffer);
+        final long expiresAt = (header & EXPIRING_FLAG) == 0 ? 0 : readVarLong(buffer);
+        return new ExtendedRecord(
+                buffer,
+                timestamp,
+                (header & DELETED_FLAG) != 0,
+                (header & EXTERNAL_FLAG) != 0,
+                expiresAt,
+                null);
     }
 
 
+    /**
+     * Checks whether the serialized record has the legacy format and should be rewritten.
+     */
+    public static boolean isLegacy(final byte[] bytes) {
+        return bytes.length >= LEGACY_HEADER_SIZE && bytes[0] == 0;
+    }
+
+
+    /**
+     * Checks whether the record is a tombstone or has expired.
+     */
     public boolean isDeleted() {
-        return deleted;
+        return deleted || isExpired();
+    }
+
+
+    /**
+     * Checks whether the record has a TTL which has passed.
+     */
+    public boolean isExpired() {
+        return expiresAt != 0 && expiresAt <= System.currentTimeMillis();
+    }
+
+
+    /**
+     * Provides the expiration millis or 0 if the record never expires.
+     */
+    public long getExpiresAt() {
+        return expiresAt;
     }
 
 
+    /**
+     * Provides the value, reading it from the value log if needed.
+     * The value of an expired record is still available, so a record which expires while it's being read is intact.
+     *
+     * @throws java.io.UncheckedIOException if the value can't be read from the value log
+     */
     public ByteBuffer getValue() {
-        if (this.isDeleted()) {
+        if (deleted) {
             throw new IllegalStateException("Record is deleted");
         }
+        if (external) {
+            throw new IllegalStateException("Record isn't resolved");
+        }
+        return payload();
+    }
+
+
+    /**
+     * Provides the file region holding the value if the value is stored in the value log.
+     */
+    public ValueRegion getValueRegion() {
+        return region;
+    }
+
+    /**
+     * Checks whether the value is a pointer to the value log of the node.
+     */
+    public boolean isExternal() {
+        return external;
+    }
+
+
+    ByteBuffer getPointer() {
         return value;
     }
 
@@ -51,4 +314,28 @@ public class ExtendedRecord {
     public long getTimestamp() {
         return timestamp;
     }
-}
\ No newline at end of file
+
+
+    public int sizeInBytes() {
+        return headerSize() + (region == null ? value.remaining() : region.getLength());
+    }
+
+
+    private int headerSize() {
+        return headerSize(timestamp, expiresAt);
+    }
+
+
+    private static int varLongSize(final long value) {
+        final int significantBits = Long.SIZE - Long.numberOfLeadingZeros(value | 1);
+        return (significantBits + 6) / 7;
+    }
+
+
+    private ByteBuffer payload() {
+        if (value == null) {
+            value = region.read();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,188 @@
+package ru.mail.polis.dao;
+
+import com.google.common.collect.Iterators;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.utils.FastNoSuchElementException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link DAO} answering lookups of absent keys from a {@link ScalableBloomFilter} without touching the storage.
+ * Every written key, deleted ones included, is added to the filter.
+ *
+ * <p>The filter is saved to {@code keys.filter} on close and loaded on open. The file is deleted once loaded,
+ * so after a crash the filter, which would miss the keys written after the snapshot, is rebuilt by a key scan.
+ *
+ * @author Pavel Pokatilo
+ */
+final class FilteringDAO extends ForwardingDAO {
+    static final String SNAPSHOT = "keys.filter";
+    private static final Log log = LogFactory.getLog(FilteringDAO.class);
+
+    private final File snapshot;
+    private final ScalableBloomFilter filter;
+    private final LongAdder negatives;
+    private final LongAdder falsePositives;
+
+    /**
+     * Loads the filter snapshot or builds the filter from the keys of the storage.
+     *
+     * @param delegate          storage
+     * @param data              storage directory
+     * @param capacity          number of keys of the first filter stage
+     * @param falsePositiveRate target false positive probability
+     */
+    FilteringDAO(@NotNull final DAO delegate,
+                 @NotNull final File data,
+                 final long capacity,
+                 final double falsePositiveRate) throws IOException {
+        super(delegate);
+        this.snapshot = new File(data, SNAPSHOT);
+        this.filter = load(delegate, snapshot, capacity, falsePositiveRate);
+        this.negatives = delegate.metrics().counter("dao_filter_negatives_total");
+        this.falsePositives = delegate.metrics().counter("dao_filter_false_positives_total");
+        delegate.metrics().gauge("dao_filter_keys", filter::size);
+        delegate.metrics().gauge("dao_filter_bytes", filter::sizeInBytes);
+        delegate.metrics().gauge("dao_filter_false_positive_rate", filter::expectedFalsePositiveRate);
+    }
+
+    @NotNull
+    private static ScalableBloomFilter load(@NotNull final DAO delegate,
+                                            @NotNull final File snapshot,
+                                            final long capacity,
+                                            final double falsePositiveRate) throws IOException {
+        if (snapshot.exists()) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(snapshot.toPath()))) {
+                return ScalableBloomFilter.readFrom(new DataInputStream(in));
+            } catch (IOException e) {
+                log.warn("Can't load key filter, rebuilding", e);
+            } finally {
+                Files.delete(snapshot.toPath());
+            }
+        }
+        final ScalableBloomFilter filter = new ScalableBloomFilter(capacity, falsePositiveRate);
+        delegate.forEachKey(filter::add);
+        return filter;
+    }
+
+    @NotNull
+    @Override
+    public ExtendedRecord getRecord(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        if (!filter.mightContain(key)) {
+            negatives.increment();
+            throw new FastNoSuchElementException();
+        }
+        try {
+            return delegate.getRecord(key);
+        } catch (NoSuchElementException e) {
+            falsePositives.increment();
+            throw e;
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<ExtendedRecord> getRecords(@NotNull final List<ByteBuffer> keys) throws IOException {
+        final List<ExtendedRecord> records = new ArrayList<>(keys.size());
+        final List<Integer> positions = new ArrayList<>();
+        final List<ByteBuffer> candidates = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            records.add(null);
+            if (filter.mightContain(keys.get(i))) {
+                positions.add(i);
+                candidates.add(keys.get(i));
+            } else {
+                negatives.increment();
+            }
+        }
+        if (candidates.isEmpty()) {
+            return records;
+        }
+        final List<ExtendedRecord> found = delegate.getRecords(candidates);
+        for (int i = 0; i < found.size(); i++) {
+            if (found.get(i) == null) {
+                falsePositives.increment();
+            } else {
+                records.set(positions.get(i), found.get(i));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Adds the key to the filter before the write, so the key is never filtered out once written.
+     */
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord value) throws IOException {
+        filter.add(key);
+        delegate.upsertRecord(key, value);
+    }
+
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key,
+                             @NotNull final ExtendedRecord value,
+                             @NotNull final Durability durability) throws IOException {
+        filter.add(key);
+        delegate.upsertRecord(key, value, durability);
+    }
+
+    @Override
+    public void upsertRecords(@NotNull final List<ByteBuffer> keys,
+                              @NotNull final List<ExtendedRecord> records) throws IOException {
+        for (final ByteBuffer key : keys) {
+            filter.add(key);
+        }
+        delegate.upsertRecords(keys, records);
+    }
+
+    @NotNull
+    @Override
+    public ExtendedRecord merge(@NotNull final ByteBuffer key,
+                                @NotNull final MergeOperator operator,
+                                @NotNull final ByteBuffer operand) throws IOException {
+        filter.add(key);
+        return delegate.merge(key, operator, operand);
+    }
+
+    /**
+     * Adds the keys to the filter as the records are passed to the storage.
+     */
+    @Override
+    public long ingest(@NotNull final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records) throws IOException {
+        return delegate.ingest(Iterators.transform(records, entry -> {
+            filter.add(entry.getKey());
+            return entry;
+        }));
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+        final Path temp = new File(snapshot.getParentFile(), SNAPSHOT + ".tmp").toPath();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            final DataOutputStream data = new DataOutputStream(out);
+            filter.writeTo(data);
+            data.flush();
+        }
+        Files.move(temp, snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,145 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.utils.FastNoSuchElementException;
+import ru.mail.polis.utils.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/**
+ * {@link DAO} which forwards all the calls to another one.
+ * Decorators override only the methods they change.
+ *
+ * @author Pavel Pokatilo
+ */
+abstract class ForwardingDAO implements DAO {
+    protected final DAO delegate;
+
+    ForwardingDAO(@NotNull final DAO delegate) {
+        this.delegate = delegate;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return delegate.iterator(from);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        return delegate.range(from, to);
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final ExtendedRecord record = getRecord(key);
+        if (record.isDeleted()) {
+            throw new FastNoSuchElementException();
+        }
+        return record.getValue();
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        upsertRecord(key, new ExtendedRecord(value, System.currentTimeMillis(), false));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        upsertRecord(key, new ExtendedRecord(ByteBuffer.allocate(0), System.currentTimeMillis(), true));
+    }
+
+    @Override
+    public void compact() throws IOException {
+        delegate.compact();
+    }
+
+    @NotNull
+    @Override
+    public ExtendedRecord getRecord(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        return delegate.getRecord(key);
+    }
+
+    @NotNull
+    @Override
+    public List<ExtendedRecord> getRecords(@NotNull final List<ByteBuffer> keys) throws IOException {
+        return delegate.getRecords(keys);
+    }
+
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord value) throws IOException {
+        delegate.upsertRecord(key, value);
+    }
+
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key,
+                             @NotNull final ExtendedRecord value,
+                             @NotNull final Durability durability) throws IOException {
+        delegate.upsertRecord(key, value, durability);
+    }
+
+    @Override
+    public void upsertRecords(@NotNull final List<ByteBuffer> keys,
+                              @NotNull final List<ExtendedRecord> records) throws IOException {
+        delegate.upsertRecords(keys, records);
+    }
+
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from,
+                            @NotNull final ByteBuffer to,
+                            final long timestamp) throws IOException {
+        delegate.removeRange(from, to, timestamp);
+    }
+
+    @NotNull
+    @Override
+    public ExtendedRecord merge(@NotNull final ByteBuffer key,
+                                @NotNull final MergeOperator operator,
+                                @NotNull final ByteBuffer operand) throws IOException {
+        return delegate.merge(key, operator, operand);
+    }
+
+    @Override
+    public long ingest(@NotNull final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records) throws IOException {
+        return delegate.ingest(records);
+    }
+
+    @Override
+    public void forEachKey(@NotNull final Consumer<ByteBuffer> action) throws IOException {
+        delegate.forEachKey(action);
+    }
+
+    @NotNull
+    @Override
+    public File checkpoint() throws IOException {
+        return delegate.checkpoint();
+    }
+
+    @Nullable
+    @Override
+    public CompactionManager compactionManager() {
+        return delegate.compactionManager();
+    }
+
+    @NotNull
+    @Override
+    public Metrics metrics() {
+        return delegate.metrics();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,466 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import ru.mail.polis.utils.FastIOException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group commit of RocksDB writes.
+ * Concurrent writers enqueue their operations and the first of them becomes the leader:
+ * it collects everything queued during the commit window into one {@link WriteBatch},
+ * writes it with a single WAL append and completes all the writers of the group together.
+ * Then the leadership is handed over to the next waiting writer.
+ * The batch is written with the strongest {@link Durability} requested by the writes of the group.
+ * An {@link #exclusive} action runs in the leader between the batches, so no write is committed while it runs.
+ *
+ * @author Pavel Pokatilo
+ */
+final class GroupCommitWriter implements Closeable {
+    private static final long LEADER_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RocksDB db;
+    private final Durability defaultDurability;
+    private final Map<Durability, WriteOptions> writeOptions = new EnumMap<>(Durability.class);
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final Queue<Write> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean leader = new AtomicBoolean();
+    /**
+     * Keys committed since {@link #track()}, they are changed and read by the leader only.
+     */
+    private final List<Set<ByteBuffer>> trackers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates writer on top of the opened database.
+     *
+     * @param db           database to write to
+     * @param windowMicros how long the leader waits for more writers before the commit, 0 to commit at once
+     * @param durability   durability of the writes which don't request their own one
+     * @param maxBatchSize maximum number of operations in one batch
+     */
+    GroupCommitWriter(@NotNull final RocksDB db,
+                      final long windowMicros,
+                      @NotNull final Durability durability,
+                      final int maxBatchSize) {
+        this.db = db;
+        this.defaultDurability = durability;
+        writeOptions.put(Durability.NONE, new WriteOptions().setDisableWAL(true));
+        writeOptions.put(Durability.ASYNC, new WriteOptions().setSync(false));
+        writeOptions.put(Durability.SYNC, new WriteOptions().setSync(true));
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Puts the value and blocks until the batch containing it is committed.
+     */
+    void put(@NotNull final byte[] key, @NotNull final byte[] value) throws IOException {
+        put(key, value, defaultDurability);
+    }
+
+    /**
+     * Puts the value with at least the given durability and blocks until the batch containing it is committed.
+     */
+    void put(@NotNull final byte[] key,
+             @NotNull final byte[] value,
+             @NotNull final Durability durability) throws IOException {
+        execute(Collections.singletonList(new Put(key, value, durability)));
+    }
+
+    /**
+     * Puts all the values in the same batch with at least the given durability and blocks until it is committed.
+     */
+    void putAll(@NotNull final List<byte[]> keys,
+                @NotNull final List<byte[]> values,
+                @NotNull final Durability durability) throws IOException {
+        execute(Collections.singletonList(new PutAll(keys, values, durability)));
+    }
+
+    @NotNull
+    Durability getDefaultDurability() {
+        return defaultDurability;
+    }
+
+    /**
+     * Replaces the value with the merged one and blocks until it is committed.
+     * The merge is done by the group leader, which is the only writer of the database,
+     * so no write to the key can get between the read and the write of the merge.
+     *
+     * @param key   key to update
+     * @param merge function of the stored value, {@code null} if there is none, providing the new one
+     * @return new value
+     */
+    @NotNull
+    byte[] merge(@NotNull final byte[] key, @NotNull final Merger merge) throws IOException {
+        final Merge write = new Merge(key, merge);
+        execute(Collections.singletonList(write));
+        if (write.rejection instanceof IOException) {
+            throw (IOException) write.rejection;
+        }
+        if (write.rejection != null) {
+            throw (RuntimeException) write.rejection;
+        }
+        return write.merged;
+    }
+
+    /**
+     * Replaces values of the keys which are still equal to the expected ones
+     * and blocks until the replacements are committed.
+     *
+     * @param keys         keys to replace
+     * @param expected     values the keys must still have to be replaced
+     * @param replacements new values, {@code null} to delete the key
+     * @return number of replaced keys
+     */
+    int replaceIfUnchanged(@NotNull final List<byte[]> keys,
+                           @NotNull final List<byte[]> expected,
+                           @NotNull final List<byte[]> replacements) throws IOException {
+        final List<ReplaceIfUnchanged> writes = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            writes.add(new ReplaceIfUnchanged(keys.get(i), expected.get(i), replacements.get(i)));
+        }
+        execute(writes);
+        int replaced = 0;
+        for (final ReplaceIfUnchanged write : writes) {
+            if (write.replaced) {
+                replaced++;
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Runs the action after the writes enqueued before it are committed and before the later ones,
+     * and blocks until it completes.
+     */
+    void exclusive(@NotNull final Action action) throws IOException {
+        execute(Collections.singletonList(new Exclusive(action)));
+    }
+
+    /**
+     * Starts collecting the keys of the committed writes, which an {@link #exclusive} action may read.
+     *
+     * @return keys committed from now on
+     */
+    @NotNull
+    Set<ByteBuffer> track() {
+        final Set<ByteBuffer> keys = new HashSet<>();
+        trackers.add(keys);
+        return keys;
+    }
+
+    /**
+     * Stops collecting the keys.
+     */
+    void untrack(@NotNull final Set<ByteBuffer> keys) {
+        trackers.remove(keys);
+    }
+
+    /**
+     * Enqueues the writes and blocks until all of them are committed.
+     * Writes are committed in the queue order, so it is enough to wait for the last one.
+     */
+    private void execute(@NotNull final List<? extends Write> writes) throws IOException {
+        if (writes.isEmpty()) {
+            return;
+        }
+        queue.addAll(writes);
+        final Write write = writes.get(writes.size() - 1);
+        while (!write.done) {
+            if (leader.compareAndSet(false, true)) {
+                try {
+                    commitQueued();
+                } finally {
+                    leader.set(false);
+                }
+                final Write next = queue.peek();
+                if (next != null) {
+                    LockSupport.unpark(next.writer);
+                }
+            } else {
+                LockSupport.parkNanos(this, LEADER_POLL_NANOS);
+            }
+        }
+        for (final Write committed : writes) {
+            if (committed.failure != null) {
+                throw committed.failure;
+            }
+        }
+    }
+
+    private void commitQueued() {
+        final List<Write> group = new ArrayList<>();
+        drainTo(group);
+        if (windowNanos > 0 && group.size() < maxBatchSize && !endsWithExclusive(group)) {
+            LockSupport.parkNanos(this, windowNanos);
+            drainTo(group);
+        }
+        if (group.isEmpty()) {
+            return;
+        }
+
+        final Exclusive exclusive = endsWithExclusive(group) ? (Exclusive) group.remove(group.size() - 1) : null;
+        if (!group.isEmpty()) {
+            commit(group);
+        }
+        if (exclusive != null) {
+            exclusive.run();
+            exclusive.done = true;
+            LockSupport.unpark(exclusive.writer);
+        }
+    }
+
+    private void commit(@NotNull final List<Write> group) {
+        IOException failure = null;
+        final Map<ByteBuffer, byte[]> written = new HashMap<>();
+        Durability durability = Durability.NONE;
+        try (WriteBatch batch = new WriteBatch()) {
+            for (final Write write : group) {
+                write.applyTo(batch, written);
+                durability = durability.max(write.durability);
+            }
+            db.write(writeOptions.get(durability), batch);
+            for (final Set<ByteBuffer> keys : trackers) {
+                keys.addAll(written.keySet());
+            }
+        } catch (RocksDBException e) {
+            failure = new FastIOException(e);
+        }
+        for (final Write write : group) {
+            write.failure = failure;
+            write.done = true;
+            LockSupport.unpark(write.writer);
+        }
+    }
+
+    /**
+     * Takes the queued writes up to the exclusive action, which ends the group.
+     */
+    private void drainTo(@NotNull final List<Write> group) {
+        while (group.size() < maxBatchSize && !endsWithExclusive(group)) {
+            final Write write = queue.poll();
+            if (write == null) {
+                return;
+            }
+            group.add(write);
+        }
+    }
+
+    private static boolean endsWithExclusive(@NotNull final List<Write> group) {
+        return !group.isEmpty() && group.get(group.size() - 1) instanceof Exclusive;
+    }
+
+    @Override
+    public void close() {
+        for (final WriteOptions options : writeOptions.values()) {
+            options.close();
+        }
+    }
+
+    /**
+     * Action which no write is committed during.
+     */
+    @FunctionalInterface
+    interface Action {
+        void run() throws IOException;
+    }
+
+    /**
+     * Computation of the merged value.
+     */
+    @FunctionalInterface
+    interface Merger {
+        @NotNull
+        byte[] merge(@Nullable byte[] stored) throws IOException;
+    }
+
+    /**
+     * Operation of a writer waiting for the group commit.
+     */
+    private abstract class Write {
+        final Thread writer = Thread.currentThread();
+        final Durability durability;
+        volatile boolean done;
+        volatile IOException failure;
+
+        Write() {
+            this(defaultDurability);
+        }
+
+        Write(@NotNull final Durability durability) {
+            this.durability = durability;
+        }
+
+        /**
+         * Adds the operation to the batch.
+         *
+         * @param batch   batch of the group
+         * @param written values put by the previous operations of the group
+         */
+        abstract void applyTo(@NotNull WriteBatch batch, @NotNull Map<ByteBuffer, byte[]> written)
+                throws RocksDBException;
+    }
+
+    private final class Put extends Write {
+        private final byte[] key;
+        private final byte[] value;
+
+        Put(@NotNull final byte[] key, @NotNull final byte[] value, @NotNull final Durability durability) {
+            super(durability);
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        void applyTo(@NotNull final WriteBatch batch, @NotNull final Map<ByteBuffer, byte[]> written)
+                throws RocksDBException {
+            batch.put(key, value);
+            written.put(ByteBuffer.wrap(key), value);
+        }
+    }
+
+    /**
+     * Puts of several keys, which are never split between the batches.
+     */
+    private final class PutAll extends Write {
+        private final List<byte[]> keys;
+        private final List<byte[]> values;
+
+        PutAll(@NotNull final List<byte[]> keys,
+               @NotNull final List<byte[]> values,
+               @NotNull final Durability durability) {
+            super(durability);
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        void applyTo(@NotNull final WriteBatch batch, @NotNull final Map<ByteBuffer, byte[]> written)
+                throws RocksDBException {
+            for (int i = 0; i < keys.size(); i++) {
+                batch.put(keys.get(i), values.get(i));
+                written.put(ByteBuffer.wrap(keys.get(i)), values.get(i));
+            }
+        }
+    }
+
+    /**
+     * Update of the stored value, which sees the values put earlier in the same batch.
+     */
+    private final class Merge extends Write {
+        private final byte[] key;
+        private final Merger merger;
+        private volatile byte[] merged;
+        private volatile Exception rejection;
+
+        Merge(@NotNull final byte[] key, @NotNull final Merger merger) {
+            super();
+            this.key = key;
+            this.merger = merger;
+        }
+
+        @Override
+        void applyTo(@NotNull final WriteBatch batch, @NotNull final Map<ByteBuffer, byte[]> written)
+                throws RocksDBException {
+            final ByteBuffer wrapped = ByteBuffer.wrap(key);
+            final byte[] stored = written.containsKey(wrapped) ? written.get(wrapped) : db.get(key);
+            final byte[] value;
+            try {
+                value = merger.merge(stored);
+            } catch (IOException | RuntimeException e) {
+                // Only this write fails, the rest of the group is committed
+                rejection = e;
+                return;
+            }
+            batch.put(key, value);
+            written.put(wrapped, value);
+            merged = value;
+        }
+    }
+
+    /**
+     * Action run by the leader instead of being added to the batch.
+     */
+    private final class Exclusive extends Write {
+        private final Action action;
+
+        Exclusive(@NotNull final Action action) {
+            super();
+            this.action = action;
+        }
+
+        @Override
+        void applyTo(@NotNull final WriteBatch batch, @NotNull final Map<ByteBuffer, byte[]> written) {
+            throw new UnsupportedOperationException("Exclusive action isn't batched");
+        }
+
+        void run() {
+            try {
+                action.run();
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                // The leader must go on, so the failure is passed to the writer of the action
+                failure = new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Replacement which is skipped if the key was overwritten after the expected value had been read.
+     * It is safe because only the group leader writes to the database.
+     */
+    private final class ReplaceIfUnchanged extends Write {
+        private final byte[] key;
+        private final byte[] expected;
+        private final byte[] replacement;
+        private volatile boolean replaced;
+
+        ReplaceIfUnchanged(@NotNull final byte[] key,
+                           @NotNull final byte[] expected,
+                           @Nullable final byte[] replacement) {
+            super();
+            this.key = key;
+            this.expected = expected;
+            this.replacement = replacement;
+        }
+
+        @Override
+        void applyTo(@NotNull final WriteBatch batch, @NotNull final Map<ByteBuffer, byte[]> written)
+                throws RocksDBException {
+            if (written.containsKey(ByteBuffer.wrap(key)) || !Arrays.equals(db.get(key), expected)) {
+                return;
+            }
+            if (replacement == null) {
+                batch.delete(key);
+            } else {
+                batch.put(key, replacement);
+            }
+            written.put(ByteBuffer.wrap(key), replacement);
+            replaced = true;
+        }
+    }
+}
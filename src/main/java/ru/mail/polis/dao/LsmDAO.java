@@ -0,0 +1,650 @@
+package ru.mail.polis.dao;
+
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.utils.FastIOException;
+import ru.mail.polis.utils.FastNoSuchElementException;
+import ru.mail.polis.utils.Metrics;
+import ru.mail.polis.utils.RocksByteBufferUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pure Java LSM storage implementation.
+ * Writes go to the commit log and the {@link MemTable}, full memtables are flushed
+ * to {@link SSTable}s in background, tables are read through memory mappings.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class LsmDAO implements DAO {
+    private static final Log log = LogFactory.getLog(LsmDAO.class);
+
+    private static final String TABLE_SUFFIX = ".db";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)(\\.db|\\.log|\\.tmp)");
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int INGEST_BATCH = 1024;
+
+    private final File data;
+    private final long flushThreshold;
+    private final ValueLog valueLog;
+    private final RangeTombstones rangeTombstones;
+    private final Metrics metrics = new Metrics();
+    private final LongAdder collectedTombstones = metrics.counter("dao_tombstones_collected_total");
+    private final LongAdder expiredRecords = metrics.counter("dao_records_expired_total");
+    private final LongAdder rangeRemovedRecords = metrics.counter("dao_records_range_removed_total");
+    private final AtomicInteger generation = new AtomicInteger();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object compactionLock = new Object();
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("lsm-flusher-%d").setDaemon(true).build());
+
+    private volatile TableSet tables;
+
+    /**
+     * Opens the storage with the memtable budget taken from {@code dao.lsm.memtable} property.
+     *
+     * @param data folder with the storage files
+     */
+    public LsmDAO(@NotNull final File data) throws IOException {
+        this(data, Long.getLong("dao.lsm.memtable", Runtime.getRuntime().maxMemory() / 16));
+    }
+
+    LsmDAO(@NotNull final File data, final long flushThreshold) throws IOException {
+        this.data = data;
+        this.flushThreshold = flushThreshold;
+        this.valueLog = ValueLog.open(data, false);
+        this.rangeTombstones = RangeTombstones.open(data);
+        metrics.gauge("dao_range_tombstones", rangeTombstones::size);
+
+        final List<SSTable> ssTables = new ArrayList<>();
+        final File[] files = data.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list " + data);
+        }
+        final List<File> logs = new ArrayList<>();
+        for (final File file : files) {
+            final Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (!matcher.matches()) {
+                continue;
+            }
+            switch (matcher.group(2)) {
+                case TABLE_SUFFIX:
+                    ssTables.add(SSTable.open(file, Integer.parseInt(matcher.group(1))));
+                    break;
+                case LOG_SUFFIX:
+                    logs.add(file);
+                    break;
+                default:
+                    Files.delete(file.toPath());
+                    break;
+            }
+        }
+        final Set<Integer> replaced = new HashSet<>();
+        for (final SSTable table : ssTables) {
+            generation.accumulateAndGet(table.getGeneration(), Math::max);
+            for (final int replacedGeneration : table.getReplaced()) {
+                replaced.add(replacedGeneration);
+            }
+        }
+        // The compaction has been interrupted before deleting the tables it replaced
+        final Iterator<SSTable> stale = ssTables.iterator();
+        while (stale.hasNext()) {
+            final SSTable table = stale.next();
+            if (replaced.contains(table.getGeneration())) {
+                stale.remove();
+                Files.delete(table.getFile().toPath());
+            }
+        }
+        for (final File logFile : logs) {
+            final String name = logFile.getName();
+            final int logGeneration = Integer.parseInt(name.substring(0, name.length() - LOG_SUFFIX.length()));
+            generation.accumulateAndGet(logGeneration, Math::max);
+            final MemTable recovered = new MemTable(logGeneration);
+            CommitLog.replay(logFile, recovered);
+            ssTables.removeIf(table -> table.getGeneration() == logGeneration);
+            ssTables.add(writeTable(recovered));
+            Files.delete(logFile.toPath());
+        }
+
+        ssTables.sort(Comparator.comparingInt(SSTable::getGeneration).reversed());
+        final int memGeneration = generation.incrementAndGet();
+        this.tables = new TableSet(
+                new MemTable(memGeneration),
+                new CommitLog(fileOf(memGeneration, LOG_SUFFIX)),
+                Collections.emptyList(),
+                ssTables);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        final Iterator<Cell> alive = Iterators.filter(
+                cells(from, tables.all()),
+                cell -> !cell.getRecord().isDeleted() && !isRangeRemoved(cell));
+        return Iterators.transform(alive, cell -> {
+            try {
+                return Record.of(cell.getKey(), valueLog.resolve(cell.getRecord()).getValue());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final ExtendedRecord record = getRecord(key);
+        if (record.isDeleted()) {
+            throw new FastNoSuchElementException();
+        }
+        return record.getValue();
+    }
+
+    @NotNull
+    @Override
+    public ExtendedRecord getRecord(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final ExtendedRecord record = find(key, tables);
+        if (record == null) {
+            throw new FastNoSuchElementException();
+        }
+        return record;
+    }
+
+    /**
+     * Provides the record to read for the key, a tombstone of the removal if the range of the key is removed later.
+     */
+    @Nullable
+    private ExtendedRecord find(@NotNull final ByteBuffer key, @NotNull final TableSet source) throws IOException {
+        ExtendedRecord record = null;
+        for (final Table table : source.all()) {
+            final ExtendedRecord stored = table.get(key);
+            if (stored != null) {
+                record = valueLog.resolve(stored);
+                break;
+            }
+        }
+        if (rangeTombstones.isEmpty()) {
+            return record;
+        }
+        final byte[] unsigned = RocksByteBufferUtils.toUnsignedByteArray(key);
+        return rangeTombstones.shadow(unsigned, unsigned.length, record);
+    }
+
+    private boolean isRangeRemoved(@NotNull final Cell cell) {
+        return !rangeTombstones.isEmpty()
+                && rangeTombstones.shadows(
+                RocksByteBufferUtils.toUnsignedByteArray(cell.getKey()),
+                cell.getRecord().getTimestamp());
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        upsertRecord(key, new ExtendedRecord(value, System.currentTimeMillis(), false));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        upsertRecord(key, new ExtendedRecord(ByteBuffer.allocate(0), System.currentTimeMillis(), true));
+    }
+
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord value) throws IOException {
+        upsertRecord(key, value, Durability.ASYNC);
+    }
+
+    /**
+     * Syncs the commit log and the value log before a {@link Durability#SYNC} write completes.
+     * The commit log is written by every write, so {@link Durability#NONE} is as durable as the default.
+     */
+    @Override
+    public void upsertRecord(@NotNull final ByteBuffer key,
+                             @NotNull final ExtendedRecord value,
+                             @NotNull final Durability durability) throws IOException {
+        final boolean sync = durability == Durability.SYNC;
+        valueLog.append(value, sync, record -> {
+            final MemTable memTable;
+            lock.readLock().lock();
+            try {
+                final TableSet current = tables;
+                current.commitLog.append(key, record, current.memTable);
+                if (sync) {
+                    // The log is closed only after the flush, which waits for the lock
+                    current.commitLog.sync();
+                }
+                memTable = current.memTable;
+            } finally {
+                lock.readLock().unlock();
+            }
+            flushIfFull(memTable);
+        });
+    }
+
+    /**
+     * Appends the records to the commit log with a single write and puts them to the memtable together.
+     */
+    @Override
+    public void upsertRecords(@NotNull final List<ByteBuffer> keys,
+                              @NotNull final List<ExtendedRecord> records) throws IOException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        valueLog.appendAll(records, false, stored -> {
+            final MemTable memTable;
+            lock.readLock().lock();
+            try {
+                final TableSet current = tables;
+                current.commitLog.appendAll(keys, stored, current.memTable);
+                memTable = current.memTable;
+            } finally {
+                lock.readLock().unlock();
+            }
+            flushIfFull(memTable);
+        });
+    }
+
+    /**
+     * Reads the stored record and appends the merged one holding the commit log,
+     * so no write of the key gets between them and the merges of different keys run concurrently.
+     */
+    @NotNull
+    @Override
+    public ExtendedRecord merge(@NotNull final ByteBuffer key,
+                                @NotNull final MergeOperator operator,
+                                @NotNull final ByteBuffer operand) throws IOException {
+        return exclusiveWrite(current -> {
+            final ExtendedRecord merged = operator.apply(find(key, current), operand);
+            current.commitLog.append(key, valueLog.store(merged), current.memTable);
+            return merged;
+        });
+    }
+
+    /**
+     * Records the removal in {@link RangeTombstones}, which hides the records of the range which aren't newer
+     * than the removal at once. The hidden records are dropped by the next compaction.
+     */
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from,
+                            @NotNull final ByteBuffer to,
+                            final long timestamp) throws IOException {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        rangeTombstones.add(
+                RocksByteBufferUtils.toUnsignedByteArray(from),
+                RocksByteBufferUtils.toUnsignedByteArray(to),
+                timestamp);
+    }
+
+    /**
+     * Compares the records with the stored ones and appends the newer ones holding the commit log,
+     * so a record never overrides a newer write which gets between the comparison and the append.
+     * The records are appended in batches of {@value #INGEST_BATCH} with a single write each.
+     */
+    @Override
+    public long ingest(@NotNull final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records) throws IOException {
+        long stored = 0;
+        final List<Map.Entry<ByteBuffer, ExtendedRecord>> batch = new ArrayList<>(INGEST_BATCH);
+        while (records.hasNext()) {
+            batch.clear();
+            while (records.hasNext() && batch.size() < INGEST_BATCH) {
+                batch.add(records.next());
+            }
+            stored += exclusiveWrite(current -> {
+                final List<ByteBuffer> keys = new ArrayList<>(batch.size());
+                final List<ExtendedRecord> newer = new ArrayList<>(batch.size());
+                for (final Map.Entry<ByteBuffer, ExtendedRecord> entry : batch) {
+                    final ExtendedRecord existing = find(entry.getKey(), current);
+                    if (existing == null || existing.getTimestamp() < entry.getValue().getTimestamp()) {
+                        keys.add(entry.getKey());
+                        newer.add(valueLog.store(entry.getValue()));
+                    }
+                }
+                if (!keys.isEmpty()) {
+                    current.commitLog.appendAll(keys, newer, current.memTable);
+                }
+                return keys.size();
+            });
+        }
+        return stored;
+    }
+
+    /**
+     * Runs the write holding the commit log, so the write may read the tables
+     * and no other write gets between the read and the append.
+     */
+    private <T> T exclusiveWrite(@NotNull final LogWrite<T> write) throws IOException {
+        // The locks are taken in the order of the appends: the value log, the tables, the commit log
+        final T result = valueLog.locked(() -> {
+            lock.readLock().lock();
+            try {
+                final TableSet current = tables;
+                synchronized (current.commitLog) {
+                    return write.apply(current);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+        flushIfFull(tables.memTable);
+        return result;
+    }
+
+    private void flushIfFull(@NotNull final MemTable memTable) throws IOException {
+        if (memTable.sizeInBytes() > flushThreshold && tables.memTable == memTable) {
+            scheduleFlush(memTable);
+        }
+    }
+
+    @Override
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            // Values stored before the roll are flushed below, so all the pointers to them are merged
+            final int firstLiveValues = valueLog.roll();
+            await(scheduleFlush(tables.memTable));
+            final List<SSTable> source = tables.ssTables;
+            if (!source.isEmpty()) {
+                merge(source, firstLiveValues);
+            }
+            valueLog.deleteBefore(firstLiveValues);
+        }
+    }
+
+    /**
+     * Flushes the memtable and hard-links the tables, which are immutable until the compaction deletes them.
+     */
+    @NotNull
+    @Override
+    public File checkpoint() throws IOException {
+        final File directory = Snapshots.newDirectory(data);
+        synchronized (compactionLock) {
+            await(scheduleFlush(tables.memTable));
+            final List<SSTable> snapshot = tables.ssTables;
+            try {
+                Files.createDirectories(directory.toPath());
+                valueLog.checkpoint(directory, () -> {
+                    for (final SSTable table : snapshot) {
+                        final File file = table.getFile();
+                        Files.createLink(new File(directory, file.getName()).toPath(), file.toPath());
+                    }
+                });
+                rangeTombstones.checkpoint(directory);
+            } catch (IOException | RuntimeException e) {
+                // Hard links of a partial checkpoint would pin the tables
+                Snapshots.discard(directory);
+                throw e;
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Merges the tables into one dropping expired tombstones and the records of the removed ranges,
+     * replacing the younger expired records with tombstones and relocating values from the older value logs.
+     * The compacted table lists the tables it replaces, so they are deleted on open if the compaction crashes
+     * before deleting them and can't resurrect the dropped records.
+     */
+    private void merge(@NotNull final List<SSTable> source, final int firstLiveValues) throws IOException {
+        final int compactedGeneration = source.get(0).getGeneration();
+        final List<Integer> replaced = new ArrayList<>(source.size() - 1);
+        for (final SSTable table : source) {
+            if (table.getGeneration() != compactedGeneration) {
+                replaced.add(table.getGeneration());
+            }
+        }
+        final File temp = fileOf(compactedGeneration, TEMP_SUFFIX);
+        // All the older versions are merged here, so expired tombstones can be dropped
+        final long deadline = System.currentTimeMillis() - DAOFactory.TOMBSTONE_GRACE_MILLIS;
+        final Iterator<Cell> alive = Iterators.filter(cells(EMPTY, source), cell -> {
+            final ExtendedRecord record = cell.getRecord();
+            if (isRangeRemoved(cell)) {
+                rangeRemovedRecords.increment();
+                return false;
+            }
+            if (record.isDeleted() && record.getTimestamp() < deadline) {
+                collectedTombstones.increment();
+                return false;
+            }
+            return true;
+        });
+        try {
+            SSTable.write(temp, Iterators.transform(alive, cell -> {
+                if (cell.getRecord().isExpired()) {
+                    expiredRecords.increment();
+                    return new Cell(cell.getKey(), cell.getRecord().toTombstone(), cell.getGeneration());
+                }
+                try {
+                    final ExtendedRecord relocated = valueLog.relocate(cell.getRecord(), firstLiveValues);
+                    return relocated == null ? cell : new Cell(cell.getKey(), relocated, cell.getGeneration());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }), replaced);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        final File destination = fileOf(compactedGeneration, TABLE_SUFFIX);
+        Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        final SSTable compacted = SSTable.open(destination, compactedGeneration);
+
+        lock.writeLock().lock();
+        try {
+            tables = tables.compacted(source, compacted);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (final SSTable table : source) {
+            if (table.getGeneration() != compactedGeneration) {
+                Files.delete(table.getFile().toPath());
+            }
+        }
+        // The records the old removals hide are dropped by now
+        rangeTombstones.collect(deadline);
+    }
+
+    @Override
+    public void forEachKey(@NotNull final Consumer<ByteBuffer> action) throws IOException {
+        cells(EMPTY, tables.all()).forEachRemaining(cell -> action.accept(cell.getKey()));
+    }
+
+    @NotNull
+    @Override
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() throws IOException {
+        final Future<?> lastFlush = scheduleFlush(tables.memTable);
+        flusher.shutdown();
+        await(lastFlush);
+        try {
+            if (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                throw new IOException("Can't wait for flushes to complete");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FastIOException(e);
+        }
+        tables.commitLog.close();
+        Files.deleteIfExists(tables.commitLog.getFile().toPath());
+        valueLog.close();
+    }
+
+    @NotNull
+    private static Iterator<Cell> cells(
+            @NotNull final ByteBuffer from,
+            @NotNull final Collection<? extends Table> source) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>(source.size());
+        for (final Table table : source) {
+            iterators.add(table.iterator(from));
+        }
+        return Iters.collapseEquals(Iterators.mergeSorted(iterators, Cell.COMPARATOR), Cell::getKey);
+    }
+
+    /**
+     * Moves the memtable to the flushing queue if it is still the current one
+     * and submits it to the flusher.
+     */
+    @NotNull
+    private Future<?> scheduleFlush(@NotNull final MemTable memTable) throws IOException {
+        final CommitLog commitLog;
+        lock.writeLock().lock();
+        try {
+            final TableSet current = tables;
+            if (current.memTable != memTable || memTable.isEmpty()) {
+                return flusher.submit(() -> {
+                    // Wait for the flushes submitted before
+                });
+            }
+            commitLog = current.commitLog;
+            final int nextGeneration = generation.incrementAndGet();
+            tables = current.flushing(
+                    new MemTable(nextGeneration),
+                    new CommitLog(fileOf(nextGeneration, LOG_SUFFIX)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return flusher.submit(() -> {
+            try {
+                final SSTable flushed = writeTable(memTable);
+                lock.writeLock().lock();
+                try {
+                    tables = tables.flushed(memTable, flushed);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                commitLog.close();
+                Files.delete(commitLog.getFile().toPath());
+            } catch (IOException e) {
+                log.error("Can't flush memtable " + memTable.getGeneration(), e);
+            }
+        });
+    }
+
+    @NotNull
+    private SSTable writeTable(@NotNull final MemTable memTable) throws IOException {
+        final File temp = fileOf(memTable.getGeneration(), TEMP_SUFFIX);
+        SSTable.write(temp, memTable.iterator(EMPTY));
+        final File destination = fileOf(memTable.getGeneration(), TABLE_SUFFIX);
+        Files.move(temp.toPath(), destination.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return SSTable.open(destination, memTable.getGeneration());
+    }
+
+    private static void await(@NotNull final Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FastIOException(e);
+        } catch (ExecutionException e) {
+            throw new FastIOException(e);
+        }
+    }
+
+    @NotNull
+    private File fileOf(final int tableGeneration, @NotNull final String suffix) {
+        return new File(data, tableGeneration + suffix);
+    }
+
+    /**
+     * Write of {@link #exclusiveWrite}.
+     */
+    @FunctionalInterface
+    private interface LogWrite<T> {
+        T apply(@NotNull TableSet current) throws IOException;
+    }
+
+    /**
+     * Immutable snapshot of the storage tables.
+     */
+    private static final class TableSet {
+        private final MemTable memTable;
+        private final CommitLog commitLog;
+        private final List<MemTable> flushing;
+        private final List<SSTable> ssTables;
+
+        TableSet(@NotNull final MemTable memTable,
+                 @NotNull final CommitLog commitLog,
+                 @NotNull final List<MemTable> flushing,
+                 @NotNull final List<SSTable> ssTables) {
+            this.memTable = memTable;
+            this.commitLog = commitLog;
+            this.flushing = Collections.unmodifiableList(flushing);
+            this.ssTables = Collections.unmodifiableList(ssTables);
+        }
+
+        /**
+         * All the tables from the newest to the oldest one.
+         */
+        @NotNull
+        List<Table> all() {
+            final List<Table> result = new ArrayList<>(1 + flushing.size() + ssTables.size());
+            result.add(memTable);
+            result.addAll(flushing);
+            result.addAll(ssTables);
+            return result;
+        }
+
+        @NotNull
+        TableSet flushing(@NotNull final MemTable next, @NotNull final CommitLog nextLog) {
+            final List<MemTable> newFlushing = new ArrayList<>(flushing.size() + 1);
+            newFlushing.add(memTable);
+            newFlushing.addAll(flushing);
+            return new TableSet(next, nextLog, newFlushing, ssTables);
+        }
+
+        @NotNull
+        TableSet flushed(@NotNull final MemTable table, @NotNull final SSTable flushed) {
+            final List<MemTable> newFlushing = new ArrayList<>(flushing);
+            newFlushing.remove(table);
+            final List<SSTable> newTables = new ArrayList<>(ssTables.size() + 1);
+            newTables.add(flushed);
+            newTables.addAll(ssTables);
+            newTables.sort(Comparator.comparingInt(SSTable::getGeneration).reversed());
+            return new TableSet(memTable, commitLog, newFlushing, newTables);
+        }
+
+        @NotNull
+        TableSet compacted(@NotNull final List<SSTable> source, @NotNull final SSTable compacted) {
+            final List<SSTable> newTables = new ArrayList<>(ssTables);
+            newTables.removeAll(source);
+            newTables.add(compacted);
+            newTables.sort(Comparator.comparingInt(SSTable::getGeneration).reversed());
+            return new TableSet(memTable, commitLog, flushing, newTables);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ru.mail.polis.dao;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory mutable table of {@link LsmDAO} based on a concurrent skip list.
+ *
+ * @author Pavel Pokatilo
+ */
+final class MemTable implements Table {
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final NavigableMap<ByteBuffer, ExtendedRecord> map = new ConcurrentSkipListMap<>();
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final int generation;
+
+    MemTable(final int generation) {
+        this.generation = generation;
+    }
+
+    void upsert(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord record) {
+        final ExtendedRecord previous = map.put(key, record);
+        long delta = record.sizeInBytes();
+        if (previous == null) {
+            delta += key.remaining() + ENTRY_OVERHEAD;
+        } else {
+            delta -= previous.sizeInBytes();
+        }
+        sizeInBytes.addAndGet(delta);
+    }
+
+    long sizeInBytes() {
+        return sizeInBytes.get();
+    }
+
+    boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return Iterators.transform(
+                map.tailMap(from).entrySet().iterator(),
+                entry -> new Cell(entry.getKey(), entry.getValue(), generation));
+    }
+
+    @Nullable
+    @Override
+    public ExtendedRecord get(@NotNull final ByteBuffer key) {
+        return map.get(key);
+    }
+
+    @Override
+    public int getGeneration() {
+        return generation;
+    }
+}
@@ -0,0 +1,130 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Server-side update of a value with an operand, see {@link DAO#merge}.
+ * A deleted or expired value is merged as an absent one, a live value keeps its expiration.
+ *
+ * @author Pavel Pokatilo
+ */
+public enum MergeOperator {
+    /**
+     * Appends the operand to the value.
+     */
+    APPEND {
+        @NotNull
+        @Override
+        ByteBuffer merge(@Nullable final ByteBuffer value, @NotNull final ByteBuffer operand) {
+            if (value == null) {
+                return copy(operand);
+            }
+            final ByteBuffer merged = ByteBuffer.allocate(value.remaining() + operand.remaining());
+            merged.put(value.duplicate()).put(operand.duplicate());
+            return merged.flip();
+        }
+    },
+    /**
+     * Adds the decimal operand, 1 if it is empty, to the decimal value, 0 if it is absent.
+     */
+    INCR {
+        @NotNull
+        @Override
+        ByteBuffer merge(@Nullable final ByteBuffer value, @NotNull final ByteBuffer operand) {
+            final long delta = parseOperand(operand);
+            final long current;
+            try {
+                current = value == null ? 0 : Long.parseLong(decimal(value));
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("Value isn't a number", e);
+            }
+            final long sum;
+            try {
+                sum = Math.addExact(current, delta);
+            } catch (ArithmeticException e) {
+                throw new IllegalStateException("Counter overflow", e);
+            }
+            return ByteBuffer.wrap(Long.toString(sum).getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        public void validate(@NotNull final ByteBuffer operand) {
+            parseOperand(operand);
+        }
+    };
+
+    /**
+     * Parses the operator name, e.g. {@code incr}.
+     *
+     * @throws IllegalArgumentException if there is no such operator
+     */
+    @NotNull
+    public static MergeOperator of(@NotNull final String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Checks the operand, so a malformed one is rejected before the update is sent to the replicas.
+     *
+     * @throws IllegalArgumentException if the operand is malformed
+     */
+    public void validate(@NotNull final ByteBuffer operand) {
+        // Any operand is valid
+    }
+
+    /**
+     * Merges the operand into the stored record.
+     * The merged record is newer than the stored one even if the clock is behind its timestamp,
+     * so replicas never have to break a tie between them, but it runs ahead of the clock only as far
+     * as that takes, so a later write of the key still wins.
+     *
+     * @param stored  stored record, {@code null} if there is none
+     * @param operand operand of the update
+     * @return record to store
+     * @throws IllegalArgumentException if the operand is malformed
+     * @throws IllegalStateException    if the stored value can't be merged with the operand
+     */
+    @NotNull
+    public ExtendedRecord apply(@Nullable final ExtendedRecord stored, @NotNull final ByteBuffer operand) {
+        final long now = System.currentTimeMillis();
+        if (stored == null) {
+            return new ExtendedRecord(merge(null, operand), now, false);
+        }
+        final long timestamp = Math.max(now, stored.getTimestamp() + 1);
+        if (stored.isDeleted()) {
+            return new ExtendedRecord(merge(null, operand), timestamp, false);
+        }
+        return ExtendedRecord.expiring(merge(stored.getValue(), operand), timestamp, stored.getExpiresAt());
+    }
+
+    @NotNull
+    abstract ByteBuffer merge(@Nullable ByteBuffer value, @NotNull ByteBuffer operand);
+
+    private static long parseOperand(@NotNull final ByteBuffer operand) {
+        if (!operand.hasRemaining()) {
+            return 1;
+        }
+        try {
+            return Long.parseLong(decimal(operand));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Operand isn't a number", e);
+        }
+    }
+
+    @NotNull
+    private static String decimal(@NotNull final ByteBuffer value) {
+        return StandardCharsets.US_ASCII.decode(value.duplicate()).toString().trim();
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        return copy.flip();
+    }
+}
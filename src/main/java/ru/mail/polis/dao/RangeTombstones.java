@@ -0,0 +1,233 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timestamps of the removed key ranges of {@link DAOImplementation} and {@link LsmDAO}.
+ * The engines don't write a tombstone per key of a range and drop its records later,
+ * so the range and the time of the removal are kept here: a record of the range which isn't newer
+ * than the removal, e.g. written late by a replica, is read as a tombstone of the removal time.
+ * This way replicas which missed the removal can't resurrect the values and the later writes still win.
+ *
+ * <p>The ranges are in the unsigned form of the keys stored in RocksDB, {@link LsmDAO} converts its keys to it.
+ * They are kept in {@code range-tombstones} file of the storage until the tombstone grace period passes.
+ *
+ * @author Pavel Pokatilo
+ */
+final class RangeTombstones {
+    static final String FILE_NAME = "range-tombstones";
+
+    private final File file;
+    /**
+     * Copied on write, as the ranges are rarely removed and read by every lookup.
+     */
+    private volatile List<Range> ranges;
+
+    private RangeTombstones(@NotNull final File file, @NotNull final List<Range> ranges) {
+        this.file = file;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Loads the ranges removed from the storage.
+     */
+    @NotNull
+    static RangeTombstones open(@NotNull final File data) throws IOException {
+        final File file = new File(data, FILE_NAME);
+        final List<Range> ranges = new ArrayList<>();
+        if (!file.exists()) {
+            return new RangeTombstones(file, Collections.emptyList());
+        }
+        boolean truncated = false;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            final DataInputStream input = new DataInputStream(in);
+            while (true) {
+                final Range range;
+                try {
+                    range = Range.readFrom(input);
+                } catch (EOFException e) {
+                    truncated = true;
+                    break;
+                }
+                if (range == null) {
+                    break;
+                }
+                ranges.add(range);
+            }
+        }
+        if (truncated) {
+            // The tail of an interrupted append is dropped, so the next appends follow the complete ranges
+            write(ranges, file);
+        }
+        return new RangeTombstones(file, Collections.unmodifiableList(ranges));
+    }
+
+    /**
+     * Records the removal of the range and syncs it to disk.
+     *
+     * @param from      unsigned lower bound (inclusive)
+     * @param to        unsigned upper bound (exclusive)
+     * @param timestamp time of the removal
+     */
+    synchronized void add(@NotNull final byte[] from, @NotNull final byte[] to, final long timestamp)
+            throws IOException {
+        final Range range = new Range(from, to, timestamp);
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+            range.writeTo(output);
+            output.flush();
+            out.getFD().sync();
+        }
+        final List<Range> updated = new ArrayList<>(ranges);
+        updated.add(range);
+        ranges = Collections.unmodifiableList(updated);
+    }
+
+    /**
+     * Provides the latest removal of the key.
+     *
+     * @param key    unsigned key
+     * @param length length of the key in the array
+     * @return time of the removal or {@link Long#MIN_VALUE} if the key hasn't been removed
+     */
+    long removedAt(@NotNull final byte[] key, final int length) {
+        long removedAt = Long.MIN_VALUE;
+        for (final Range range : ranges) {
+            if (range.timestamp > removedAt && range.contains(key, length)) {
+                removedAt = range.timestamp;
+            }
+        }
+        return removedAt;
+    }
+
+    /**
+     * Checks whether the record of the key written at the timestamp is removed.
+     */
+    boolean shadows(@NotNull final byte[] key, final long timestamp) {
+        return !ranges.isEmpty() && timestamp <= removedAt(key, key.length);
+    }
+
+    /**
+     * Provides the record to read for the stored one.
+     *
+     * @param key    unsigned key
+     * @param length length of the key in the array
+     * @param record stored record, {@code null} if there is none
+     * @return the stored record if it is newer than the removal of the key, otherwise a tombstone of the removal
+     *         or {@code null} if the key has neither a record nor a removal
+     */
+    ExtendedRecord shadow(@NotNull final byte[] key, final int length, final ExtendedRecord record) {
+        if (ranges.isEmpty()) {
+            return record;
+        }
+        final long removedAt = removedAt(key, length);
+        if (removedAt == Long.MIN_VALUE || record != null && record.getTimestamp() > removedAt) {
+            return record;
+        }
+        return new ExtendedRecord(ByteBuffer.allocate(0), removedAt, true);
+    }
+
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    int size() {
+        return ranges.size();
+    }
+
+    /**
+     * Forgets the removals older than the deadline, as the records they shadow are deleted by then.
+     */
+    synchronized void collect(final long deadline) throws IOException {
+        final List<Range> live = new ArrayList<>(ranges.size());
+        for (final Range range : ranges) {
+            if (range.timestamp >= deadline) {
+                live.add(range);
+            }
+        }
+        if (live.size() == ranges.size()) {
+            return;
+        }
+        write(live, file);
+        ranges = Collections.unmodifiableList(live);
+    }
+
+    /**
+     * Writes the ranges to the snapshot directory.
+     */
+    synchronized void checkpoint(@NotNull final File directory) throws IOException {
+        if (!ranges.isEmpty()) {
+            write(ranges, new File(directory, FILE_NAME));
+        }
+    }
+
+    private static void write(@NotNull final List<Range> ranges, @NotNull final File file) throws IOException {
+        final Path temp = new File(file.getParentFile(), FILE_NAME + ".tmp").toPath();
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+            for (final Range range : ranges) {
+                range.writeTo(output);
+            }
+            output.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static final class Range {
+        private final byte[] from;
+        private final byte[] to;
+        private final long timestamp;
+
+        Range(@NotNull final byte[] from, @NotNull final byte[] to, final long timestamp) {
+            this.from = from;
+            this.to = to;
+            this.timestamp = timestamp;
+        }
+
+        boolean contains(@NotNull final byte[] key, final int length) {
+            return Arrays.compareUnsigned(from, 0, from.length, key, 0, length) <= 0
+                    && Arrays.compareUnsigned(key, 0, length, to, 0, to.length) < 0;
+        }
+
+        void writeTo(@NotNull final DataOutputStream out) throws IOException {
+            out.writeInt(from.length);
+            out.write(from);
+            out.writeInt(to.length);
+            out.write(to);
+            out.writeLong(timestamp);
+        }
+
+        static Range readFrom(@NotNull final DataInputStream in) throws IOException {
+            final int fromLength;
+            try {
+                fromLength = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            final byte[] from = new byte[fromLength];
+            in.readFully(from);
+            final byte[] to = new byte[in.readInt()];
+            in.readFully(to);
+            return new Range(from, to, in.readLong());
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.utils.Metrics;
+import ru.mail.polis.utils.RocksByteBufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Segmented LRU cache of serialized records bounded by the size in bytes.
+ * A new entry gets to the probationary segment and is promoted to the protected one on the first hit,
+ * so a scan of cold keys evicts only other cold keys.
+ * The cache is split into shards by key hash to reduce contention.
+ * Each {@link #clear()} starts a new epoch, and a record read or written in an earlier epoch isn't cached,
+ * as it may be read before the storage changed the records beneath the cache.
+ *
+ * @author Pavel Pokatilo
+ */
+final class RecordCache {
+    /**
+     * Approximate size of a map node, key buffer and array headers.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int SHARDS = 16;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final AtomicLong epoch = new AtomicLong();
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * Creates cache registering its counters.
+     *
+     * @param capacity maximum size of all the entries in bytes
+     * @param metrics  registry for the counters
+     */
+    RecordCache(final long capacity, @NotNull final Metrics metrics) {
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard(capacity / SHARDS, epoch);
+        }
+        this.hits = metrics.counter("dao_cache_hits_total");
+        this.misses = metrics.counter("dao_cache_misses_total");
+        this.evictions = metrics.counter("dao_cache_evictions_total");
+        metrics.gauge("dao_cache_bytes", this::sizeInBytes);
+    }
+
+    @Nullable
+    ExtendedRecord get(@NotNull final ByteBuffer key) {
+        final byte[] record = shard(key).get(key);
+        if (record == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return ExtendedRecord.fromBytes(ByteBuffer.wrap(record).asReadOnlyBuffer());
+    }
+
+    /**
+     * Provides the current epoch, which is taken before the record is read from or written to the storage.
+     */
+    long epoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Caches the record read from the storage unless a newer one has been cached by a write
+     * or the cache has been cleared since the epoch.
+     */
+    void fill(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord record, final long epoch) {
+        put(key, record, false, epoch);
+    }
+
+    /**
+     * Caches the written record unless a newer one is cached.
+     * If the cache has been cleared since the epoch, the key is dropped instead,
+     * as a record filled meanwhile may be older than the written one.
+     */
+    void update(@NotNull final ByteBuffer key, @NotNull final ExtendedRecord record, final long epoch) {
+        put(key, record, true, epoch);
+    }
+
+    /**
+     * Removes all the entries and starts a new epoch.
+     */
+    void clear() {
+        epoch.incrementAndGet();
+        for (final Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    long sizeInBytes() {
+        long size = 0;
+        for (final Shard shard : shards) {
+            size += shard.sizeInBytes();
+        }
+        return size;
+    }
+
+    private void put(@NotNull final ByteBuffer key,
+                     @NotNull final ExtendedRecord record,
+                     final boolean write,
+                     final long epoch) {
+        final Shard shard = shard(key);
+        // Values from the value log are too large and are sent from the file anyway
+        if (record.getValueRegion() != null || weight(key.remaining(), record.sizeInBytes()) > shard.capacity / 8) {
+            if (write) {
+                shard.remove(key);
+            }
+            return;
+        }
+        evictions.add(shard.put(key, record, write, epoch));
+    }
+
+    @NotNull
+    private Shard shard(@NotNull final ByteBuffer key) {
+        return shards[key.hashCode() & (SHARDS - 1)];
+    }
+
+    private static long weight(final int keySize, final int recordSize) {
+        return (long) keySize + recordSize + ENTRY_OVERHEAD;
+    }
+
+    private static final class Entry {
+        private final ByteBuffer key;
+        private byte[] record;
+
+        Entry(@NotNull final ByteBuffer key, @NotNull final byte[] record) {
+            this.key = key;
+            this.record = record;
+        }
+
+        long weight() {
+            return RecordCache.weight(key.remaining(), record.length);
+        }
+    }
+
+    private static final class Shard {
+        private final long capacity;
+        private final long protectedCapacity;
+        private final AtomicLong epoch;
+        private final Map<ByteBuffer, Entry> probation = new LinkedHashMap<>();
+        private final Map<ByteBuffer, Entry> protect = new LinkedHashMap<>();
+        private long probationSize;
+        private long protectedSize;
+
+        Shard(final long capacity, @NotNull final AtomicLong epoch) {
+            this.capacity = capacity;
+            this.epoch = epoch;
+            this.protectedCapacity = capacity * PROTECTED_PERCENT / 100;
+        }
+
+        @Nullable
+        synchronized byte[] get(@NotNull final ByteBuffer key) {
+            Entry entry = protect.remove(key);
+            if (entry != null) {
+                protect.put(entry.key, entry);
+                return entry.record;
+            }
+            entry = probation.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            probationSize -= entry.weight();
+            protect.put(entry.key, entry);
+            protectedSize += entry.weight();
+            // Keep the protected segment bounded by demoting its eldest entries to probation
+            final Iterator<Entry> eldest = protect.values().iterator();
+            while (protectedSize > protectedCapacity) {
+                final Entry demoted = eldest.next();
+                eldest.remove();
+                protectedSize -= demoted.weight();
+                probation.put(demoted.key, demoted);
+                probationSize += demoted.weight();
+            }
+            return entry.record;
+        }
+
+        /**
+         * Puts the record unless a newer one is cached.
+         * Records of equal timestamps are replaced only by writes.
+         * The epoch is checked under the lock of the shard, which {@link #clear()} takes after the epoch is changed,
+         * so a record of an earlier epoch can't get to the shard after it is cleared.
+         *
+         * @return number of evicted entries
+         */
+        synchronized int put(@NotNull final ByteBuffer key,
+                             @NotNull final ExtendedRecord record,
+                             final boolean write,
+                             final long expectedEpoch) {
+            if (epoch.get() != expectedEpoch) {
+                if (write) {
+                    remove(key);
+                }
+                return 0;
+            }
+            Entry entry = protect.get(key);
+            final boolean isProtected = entry != null;
+            if (entry == null) {
+                entry = probation.get(key);
+            }
+            if (entry == null) {
+                entry = new Entry(ByteBuffer.wrap(RocksByteBufferUtils.copyByteBuffer(key)), record.toBytes());
+                probation.put(entry.key, entry);
+                probationSize += entry.weight();
+                return evict();
+            }
+            final long cachedTimestamp = ExtendedRecord.fromBytes(ByteBuffer.wrap(entry.record)).getTimestamp();
+            if (write ? cachedTimestamp > record.getTimestamp() : cachedTimestamp >= record.getTimestamp()) {
+                return 0;
+            }
+            final long previousWeight = entry.weight();
+            entry.record = record.toBytes();
+            if (isProtected) {
+                protectedSize += entry.weight() - previousWeight;
+            } else {
+                probationSize += entry.weight() - previousWeight;
+            }
+            return evict();
+        }
+
+        synchronized void remove(@NotNull final ByteBuffer key) {
+            Entry entry = protect.remove(key);
+            if (entry != null) {
+                protectedSize -= entry.weight();
+                return;
+            }
+            entry = probation.remove(key);
+            if (entry != null) {
+                probationSize -= entry.weight();
+            }
+        }
+
+        synchronized long sizeInBytes() {
+            return probationSize + protectedSize;
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protect.clear();
+            probationSize = 0;
+            protectedSize = 0;
+        }
+
+        private int evict() {
+            int evicted = 0;
+            while (probationSize + protectedSize > capacity) {
+                final boolean fromProbation = !probation.isEmpty();
+                final Iterator<Entry> eldest = (fromProbation ? probation : protect).values().iterator();
+                final Entry entry = eldest.next();
+                eldest.remove();
+                if (fromProbation) {
+                    probationSize -= entry.weight();
+                } else {
+                    protectedSize -= entry.weight();
+                }
+                evicted++;
+            }
+            return evicted;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.utils.FastNoSuchElementException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Feed of records for {@link DAO#ingest}: {@code int keyLength, key, int recordLength, record} entries
+ * in the <b>ascending</b> order of the keys, where record is a serialized {@link ExtendedRecord}.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class RecordFeed {
+    private RecordFeed() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Writes an entry of the feed.
+     */
+    public static void write(@NotNull final ByteBuffer key,
+                             @NotNull final ExtendedRecord record,
+                             @NotNull final DataOutputStream out) throws IOException {
+        out.writeInt(key.remaining());
+        if (key.hasArray()) {
+            out.write(key.array(), key.arrayOffset() + key.position(), key.remaining());
+        } else {
+            final byte[] bytes = new byte[key.remaining()];
+            key.duplicate().get(bytes);
+            out.write(bytes);
+        }
+        final byte[] bytes = record.toBytes();
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads the feed lazily checking the order of the keys.
+     * The iterator throws {@link IllegalArgumentException} if the feed is broken or isn't sorted
+     * and {@link UncheckedIOException} if the stream can't be read.
+     */
+    @NotNull
+    public static Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> read(@NotNull final InputStream in) {
+        return new Reader(new DataInputStream(in));
+    }
+
+    private static final class Reader implements Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> {
+        private final DataInputStream in;
+        private ByteBuffer previous;
+        private Map.Entry<ByteBuffer, ExtendedRecord> next;
+
+        Reader(@NotNull final DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = readEntry();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<ByteBuffer, ExtendedRecord> next() {
+            if (!hasNext()) {
+                throw new FastNoSuchElementException();
+            }
+            final Map.Entry<ByteBuffer, ExtendedRecord> entry = next;
+            next = null;
+            return entry;
+        }
+
+        private Map.Entry<ByteBuffer, ExtendedRecord> readEntry() throws IOException {
+            final int keyLength;
+            try {
+                keyLength = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            try {
+                final ByteBuffer key = ByteBuffer.wrap(readBytes(keyLength));
+                if (previous != null && previous.compareTo(key) >= 0) {
+                    throw new IllegalArgumentException("Keys of the feed aren't ascending");
+                }
+                previous = key;
+                final ExtendedRecord record = readRecord(readBytes(in.readInt()));
+                // A pointer would refer to the value log of another node
+                if (record.isExternal()) {
+                    throw new IllegalArgumentException("Records of the feed can't be external");
+                }
+                return new AbstractMap.SimpleImmutableEntry<>(key, record);
+            } catch (EOFException e) {
+                throw new IllegalArgumentException("Feed is truncated", e);
+            }
+        }
+
+        @NotNull
+        private static ExtendedRecord readRecord(@NotNull final byte[] bytes) {
+            if (bytes.length == 0) {
+                throw new IllegalArgumentException("Empty record in the feed");
+            }
+            try {
+                return ExtendedRecord.fromBytes(bytes);
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Broken record in the feed", e);
+            }
+        }
+
+        @NotNull
+        private byte[] readBytes(final int length) throws IOException {
+            if (length < 0) {
+                throw new IllegalArgumentException("Negative length in the feed");
+            }
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.rocksdb.HistogramType;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
+import ru.mail.polis.utils.Metrics;
+
+/**
+ * RocksDB statistics and properties exported as gauges.
+ * The values are read on every rendering, and are {@code NaN} once the database is closed.
+ * Reads and {@link #close()} are synchronized, so the database isn't closed under a read.
+ *
+ * @author Pavel Pokatilo
+ */
+final class RocksMetrics {
+    private static final int LEVELS = 7;
+
+    private final RocksDB db;
+    private final Statistics statistics;
+    private boolean closed;
+
+    RocksMetrics(@NotNull final RocksDB db, @NotNull final Statistics statistics) {
+        this.db = db;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Registers the gauges.
+     */
+    void registerTo(@NotNull final Metrics metrics) {
+        metrics.counter("rocksdb_block_cache_hits_total", () -> ticker(TickerType.BLOCK_CACHE_HIT));
+        metrics.counter("rocksdb_block_cache_misses_total", () -> ticker(TickerType.BLOCK_CACHE_MISS));
+        metrics.gauge("rocksdb_block_cache_hit_ratio", this::blockCacheHitRatio);
+        metrics.counter("rocksdb_stall_micros_total", () -> ticker(TickerType.STALL_MICROS));
+        metrics.gauge("rocksdb_memtable_bytes", () -> property("rocksdb.cur-size-all-mem-tables"));
+        metrics.gauge("rocksdb_pending_compaction_bytes", () -> property("rocksdb.estimate-pending-compaction-bytes"));
+        metrics.gauge("rocksdb_estimated_keys", () -> property("rocksdb.estimate-num-keys"));
+        for (int level = 0; level < LEVELS; level++) {
+            final String property = "rocksdb.num-files-at-level" + level;
+            metrics.gauge("rocksdb_sst_files{level=\"" + level + "\"}", () -> stringProperty(property));
+        }
+        metrics.gauge("rocksdb_get_micros{quantile=\"0.99\"}", () -> p99(HistogramType.DB_GET));
+        metrics.gauge("rocksdb_write_micros{quantile=\"0.99\"}", () -> p99(HistogramType.DB_WRITE));
+    }
+
+    /**
+     * Makes the gauges stop reading the database, which is going to be closed.
+     */
+    synchronized void close() {
+        closed = true;
+    }
+
+    private synchronized double ticker(@NotNull final TickerType ticker) {
+        return closed ? Double.NaN : statistics.getTickerCount(ticker);
+    }
+
+    private double blockCacheHitRatio() {
+        final double hits = ticker(TickerType.BLOCK_CACHE_HIT);
+        final double total = hits + ticker(TickerType.BLOCK_CACHE_MISS);
+        return total > 0 ? hits / total : Double.NaN;
+    }
+
+    private synchronized double property(@NotNull final String name) {
+        if (closed) {
+            return Double.NaN;
+        }
+        try {
+            return db.getLongProperty(name);
+        } catch (RocksDBException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Reads the property which isn't available as a number, like {@code rocksdb.num-files-at-level<N>}.
+     */
+    private synchronized double stringProperty(@NotNull final String name) {
+        if (closed) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(db.getProperty(name).trim());
+        } catch (RocksDBException | NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private synchronized double p99(@NotNull final HistogramType histogram) {
+        return closed ? Double.NaN : statistics.getHistogramData(histogram).getPercentile99();
+    }
+}
@@ -1,12 +1,16 @@
 package ru.mail.polis.dao;
 
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.ReadOptions;
+import org.rocksdb.RocksDB;
 import org.rocksdb.RocksIterator;
+import org.rocksdb.Slice;
 import ru.mail.polis.Record;
 import ru.mail.polis.utils.RocksByteBufferUtils;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.UncheckedIOException;
 import java.util.Iterator;
 
 /**
@@ -18,18 +22,53 @@ import java.util.Iterator;
  **/
 public final class RocksRecordIter implements Iterator<Record>, Closeable {
     private final RocksIterator rocksIterator;
+    private final ReadOptions readOptions;
+    private final Slice upperBound;
+    private final ValueLog valueLog;
+    private final RangeTombstones rangeTombstones;
 
-    private RocksRecordIter(final RocksIterator rocksIterator, final ByteBuffer from) {
-        this.rocksIterator = rocksIterator;
+    private RocksRecordIter(final RocksDB db,
+                            final ReadOptions readOptions,
+                            @Nullable final Slice upperBound,
+                            final byte[] from,
+                            final ValueLog valueLog,
+                            final RangeTombstones rangeTombstones) {
+        this.rocksIterator = db.newIterator(readOptions);
+        this.readOptions = readOptions;
+        this.upperBound = upperBound;
+        this.valueLog = valueLog;
+        this.rangeTombstones = rangeTombstones;
         if (from == null) {
             this.rocksIterator.seekToFirst();
         } else {
-            this.rocksIterator.seek(RocksByteBufferUtils.copyByteBuffer(from));
+            this.rocksIterator.seek(from);
         }
     }
 
-    public static Iterator<Record> getIter(final RocksIterator rocksIterator, final ByteBuffer from) {
-        return new RocksRecordIter(rocksIterator, from);
+    /**
+     * Creates iterator over the keys from the lower bound (inclusive) to the upper bound (exclusive).
+     * The iterator owns the read options and closes them.
+     *
+     * @param db          database to iterate
+     * @param readOptions options with readahead, prefix seek, etc.
+     * @param from        unsigned lower bound, {@code null} to start from the first key
+     * @param to          unsigned upper bound, {@code null} to iterate to the end
+     * @param valueLog        log to resolve the values stored in it
+     * @param rangeTombstones removed ranges hiding the older records
+     */
+    static Iterator<Record> getIter(final RocksDB db,
+                                    final ReadOptions readOptions,
+                                    @Nullable final byte[] from,
+                                    @Nullable final byte[] to,
+                                    final ValueLog valueLog,
+                                    final RangeTombstones rangeTombstones) {
+        Slice upperBound = null;
+        if (to != null) {
+            // RocksDB stops reading at the bound itself instead of producing records past it
+            upperBound = new Slice(to);
+            readOptions.setIterateUpperBound(upperBound);
+        }
+        return new RocksRecordIter(db, readOptions, upperBound, from, valueLog, rangeTombstones);
     }
 
     @Override
@@ -41,7 +80,7 @@ public final class RocksRecordIter implements Iterator<Record>, Closeable {
     private void skipDeleted() {
         while (rocksIterator.isValid()) {
             ExtendedRecord record = ExtendedRecord.fromBytes(rocksIterator.value());
-            if (record.isDeleted())
+            if (record.isDeleted() || rangeTombstones.shadows(rocksIterator.key(), record.getTimestamp()))
                 rocksIterator.next();
             else
                 break;
@@ -52,7 +91,12 @@ public final class RocksRecordIter implements Iterator<Record>, Closeable {
     @Override
     public Record next() {
         skipDeleted();
-        final ExtendedRecord record = ExtendedRecord.fromBytes(rocksIterator.value());
+        final ExtendedRecord record;
+        try {
+            record = valueLog.resolve(ExtendedRecord.fromBytes(rocksIterator.value()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
         final Record current = Record.of(
                 RocksByteBufferUtils.fromUnsignedByteArray(rocksIterator.key()),
                 record.getValue());
@@ -66,5 +110,9 @@ public final class RocksRecordIter implements Iterator<Record>, Closeable {
     @Override
     public void close() throws IOException {
         rocksIterator.close();
+        readOptions.close();
+        if (upperBound != null) {
+            upperBound.close();
+        }
     }
 }
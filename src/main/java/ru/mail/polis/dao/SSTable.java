@@ -0,0 +1,221 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.utils.RocksByteBufferUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted table of {@link LsmDAO} persisted to disk and read through a memory mapping.
+ *
+ * <p>File layout: {@code [cell]* [offset]* [replaced]* replacedCount rows}, where every cell is
+ * {@code keyLength key recordLength record}, offsets point to the cells and replaced are the generations
+ * of the tables a compacted table replaces, so they are deleted on open if the compaction has been interrupted.
+ * All the numbers are big-endian ints, so a table is limited to 2 GB.
+ *
+ * @author Pavel Pokatilo
+ */
+final class SSTable implements Table {
+    private final File file;
+    private final int generation;
+    private final ByteBuffer cells;
+    private final IntBuffer offsets;
+    private final int rows;
+    private final int[] replaced;
+
+    private SSTable(@NotNull final File file, final int generation, @NotNull final ByteBuffer mapped) {
+        this.file = file;
+        this.generation = generation;
+        final int limit = mapped.limit();
+        this.rows = mapped.getInt(limit - Integer.BYTES);
+        final int replacedCount = mapped.getInt(limit - Integer.BYTES * 2);
+        final int replacedStart = limit - Integer.BYTES * 2 - replacedCount * Integer.BYTES;
+        this.replaced = new int[replacedCount];
+        slice(mapped, replacedStart, replacedCount * Integer.BYTES).asIntBuffer().get(replaced);
+        final int offsetsStart = replacedStart - rows * Integer.BYTES;
+        this.offsets = slice(mapped, offsetsStart, rows * Integer.BYTES).asIntBuffer();
+        this.cells = slice(mapped, 0, offsetsStart);
+    }
+
+    /**
+     * Maps existing table file to memory.
+     *
+     * @param file       table file
+     * @param generation generation of the table, bigger is newer
+     * @return table
+     * @throws IOException if the file can't be mapped
+     */
+    @NotNull
+    static SSTable open(@NotNull final File file, final int generation) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < Integer.BYTES * 2 || size > Integer.MAX_VALUE) {
+                throw new IOException("Broken table file: " + file);
+            }
+            return new SSTable(file, generation, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * Writes sorted cells to the file and syncs it to disk.
+     *
+     * @param file  destination file
+     * @param cells cells in ascending key order without duplicates
+     * @throws IOException if the cells don't fit into a table or can't be written
+     */
+    static void write(@NotNull final File file, @NotNull final Iterator<Cell> cells) throws IOException {
+        write(file, cells, Collections.emptyList());
+    }
+
+    /**
+     * Writes sorted cells of a compaction to the file and syncs it to disk.
+     *
+     * @param file     destination file
+     * @param cells    cells in ascending key order without duplicates
+     * @param replaced generations of the compacted tables except the one the file takes the place of
+     * @throws IOException if the cells don't fit into a table or can't be written
+     */
+    static void write(@NotNull final File file,
+                      @NotNull final Iterator<Cell> cells,
+                      @NotNull final Collection<Integer> replaced) throws IOException {
+        final ByteArrayOutputStream offsetsBytes = new ByteArrayOutputStream();
+        final DataOutputStream offsetsOut = new DataOutputStream(offsetsBytes);
+        try (FileOutputStream fileOut = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            long offset = 0;
+            int rows = 0;
+            while (cells.hasNext()) {
+                final Cell cell = cells.next();
+                final byte[] key = RocksByteBufferUtils.copyByteBuffer(cell.getKey());
+                final byte[] record = cell.getRecord().toBytes();
+                offsetsOut.writeInt((int) offset);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(record.length);
+                out.write(record);
+                offset += Integer.BYTES * 2 + key.length + record.length;
+                rows++;
+                if (offset + (long) rows * Integer.BYTES > Integer.MAX_VALUE - Integer.BYTES * (2 + replaced.size())) {
+                    throw new IOException("Table is too large: " + file);
+                }
+            }
+            offsetsBytes.writeTo(out);
+            for (final int replacedGeneration : replaced) {
+                out.writeInt(replacedGeneration);
+            }
+            out.writeInt(replaced.size());
+            out.writeInt(rows);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    @NotNull
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Generations of the tables this compacted table replaces, empty for a flushed table.
+     */
+    @NotNull
+    int[] getReplaced() {
+        return replaced.clone();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return new Iterator<>() {
+            private int position = position(from);
+
+            @Override
+            public boolean hasNext() {
+                return position < rows;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return cellAt(position++);
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public ExtendedRecord get(@NotNull final ByteBuffer key) {
+        final int position = position(key);
+        if (position < rows && keyAt(position).equals(key)) {
+            return recordAt(position);
+        }
+        return null;
+    }
+
+    /**
+     * Searches for the first row with the key not less than the given one.
+     */
+    private int position(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = rows - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int cmp = keyAt(mid).compareTo(key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return left;
+    }
+
+    @NotNull
+    private ByteBuffer keyAt(final int row) {
+        final int offset = offsets.get(row);
+        return slice(cells, offset + Integer.BYTES, cells.getInt(offset));
+    }
+
+    @NotNull
+    private ExtendedRecord recordAt(final int row) {
+        final int offset = offsets.get(row);
+        final int recordOffset = offset + Integer.BYTES + cells.getInt(offset);
+        return ExtendedRecord.fromBytes(
+                slice(cells, recordOffset + Integer.BYTES, cells.getInt(recordOffset)));
+    }
+
+    @NotNull
+    private Cell cellAt(final int row) {
+        return new Cell(keyAt(row), recordAt(row), generation);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int offset, final int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(offset + length).position(offset);
+        return duplicate.slice();
+    }
+}
@@ -0,0 +1,218 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter growing with the number of keys.
+ * When the last stage is full, a new one twice as large and with a twice as low false positive
+ * probability is added, so the total false positive probability stays under the configured one.
+ * Keys can be added concurrently with the lookups.
+ *
+ * @author Pavel Pokatilo
+ */
+final class ScalableBloomFilter {
+    private static final int FORMAT = 0x42464C31;
+    private static final double LN2 = Math.log(2);
+
+    private final double falsePositiveRate;
+    private volatile Stage[] stages;
+
+    /**
+     * Creates empty filter.
+     *
+     * @param capacity          number of keys of the first stage
+     * @param falsePositiveRate target false positive probability of the whole filter
+     */
+    ScalableBloomFilter(final long capacity, final double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.stages = new Stage[]{new Stage(capacity, falsePositiveRate / 2)};
+    }
+
+    private ScalableBloomFilter(final double falsePositiveRate, @NotNull final Stage[] stages) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.stages = stages;
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        for (final Stage stage : stages) {
+            if (stage.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void add(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final Stage[] current = stages;
+        for (final Stage stage : current) {
+            if (stage.mightContain(hash)) {
+                return;
+            }
+        }
+        Stage last = current[current.length - 1];
+        if (last.isFull()) {
+            last = grow(last);
+        }
+        last.add(hash);
+    }
+
+    private synchronized Stage grow(@NotNull final Stage full) {
+        final Stage[] current = stages;
+        final Stage last = current[current.length - 1];
+        if (last != full) {
+            return last;
+        }
+        final Stage next = new Stage(full.capacity * 2, full.falsePositiveRate / 2);
+        final Stage[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = next;
+        stages = grown;
+        return next;
+    }
+
+    /**
+     * Provides the number of added keys.
+     */
+    long size() {
+        long size = 0;
+        for (final Stage stage : stages) {
+            size += stage.count.get();
+        }
+        return size;
+    }
+
+    /**
+     * Provides the memory taken by the bits in bytes.
+     */
+    long sizeInBytes() {
+        long size = 0;
+        for (final Stage stage : stages) {
+            size += (long) stage.bits.length() * Long.BYTES;
+        }
+        return size;
+    }
+
+    /**
+     * Estimates the current false positive probability from the number of keys in the stages.
+     */
+    double expectedFalsePositiveRate() {
+        double negative = 1;
+        for (final Stage stage : stages) {
+            negative *= 1 - stage.expectedFalsePositiveRate();
+        }
+        return 1 - negative;
+    }
+
+    void writeTo(@NotNull final DataOutput out) throws IOException {
+        final Stage[] current = stages;
+        out.writeInt(FORMAT);
+        out.writeDouble(falsePositiveRate);
+        out.writeInt(current.length);
+        for (final Stage stage : current) {
+            out.writeLong(stage.capacity);
+            out.writeDouble(stage.falsePositiveRate);
+            out.writeLong(stage.count.get());
+            for (int i = 0; i < stage.bits.length(); i++) {
+                out.writeLong(stage.bits.get(i));
+            }
+        }
+    }
+
+    @NotNull
+    static ScalableBloomFilter readFrom(@NotNull final DataInput in) throws IOException {
+        if (in.readInt() != FORMAT) {
+            throw new IOException("Unknown filter format");
+        }
+        final double falsePositiveRate = in.readDouble();
+        final Stage[] stages = new Stage[in.readInt()];
+        for (int i = 0; i < stages.length; i++) {
+            final Stage stage = new Stage(in.readLong(), in.readDouble());
+            stage.count.set(in.readLong());
+            for (int j = 0; j < stage.bits.length(); j++) {
+                stage.bits.set(j, in.readLong());
+            }
+            stages[i] = stage;
+        }
+        return new ScalableBloomFilter(falsePositiveRate, stages);
+    }
+
+    /**
+     * 64-bit FNV-1a with the MurmurHash3 finalizer for better avalanche.
+     */
+    private static long hash(@NotNull final ByteBuffer key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = key.position(); i < key.limit(); i++) {
+            hash ^= key.get(i) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Stage {
+        private final long capacity;
+        private final double falsePositiveRate;
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashes;
+        private final AtomicLong count = new AtomicLong();
+
+        Stage(final long capacity, final double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            final long optimalBits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+            final long words = Math.max(1, (optimalBits + Long.SIZE - 1) / Long.SIZE);
+            this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, words));
+            this.bitCount = (long) bits.length() * Long.SIZE;
+            this.hashes = Math.max(1, (int) Math.round((double) bitCount / capacity * LN2));
+        }
+
+        boolean isFull() {
+            return count.get() >= capacity;
+        }
+
+        boolean mightContain(final long hash) {
+            final int first = (int) hash;
+            final int second = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                final long bit = Math.floorMod(first + (long) i * second, bitCount);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void add(final long hash) {
+            final int first = (int) hash;
+            final int second = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                final long bit = Math.floorMod(first + (long) i * second, bitCount);
+                final int word = (int) (bit >>> 6);
+                final long mask = 1L << bit;
+                long current = bits.get(word);
+                while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                    current = bits.get(word);
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        double expectedFalsePositiveRate() {
+            return Math.pow(1 - Math.exp(-(double) hashes * count.get() / bitCount), hashes);
+        }
+    }
+}
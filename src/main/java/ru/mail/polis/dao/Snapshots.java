@@ -0,0 +1,232 @@
+package ru.mail.polis.dao;
+
+import com.google.common.base.Charsets;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Files;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Transfer of the storage snapshots made by {@link DAO#checkpoint()} between nodes.
+ * A snapshot is sent as a sequence of files, each one preceded by
+ * {@code short} length of the relative path, the path in UTF-8 and {@code long} length of the file.
+ *
+ * <p>A new node is bootstrapped from a snapshot before the storage is opened:
+ * {@code dao.bootstrap.dir} copies a local snapshot, {@code dao.bootstrap.peer} fetches one from a running node.
+ * The snapshot is received into a sibling directory, which replaces the empty storage directory only when
+ * the snapshot is complete, so an interrupted bootstrap leaves the storage empty and is repeated on the next start.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class Snapshots {
+    public static final String PATH = "/v0/admin/snapshot";
+    static final String DIRECTORY = "checkpoints";
+    private static final String BOOTSTRAP_SUFFIX = ".bootstrap";
+    private static final Log log = LogFactory.getLog(Snapshots.class);
+    private static final int MAX_REGION = 1 << 30;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Snapshots() {
+        // Not instantiatable
+    }
+
+    /**
+     * Provides a new directory for a checkpoint of the storage.
+     */
+    @NotNull
+    static File newDirectory(@NotNull final File data) throws IOException {
+        final File checkpoints = new File(data, DIRECTORY);
+        java.nio.file.Files.createDirectories(checkpoints.toPath());
+        return new File(checkpoints, Long.toString(System.nanoTime()));
+    }
+
+    /**
+     * Sends the snapshot to the session by sendfile and deletes the snapshot once it is sent.
+     *
+     * @param snapshot directory made by {@link DAO#checkpoint()}
+     * @param session  session to respond to
+     */
+    public static void send(@NotNull final File snapshot,
+                            @NotNull final StreamHttpSession session) throws IOException {
+        final List<byte[]> prefixes = new ArrayList<>();
+        final List<ValueRegion> regions = new ArrayList<>();
+        final List<RandomAccessFile> opened = new ArrayList<>();
+        final Closeable cleanup = () -> {
+            for (final RandomAccessFile file : opened) {
+                file.close();
+            }
+            Files.recursiveDelete(snapshot);
+        };
+        try {
+            for (final Path path : list(snapshot)) {
+                final RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+                opened.add(file);
+                final long length = file.length();
+                prefixes.add(header(snapshot.toPath().relativize(path).toString(), length));
+                regions.add(new ValueRegion(file, 0, (int) Math.min(length, MAX_REGION)));
+                for (long offset = MAX_REGION; offset < length; offset += MAX_REGION) {
+                    prefixes.add(new byte[0]);
+                    regions.add(new ValueRegion(file, offset, (int) Math.min(length - offset, MAX_REGION)));
+                }
+            }
+        } catch (IOException e) {
+            cleanup.close();
+            throw e;
+        }
+        session.sendRegions(prefixes, regions, cleanup);
+    }
+
+    /**
+     * Fills the empty storage directory from the snapshot configured with {@code dao.bootstrap.*} properties.
+     */
+    static void bootstrap(@NotNull final File data) throws IOException {
+        final String directory = System.getProperty("dao.bootstrap.dir");
+        final String peer = System.getProperty("dao.bootstrap.peer");
+        if (directory == null && peer == null) {
+            return;
+        }
+        final String[] existing = data.list();
+        if (existing != null && existing.length > 0) {
+            log.warn("Storage " + data + " isn't empty, bootstrap is skipped");
+            return;
+        }
+        final File target = data.getAbsoluteFile();
+        final File temp = new File(target.getParentFile(), target.getName() + BOOTSTRAP_SUFFIX);
+        // The directory of an interrupted bootstrap is incomplete
+        discard(temp);
+        java.nio.file.Files.createDirectories(temp.toPath());
+        final long start = System.currentTimeMillis();
+        try {
+            if (directory == null) {
+                fetch(peer, temp);
+            } else {
+                copy(new File(directory), temp);
+            }
+            // Renaming replaces the empty storage directory at once
+            java.nio.file.Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            discard(temp);
+            throw e;
+        }
+        log.info("Storage " + data + " is bootstrapped in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Deletes the directory of a failed checkpoint or bootstrap if there is one.
+     */
+    static void discard(@NotNull final File directory) {
+        if (!directory.exists()) {
+            return;
+        }
+        try {
+            Files.recursiveDelete(directory);
+        } catch (IOException e) {
+            log.error("Can't delete " + directory, e);
+        }
+    }
+
+    /**
+     * Copies the snapshot directory to the storage directory.
+     */
+    public static void copy(@NotNull final File snapshot, @NotNull final File data) throws IOException {
+        for (final Path path : list(snapshot)) {
+            final Path target = data.toPath().resolve(snapshot.toPath().relativize(path));
+            java.nio.file.Files.createDirectories(target.getParent());
+            java.nio.file.Files.copy(path, target, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Downloads the snapshot from the running node to the storage directory.
+     *
+     * @param peer node endpoint like {@code http://localhost:8080}
+     * @param data storage directory
+     */
+    public static void fetch(@NotNull final String peer, @NotNull final File data) throws IOException {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(peer + PATH)).GET().build();
+        final HttpResponse<InputStream> response;
+        try {
+            response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching snapshot from " + peer, e);
+        }
+        try (InputStream body = response.body()) {
+            if (response.statusCode() != 200) {
+                throw new IOException("Can't fetch snapshot from " + peer + ": " + response.statusCode());
+            }
+            receive(body, data);
+        }
+    }
+
+    /**
+     * Writes the files of the snapshot stream to the storage directory.
+     */
+    static void receive(@NotNull final InputStream stream, @NotNull final File data) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+        final Path root = data.toPath().toAbsolutePath().normalize();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        while (true) {
+            final int nameLength = in.read();
+            if (nameLength < 0) {
+                return;
+            }
+            final byte[] name = new byte[(nameLength << 8) | in.readUnsignedByte()];
+            in.readFully(name);
+            final Path target = root.resolve(new String(name, Charsets.UTF_8)).normalize();
+            if (!target.startsWith(root)) {
+                throw new IOException("Snapshot file is outside of the storage: " + target);
+            }
+            java.nio.file.Files.createDirectories(target.getParent());
+            long remaining = in.readLong();
+            try (OutputStream out = java.nio.file.Files.newOutputStream(target)) {
+                while (remaining > 0) {
+                    final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Snapshot is truncated at " + target);
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private static byte[] header(@NotNull final String name, final long length) {
+        final byte[] bytes = name.getBytes(Charsets.UTF_8);
+        return ByteBuffer.allocate(Short.BYTES + bytes.length + Long.BYTES)
+                .putShort((short) bytes.length)
+                .put(bytes)
+                .putLong(length)
+                .array();
+    }
+
+    @NotNull
+    private static List<Path> list(@NotNull final File directory) throws IOException {
+        try (Stream<Path> paths = java.nio.file.Files.walk(directory.toPath())) {
+            return paths.filter(java.nio.file.Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.Cache;
+import org.rocksdb.CompressionType;
+import org.rocksdb.Filter;
+import org.rocksdb.Options;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tuning of {@link DAOImplementation} chosen with {@code dao.profile} system property.
+ * Every setting of the profile can be overridden with its own {@code dao.*} property,
+ * see {@link #load()}.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class StorageConfig {
+    static final String PROFILE_PROPERTY = "dao.profile";
+    private static final int LEVELS = 7;
+    private static final long MB = 1024L * 1024;
+
+    private final Profile profile;
+    private final long blockCacheBytes;
+    private final long blockSize;
+    private final int bloomBits;
+    private final long writeBufferSize;
+    private final int maxWriteBuffers;
+    private final int maxBackgroundJobs;
+    private final long readaheadSize;
+
+    /**
+     * Storage profiles named after the workload they are tuned for.
+     */
+    public enum Profile {
+        /**
+         * RocksDB defaults.
+         */
+        DEFAULT(8 * MB, 4 * 1024, 0, 64 * MB, 2, 2, 4, 0L,
+                0, CompressionType.SNAPPY_COMPRESSION, CompressionType.DISABLE_COMPRESSION_OPTION),
+        /**
+         * Large block cache and Bloom filters, so a get reads at most one block from the disk.
+         */
+        POINT_LOOKUP(64 * MB, 4 * 1024, 10, 32 * MB, 2, 2, 4, 0L,
+                2, CompressionType.LZ4_COMPRESSION, CompressionType.LZ4_COMPRESSION),
+        /**
+         * Large blocks and readahead for sequential reads, no filters as they don't help seeks.
+         */
+        RANGE_SCAN(64 * MB, 32 * 1024, 0, 64 * MB, 2, 4, 4, 2 * MB,
+                0, CompressionType.LZ4_COMPRESSION, CompressionType.ZSTD_COMPRESSION),
+        /**
+         * Large memtables and more compaction threads, so writes aren't stalled by flushes.
+         */
+        WRITE_HEAVY(16 * MB, 16 * 1024, 10, 128 * MB, 4, 8, 8, 0L,
+                2, CompressionType.LZ4_COMPRESSION, CompressionType.ZSTD_COMPRESSION),
+        /**
+         * Small memtables and cache holding index and filter blocks too, so memory use stays bounded.
+         */
+        LOW_MEMORY(4 * MB, 16 * 1024, 10, 4 * MB, 2, 2, 4, 0L,
+                0, CompressionType.LZ4_COMPRESSION, CompressionType.ZSTD_COMPRESSION);
+
+        private final long blockCacheBytes;
+        private final long blockSize;
+        private final int bloomBits;
+        private final long writeBufferSize;
+        private final int maxWriteBuffers;
+        private final int maxBackgroundJobs;
+        private final int level0Trigger;
+        private final long readaheadSize;
+        /**
+         * Number of the upper levels which are rewritten too often to be worth compressing.
+         */
+        private final int uncompressedLevels;
+        private final CompressionType compression;
+        private final CompressionType bottommostCompression;
+
+        Profile(final long blockCacheBytes,
+                final long blockSize,
+                final int bloomBits,
+                final long writeBufferSize,
+                final int maxWriteBuffers,
+                final int maxBackgroundJobs,
+                final int level0Trigger,
+                final long readaheadSize,
+                final int uncompressedLevels,
+                @NotNull final CompressionType compression,
+                @NotNull final CompressionType bottommostCompression) {
+            this.blockCacheBytes = blockCacheBytes;
+            this.blockSize = blockSize;
+            this.bloomBits = bloomBits;
+            this.writeBufferSize = writeBufferSize;
+            this.maxWriteBuffers = maxWriteBuffers;
+            this.maxBackgroundJobs = maxBackgroundJobs;
+            this.level0Trigger = level0Trigger;
+            this.readaheadSize = readaheadSize;
+            this.uncompressedLevels = uncompressedLevels;
+            this.compression = compression;
+            this.bottommostCompression = bottommostCompression;
+        }
+
+        /**
+         * Parses the profile name, e.g. {@code point-lookup}.
+         */
+        @NotNull
+        public static Profile of(@NotNull final String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+
+        @NotNull
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+    }
+
+    /**
+     * Creates config of the profile without overrides.
+     */
+    public StorageConfig(@NotNull final Profile profile) {
+        this(profile,
+                profile.blockCacheBytes,
+                profile.blockSize,
+                profile.bloomBits,
+                profile.writeBufferSize,
+                profile.maxWriteBuffers,
+                profile.maxBackgroundJobs,
+                profile.readaheadSize);
+    }
+
+    private StorageConfig(@NotNull final Profile profile,
+                          final long blockCacheBytes,
+                          final long blockSize,
+                          final int bloomBits,
+                          final long writeBufferSize,
+                          final int maxWriteBuffers,
+                          final int maxBackgroundJobs,
+                          final long readaheadSize) {
+        this.profile = profile;
+        this.blockCacheBytes = blockCacheBytes;
+        this.blockSize = blockSize;
+        this.bloomBits = bloomBits;
+        this.writeBufferSize = writeBufferSize;
+        this.maxWriteBuffers = maxWriteBuffers;
+        this.maxBackgroundJobs = maxBackgroundJobs;
+        this.readaheadSize = readaheadSize;
+    }
+
+    /**
+     * Creates config of {@code dao.profile} ({@code default} if not set) overridden with
+     * {@code dao.block.cache.bytes}, {@code dao.block.size}, {@code dao.bloom.bits}, {@code dao.memtable.bytes},
+     * {@code dao.memtable.count}, {@code dao.background.jobs} and {@code dao.scan.readahead} system properties.
+     */
+    @NotNull
+    public static StorageConfig load() {
+        final Profile profile = Profile.of(System.getProperty(PROFILE_PROPERTY, Profile.DEFAULT.getName()));
+        return new StorageConfig(
+                profile,
+                Long.getLong("dao.block.cache.bytes", profile.blockCacheBytes),
+                Long.getLong("dao.block.size", profile.blockSize),
+                Integer.getInteger("dao.bloom.bits", profile.bloomBits),
+                Long.getLong("dao.memtable.bytes", profile.writeBufferSize),
+                Integer.getInteger("dao.memtable.count", profile.maxWriteBuffers),
+                Integer.getInteger("dao.background.jobs", profile.maxBackgroundJobs),
+                Long.getLong("dao.scan.readahead", profile.readaheadSize));
+    }
+
+    @NotNull
+    public Profile getProfile() {
+        return profile;
+    }
+
+    public long getBlockCacheBytes() {
+        return blockCacheBytes;
+    }
+
+    public int getBloomBits() {
+        return bloomBits;
+    }
+
+    public long getReadaheadSize() {
+        return readaheadSize;
+    }
+
+    /**
+     * Applies the settings to the options.
+     *
+     * @param options     options of the database to open
+     * @param blockCache  cache of {@link #getBlockCacheBytes()} bytes, which is closed by the caller
+     * @param bloomFilter filter of {@link #getBloomBits()} bits per key or {@code null} if the bits are 0,
+     *                    which is closed by the caller
+     */
+    void applyTo(@NotNull final Options options,
+                 @NotNull final Cache blockCache,
+                 @Nullable final Filter bloomFilter) {
+        final BlockBasedTableConfig table = new BlockBasedTableConfig()
+                .setBlockCache(blockCache)
+                .setBlockSize(blockSize)
+                // Charged to the block cache, so the memory isn't growing with the number of files
+                .setCacheIndexAndFilterBlocks(profile == Profile.LOW_MEMORY)
+                .setPinL0FilterAndIndexBlocksInCache(profile == Profile.LOW_MEMORY);
+        if (bloomFilter != null) {
+            table.setFilterPolicy(bloomFilter);
+        }
+        final List<CompressionType> compression = new ArrayList<>(LEVELS);
+        for (int level = 0; level < LEVELS; level++) {
+            compression.add(level < profile.uncompressedLevels ? CompressionType.NO_COMPRESSION : profile.compression);
+        }
+        options.setTableFormatConfig(table)
+                .setWriteBufferSize(writeBufferSize)
+                .setMaxWriteBufferNumber(maxWriteBuffers)
+                .setMaxBackgroundJobs(maxBackgroundJobs)
+                .setLevel0FileNumCompactionTrigger(profile.level0Trigger)
+                .setNumLevels(LEVELS)
+                .setCompressionPerLevel(compression)
+                .setBottommostCompressionType(profile.bottommostCompression);
+    }
+
+    @Override
+    public String toString() {
+        return profile.getName()
+                + " {blockCache=" + blockCacheBytes
+                + ", blockSize=" + blockSize
+                + ", bloomBits=" + bloomBits
+                + ", memtable=" + writeBufferSize + "x" + maxWriteBuffers
+                + ", backgroundJobs=" + maxBackgroundJobs
+                + ", readahead=" + readaheadSize + "}";
+    }
+}
@@ -1,17 +1,24 @@
 package ru.mail.polis.dao;
 
 import com.google.common.base.Charsets;
+import one.nio.http.HttpException;
 import one.nio.http.HttpServer;
 import one.nio.http.HttpSession;
+import one.nio.http.Request;
 import one.nio.http.Response;
 import one.nio.net.Socket;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import ru.mail.polis.Record;
 import ru.mail.polis.utils.RocksByteBufferUtils;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToIntFunction;
 
 public class StreamHttpSession extends HttpSession {
     private static final Log log = LogFactory.getLog(StreamHttpSession.class);
@@ -21,34 +28,174 @@ public class StreamHttpSession extends HttpSession {
     private static final byte[] CRLF = "\r\n".getBytes(Charsets.UTF_8);
     private static final byte[] DELIMITER = "\n".getBytes(Charsets.UTF_8);
     private static final byte[] EMPTY = "0\r\n\r\n".getBytes(Charsets.UTF_8);
+    private static final int MAX_REQUEST_BODY = Integer.getInteger("http.max.body", 4 * 1024 * 1024);
 
 
+    private final ToIntFunction<Request> bodyRoom;
+
     public StreamHttpSession(final Socket socket, final HttpServer server) {
+        this(socket, server, request -> 0);
+    }
+
+    /**
+     * Creates session reading the bodies after the room reserved in front of them,
+     * so a value can be framed with the record header without copying, see {@link ExtendedRecord#frame}.
+     *
+     * @param bodyRoom bytes to reserve in front of the body of the request, which has its headers parsed
+     */
+    public StreamHttpSession(final Socket socket, final HttpServer server, final ToIntFunction<Request> bodyRoom) {
         super(socket, server);
+        this.bodyRoom = bodyRoom;
     }
 
     /**
      * Initialize and start chain of chunk writings to the session response.
+     * The iterator is closed when it is exhausted, the session is closed or the stream fails.
      *
      * @param iterator iterator from DAO
      * @throws IOException in case of casualties
      */
-    public void openStream(final Iterator<Record> iterator) throws IOException {
+    public synchronized void openStream(final Iterator<Record> iterator) throws IOException {
         this.iterator = iterator;
+        try {
+            if (handling == null) {
+                throw new IOException("Out of order response");
+            }
+            final Response response = new Response(Response.OK);
+            response.addHeader(keepAlive() ? "Connection: Keep-Alive" : "Connection: close");
+            response.addHeader("Transfer-Encoding: chunked");
+            writeResponse(response, false);
+            writeNextRecord();
+        } catch (IOException e) {
+            closeIterator();
+            throw e;
+        }
+    }
+
+    /**
+     * Responds with the prefix followed by the value sent from the value log file by sendfile.
+     *
+     * @param prefix bytes preceding the value in the body
+     * @param region value to send
+     * @throws IOException in case of casualties
+     */
+    public void sendRegion(final byte[] prefix, final ValueRegion region) throws IOException {
+        sendRegions(Collections.singletonList(prefix), Collections.singletonList(region), null);
+    }
+
+    /**
+     * Responds with the regions sent by sendfile, each one preceded by its prefix.
+     *
+     * @param prefixes  bytes preceding each region in the body
+     * @param regions   regions to send
+     * @param resources closed once all the regions are sent or the session is closed, may be {@code null}
+     * @throws IOException in case of casualties
+     */
+    public synchronized void sendRegions(final List<byte[]> prefixes,
+                                         final List<ValueRegion> regions,
+                                         final Closeable resources) throws IOException {
+        final Release release = new Release(resources);
+        try {
+            if (handling == null) {
+                throw new IOException("Out of order response");
+            }
+            long length = 0;
+            for (int i = 0; i < regions.size(); i++) {
+                length += prefixes.get(i).length + regions.get(i).getLength();
+            }
+            final Response response = new Response(Response.OK);
+            response.addHeader("Content-Length: " + length);
+            response.addHeader(keepAlive() ? "Connection: Keep-Alive" : "Connection: close");
+            writeResponse(response, false);
+            for (int i = 0; i < regions.size(); i++) {
+                final byte[] prefix = prefixes.get(i);
+                if (prefix.length > 0) {
+                    write(prefix, 0, prefix.length);
+                }
+                if (regions.get(i).getLength() > 0) {
+                    release.retain();
+                    write(new RegionQueueItem(regions.get(i), release));
+                }
+            }
+        } finally {
+            release.release();
+        }
+        finishResponse();
+    }
+
+    /**
+     * Responds with the response encoded in advance, which is written without building it again.
+     *
+     * @param keepAlive  response encoded with {@code Connection: Keep-Alive} header
+     * @param close      response encoded with {@code Connection: close} header
+     * @param bodyLength length of the body at the end of the response, which isn't sent for HEAD requests
+     * @throws IOException in case of casualties
+     */
+    public synchronized void sendEncoded(final byte[] keepAlive,
+                                         final byte[] close,
+                                         final int bodyLength) throws IOException {
         if (handling == null) {
             throw new IOException("Out of order response");
         }
-        final Response response = new Response(Response.OK);
-        response.addHeader(keepAlive() ? "Connection: Keep-Alive" : "Connection: close");
-        response.addHeader("Transfer-Encoding: chunked");
-        writeResponse(response, false);
-        writeNextRecord();
+        final byte[] response = keepAlive() ? keepAlive : close;
+        final int length = handling.getMethod() == Request.METHOD_HEAD ? response.length - bodyLength : response.length;
+        write(response, 0, length);
+        finishResponse();
+    }
+
+    @Override
+    protected int getMaxRequestBodyLength() {
+        return MAX_REQUEST_BODY;
+    }
+
+    /**
+     * Reads the body after the room reserved for the request, the room is then the difference between
+     * the length of the body and {@code Content-Length}.
+     */
+    @Override
+    protected int startParsingRequestBody(final String contentLength,
+                                          final byte[] buffer,
+                                          final int bufferOffset,
+                                          final int bufferLength) throws IOException, HttpException {
+        final int room = bodyRoom.applyAsInt(parsing);
+        if (room == 0) {
+            return super.startParsingRequestBody(contentLength, buffer, bufferOffset, bufferLength);
+        }
+        final int length;
+        try {
+            length = Integer.parseInt(contentLength.trim());
+        } catch (NumberFormatException e) {
+            throw new HttpException("Invalid Content-Length header");
+        }
+        if (length < 0) {
+            throw new HttpException("Invalid Content-Length header");
+        }
+        if (length > getMaxRequestBodyLength()) {
+            throw new BufferOverflowException();
+        }
+        final byte[] body = new byte[room + length];
+        final int read = Math.min(bufferLength, length);
+        System.arraycopy(buffer, bufferOffset, body, room, read);
+        requestBodyOffset = room + read;
+        parsing.setBody(body);
+        return read;
     }
 
     @Override
     protected void processWrite() throws Exception {
         super.processWrite();
-        writeNextRecord();
+        // Plain responses and values sent from files may be written in several attempts too
+        synchronized (this) {
+            if (iterator != null) {
+                writeNextRecord();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        closeIterator();
     }
 
     private void writeNextRecord() throws IOException {
@@ -90,6 +237,10 @@ public class StreamHttpSession extends HttpSession {
 
     private void closeStream() throws IOException {
         write(EMPTY, 0, EMPTY.length);
+        finishResponse();
+    }
+
+    private void finishResponse() throws IOException {
         server.incRequestsProcessed();
 
         if (!keepAlive()) {
@@ -106,10 +257,12 @@ public class StreamHttpSession extends HttpSession {
     }
 
     private void closeIterator() {
-        try {
-            ((RocksRecordIter) iterator).close();
-        } catch (IOException exception) {
-            log.error("Exception while close iterator", exception);
+        if (iterator instanceof Closeable) {
+            try {
+                ((Closeable) iterator).close();
+            } catch (IOException exception) {
+                log.error("Exception while close iterator", exception);
+            }
         }
         iterator = null;
     }
@@ -120,4 +273,63 @@ public class StreamHttpSession extends HttpSession {
                 ? !"close".equalsIgnoreCase(connection)
                 : "Keep-Alive".equalsIgnoreCase(connection);
     }
+
+    /**
+     * Closes the resources when the last of the regions using them is released.
+     * The sender holds one more reference until all the regions are queued.
+     */
+    private static final class Release {
+        private final Closeable resources;
+        private int pending = 1;
+
+        Release(final Closeable resources) {
+            this.resources = resources;
+        }
+
+        synchronized void retain() {
+            pending++;
+        }
+
+        synchronized void release() {
+            if (--pending == 0 && resources != null) {
+                try {
+                    resources.close();
+                } catch (IOException exception) {
+                    log.error("Exception while releasing sent files", exception);
+                }
+            }
+        }
+    }
+
+    private static final class RegionQueueItem extends QueueItem {
+        private final ValueRegion region;
+        private final Release release;
+        private long written;
+
+        RegionQueueItem(final ValueRegion region, final Release release) {
+            super();
+            this.region = region;
+            this.release = release;
+        }
+
+        @Override
+        public void release() {
+            release.release();
+        }
+
+        @Override
+        public int remaining() {
+            return (int) (region.getLength() - written);
+        }
+
+        @Override
+        public int write(final Socket socket) throws IOException {
+            final long bytes = socket.sendFile(
+                    region.getFile(),
+                    region.getOffset() + written,
+                    region.getLength() - written);
+            written += bytes;
+            return (int) bytes;
+        }
+    }
 }
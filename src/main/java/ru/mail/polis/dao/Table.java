@@ -0,0 +1,32 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Sorted table of {@link Cell}s used by {@link LsmDAO}.
+ *
+ * @author Pavel Pokatilo
+ */
+interface Table {
+
+    /**
+     * Provides cells starting at "from" key (inclusive) in ascending key order, tombstones included.
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Obtains the record stored for the key in this table.
+     *
+     * @return record or {@code null} if the table knows nothing about the key
+     */
+    @Nullable
+    ExtendedRecord get(@NotNull ByteBuffer key) throws IOException;
+
+    int getGeneration();
+}
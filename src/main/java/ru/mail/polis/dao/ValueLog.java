@@ -0,0 +1,434 @@
+package ru.mail.polis.dao;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Append-only files for values which are too large to be rewritten by every compaction.
+ * The storage keeps only a pointer {@code int file, long offset, int length} to such a value.
+ *
+ * <p>Space is reclaimed by compaction: it {@link #roll() rolls} the log, {@link #relocate relocates}
+ * the live values from the older files and then {@link #deleteBefore deletes} the older files.
+ * A deleted file is closed once the last {@link ValueRegion} read from it is released,
+ * so the values of the records resolved before the deletion can still be read or sent.
+ *
+ * @author Pavel Pokatilo
+ */
+final class ValueLog implements Closeable {
+    private static final Log log = LogFactory.getLog(ValueLog.class);
+    static final String DIRECTORY = "vlog";
+    private static final String SUFFIX = ".vlog";
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)\\" + SUFFIX);
+    private static final int POINTER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    /**
+     * Releases the regions which are no longer reachable, as the records holding them are just dropped.
+     */
+    private static final Cleaner REGIONS = Cleaner.create();
+
+    private final File directory;
+    private final int threshold;
+    private final long maxFileSize;
+    private final boolean sync;
+    private final Map<Integer, LogFile> files = new ConcurrentHashMap<>();
+    /**
+     * Shared by appends until their pointers are stored, exclusive for rolls.
+     */
+    private final ReadWriteLock rollLock = new ReentrantReadWriteLock();
+    /**
+     * Deleted files which may still be read by the requests started before the deletion.
+     */
+    private final Map<Integer, LogFile> retired = new ConcurrentHashMap<>();
+    private int activeId;
+    private RandomAccessFile active;
+
+    /**
+     * Opens value logs in {@code vlog} subdirectory of the storage.
+     *
+     * @param data        storage directory
+     * @param threshold   minimal size of a value to be stored in the log, non-positive to disable the log
+     * @param maxFileSize size of a file after which the next file is started
+     * @param sync        whether every value is synced to disk
+     */
+    ValueLog(@NotNull final File data,
+             final int threshold,
+             final long maxFileSize,
+             final boolean sync) throws IOException {
+        this.directory = new File(data, DIRECTORY);
+        this.threshold = threshold;
+        this.maxFileSize = maxFileSize;
+        this.sync = sync;
+        final File[] existing = directory.listFiles();
+        if (existing != null) {
+            for (final File file : existing) {
+                final Matcher matcher = FILE_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    final int id = Integer.parseInt(matcher.group(1));
+                    files.put(id, new LogFile(id, new RandomAccessFile(file, "rw")));
+                    activeId = Math.max(activeId, id);
+                }
+            }
+        }
+        final LogFile last = files.get(activeId);
+        active = last == null ? null : last.file;
+    }
+
+    /**
+     * Creates value log configured with {@code dao.vlog.*} system properties.
+     */
+    @NotNull
+    static ValueLog open(@NotNull final File data, final boolean sync) throws IOException {
+        return new ValueLog(
+                data,
+                Integer.getInteger("dao.vlog.threshold", 64 * 1024),
+                Long.getLong("dao.vlog.file.size", 256L * 1024 * 1024),
+                sync);
+    }
+
+    /**
+     * Moves the value of the record to the log if it is large enough
+     * and passes the record to be stored to the sink.
+     * The log isn't rolled until the sink completes, so the pointer is visible to the next compaction.
+     *
+     * @param record record to store
+     * @param sink   storage of the record
+     */
+    void append(@NotNull final ExtendedRecord record, @NotNull final Sink sink) throws IOException {
+        append(record, sync, sink);
+    }
+
+    /**
+     * Stores the value as {@link #append(ExtendedRecord, Sink)} does syncing it to disk if requested.
+     *
+     * @param record record to store
+     * @param sync   whether the value is synced to disk even if the log doesn't sync every value
+     * @param sink   storage of the record
+     */
+    void append(@NotNull final ExtendedRecord record,
+                final boolean sync,
+                @NotNull final Sink sink) throws IOException {
+        if (!isLogged(record)) {
+            sink.accept(record);
+            return;
+        }
+        rollLock.readLock().lock();
+        try {
+            sink.accept(write(record, sync || this.sync));
+        } finally {
+            rollLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the large values of the records to the log as {@link #append(ExtendedRecord, boolean, Sink)} does
+     * and passes all the records to the sink at once, so they are stored together.
+     *
+     * @param records records to store
+     * @param sync    whether the values are synced to disk even if the log doesn't sync every value
+     * @param sink    storage of the records in the same order
+     */
+    void appendAll(@NotNull final List<ExtendedRecord> records,
+                   final boolean sync,
+                   @NotNull final BatchSink sink) throws IOException {
+        rollLock.readLock().lock();
+        try {
+            final List<ExtendedRecord> stored = new ArrayList<>(records.size());
+            for (final ExtendedRecord record : records) {
+                stored.add(isLogged(record) ? write(record, sync || this.sync) : record);
+            }
+            sink.accept(stored);
+        } finally {
+            rollLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs the action while the log isn't rolled. Unlike the appends, the action may choose the records to store
+     * under the locks which the sinks take and move their values to the log with {@link #store}.
+     */
+    <T> T locked(@NotNull final Action<T> action) throws IOException {
+        rollLock.readLock().lock();
+        try {
+            return action.run();
+        } finally {
+            rollLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the value of the record to the log if it is large enough, the caller must be {@link #locked}.
+     *
+     * @return record to store
+     */
+    @NotNull
+    ExtendedRecord store(@NotNull final ExtendedRecord record) throws IOException {
+        return isLogged(record) ? write(record, sync) : record;
+    }
+
+    private boolean isLogged(@NotNull final ExtendedRecord record) {
+        return threshold > 0
+                && !record.isDeleted()
+                && !record.isExternal()
+                && record.getValue().remaining() >= threshold;
+    }
+
+    /**
+     * Replaces the pointer with the value it points to.
+     */
+    @NotNull
+    ExtendedRecord resolve(@NotNull final ExtendedRecord record) throws IOException {
+        if (!record.isExternal()) {
+            return record;
+        }
+        final ValueRegion region = region(record.getPointer());
+        return new ExtendedRecord(region, record.getTimestamp(), record.getExpiresAt());
+    }
+
+    /**
+     * Starts a new file waiting for the appends in progress to store their pointers.
+     *
+     * @return id of the new file, values in the files before it can be relocated
+     */
+    int roll() throws IOException {
+        rollLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                startFile();
+                return activeId;
+            }
+        } finally {
+            rollLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the value to the active file if it is stored in a file before the given one.
+     *
+     * @param record    stored record
+     * @param firstLive id of the first file which is kept
+     * @return record with the new pointer or {@code null} if the record doesn't need relocation
+     */
+    @Nullable
+    ExtendedRecord relocate(@NotNull final ExtendedRecord record, final int firstLive) throws IOException {
+        if (!record.isExternal() || record.getPointer().getInt(record.getPointer().position()) >= firstLive) {
+            return null;
+        }
+        final ValueRegion region = region(record.getPointer());
+        final FileChannel source = region.getFile().getChannel();
+        synchronized (this) {
+            final long offset = nextOffset();
+            long copied = 0;
+            while (copied < region.getLength()) {
+                copied += source.transferTo(
+                        region.getOffset() + copied,
+                        region.getLength() - copied,
+                        active.getChannel().position(offset + copied));
+            }
+            return pointer(offset, region.getLength(), record);
+        }
+    }
+
+    /**
+     * Deletes the files before the given one.
+     * A file is closed once the regions read from it are released, so the reads started before can complete.
+     */
+    synchronized void deleteBefore(final int firstLive) throws IOException {
+        final Iterator<Map.Entry<Integer, LogFile>> iterator = files.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Integer, LogFile> entry = iterator.next();
+            if (entry.getKey() < firstLive) {
+                retired.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+                Files.delete(fileOf(entry.getKey()).toPath());
+                entry.getValue().release();
+            }
+        }
+    }
+
+    /**
+     * Creates the snapshot of the storage and hard-links the files to {@code vlog} subdirectory of it
+     * while no file can be started or deleted, so the linked files hold all the values the snapshot points to.
+     * The values appended later get to the linked files too and are just never referenced.
+     *
+     * @param directory snapshot directory
+     * @param snapshot  creation of the storage snapshot in the directory
+     */
+    synchronized void checkpoint(@NotNull final File directory, @NotNull final Snapshot snapshot) throws IOException {
+        snapshot.create();
+        final File linked = new File(directory, DIRECTORY);
+        Files.createDirectories(linked.toPath());
+        for (final Integer id : files.keySet()) {
+            Files.createLink(new File(linked, id + SUFFIX).toPath(), fileOf(id).toPath());
+        }
+    }
+
+    @NotNull
+    private ExtendedRecord write(@NotNull final ExtendedRecord record, final boolean sync) throws IOException {
+        final ByteBuffer value = record.getValue();
+        final int length = value.remaining();
+        synchronized (this) {
+            final long offset = nextOffset();
+            final FileChannel channel = active.getChannel();
+            final ByteBuffer source = value.duplicate();
+            while (source.hasRemaining()) {
+                channel.write(source, offset + length - source.remaining());
+            }
+            if (sync) {
+                channel.force(false);
+            }
+            return pointer(offset, length, record);
+        }
+    }
+
+    /**
+     * Provides offset of the next value in the active file starting a new file if needed.
+     */
+    private long nextOffset() throws IOException {
+        if (active == null || active.length() >= maxFileSize) {
+            startFile();
+        }
+        return active.length();
+    }
+
+    private void startFile() throws IOException {
+        Files.createDirectories(directory.toPath());
+        if (active != null) {
+            activeId++;
+        }
+        active = new RandomAccessFile(fileOf(activeId), "rw");
+        files.put(activeId, new LogFile(activeId, active));
+    }
+
+    @NotNull
+    private ExtendedRecord pointer(final long offset, final int length, @NotNull final ExtendedRecord record) {
+        final ByteBuffer pointer = ByteBuffer.allocate(POINTER_SIZE)
+                .putInt(activeId)
+                .putLong(offset)
+                .putInt(length)
+                .flip();
+        return ExtendedRecord.external(pointer, record.getTimestamp(), record.getExpiresAt());
+    }
+
+    @NotNull
+    private ValueRegion region(@NotNull final ByteBuffer pointer) throws IOException {
+        final int position = pointer.position();
+        final int id = pointer.getInt(position);
+        LogFile file = files.get(id);
+        if (file == null) {
+            file = retired.get(id);
+        }
+        if (file == null || !file.retain()) {
+            throw new IOException("Value log " + id + " is missing");
+        }
+        final ValueRegion region = new ValueRegion(
+                file.file,
+                pointer.getLong(position + Integer.BYTES),
+                pointer.getInt(position + Integer.BYTES + Long.BYTES));
+        REGIONS.register(region, file::release);
+        return region;
+    }
+
+    @NotNull
+    private File fileOf(final int id) {
+        return new File(directory, id + SUFFIX);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (final LogFile file : retired.values()) {
+            file.file.close();
+        }
+        for (final LogFile file : files.values()) {
+            file.file.close();
+        }
+    }
+
+    /**
+     * File of the log counting the references to it: one of the log until the file is deleted
+     * and one of every region read from it.
+     */
+    private final class LogFile {
+        private final int id;
+        private final RandomAccessFile file;
+        private int references = 1;
+
+        LogFile(final int id, @NotNull final RandomAccessFile file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        /**
+         * Adds a reference unless the file is closed.
+         */
+        synchronized boolean retain() {
+            if (references == 0) {
+                return false;
+            }
+            references++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (--references > 0) {
+                return;
+            }
+            retired.remove(id, this);
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.error("Can't close value log " + id, e);
+            }
+        }
+    }
+
+    /**
+     * Storage of the records which values are moved to the log.
+     */
+    @FunctionalInterface
+    interface Sink {
+        void accept(@NotNull ExtendedRecord record) throws IOException;
+    }
+
+    /**
+     * Storage of the records of a batch which values are moved to the log.
+     */
+    @FunctionalInterface
+    interface BatchSink {
+        void accept(@NotNull List<ExtendedRecord> records) throws IOException;
+    }
+
+    /**
+     * Action run while the log isn't rolled.
+     */
+    @FunctionalInterface
+    interface Action<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Snapshot of the storage pointing to the values.
+     */
+    @FunctionalInterface
+    interface Snapshot {
+        void create() throws IOException;
+    }
+}
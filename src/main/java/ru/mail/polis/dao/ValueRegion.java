@@ -0,0 +1,60 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Value stored in a value log file, which can be sent to a socket without copying to the heap.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class ValueRegion {
+    private final RandomAccessFile file;
+    private final long offset;
+    private final int length;
+
+    ValueRegion(@NotNull final RandomAccessFile file, final long offset, final int length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @NotNull
+    public RandomAccessFile getFile() {
+        return file;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Reads the value to the heap.
+     *
+     * @throws UncheckedIOException if the value can't be read
+     */
+    @NotNull
+    ByteBuffer read() {
+        final ByteBuffer value = ByteBuffer.allocate(length);
+        final FileChannel channel = file.getChannel();
+        try {
+            while (value.hasRemaining()) {
+                if (channel.read(value, offset + value.position()) < 0) {
+                    throw new IOException("Value log is truncated");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return value.flip();
+    }
+}
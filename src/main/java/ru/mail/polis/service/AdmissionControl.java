@@ -0,0 +1,160 @@
+package ru.mail.polis.service;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.utils.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sheds the requests {@link CustomServer} can't handle in time, so an overloaded node answers 503 at once
+ * instead of queueing the work until the clients and the coordinating nodes give up waiting.
+ * A request is admitted while the number of requests in flight is within the budget
+ * and the oldest task queued to its pool hasn't waited longer than the deadline of the pool.
+ * An admitted request which waits for a thread longer than the deadline is dropped too.
+ *
+ * <p>The requests of the other nodes may take the part of the budget reserved for them,
+ * so the requests the cluster has already started complete before the new client requests are taken.
+ *
+ * @author Pavel Pokatilo
+ */
+final class AdmissionControl {
+    private final int maxInFlight;
+    private final int clientInFlight;
+    private final long[] deadlines;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder shedOverBudget;
+    private final LongAdder shedQueued;
+    private final LongAdder shedExpired;
+
+    AdmissionControl(@NotNull final ServerConfig config, @NotNull final Metrics metrics) {
+        this.maxInFlight = config.getMaxInFlight();
+        this.clientInFlight = config.getMaxInFlight() - config.getInternodeReserve();
+        this.deadlines = new long[ServerConfig.Pool.values().length];
+        for (final ServerConfig.Pool pool : ServerConfig.Pool.values()) {
+            deadlines[pool.ordinal()] = TimeUnit.MILLISECONDS.toNanos(config.getDeadline(pool));
+        }
+        this.shedOverBudget = metrics.counter("http_shed_total{reason=\"budget\"}");
+        this.shedQueued = metrics.counter("http_shed_total{reason=\"queue\"}");
+        this.shedExpired = metrics.counter("http_shed_total{reason=\"deadline\"}");
+        metrics.gauge("http_in_flight", inFlight::get);
+    }
+
+    /**
+     * Admits the request to the pool, the admitted request must be {@link #release()}d once it is responded.
+     *
+     * @param executor executor of the pool
+     * @return {@code false} if the request should be rejected
+     */
+    boolean tryAcquire(@NotNull final ServerConfig.Pool pool, @NotNull final ThreadPoolExecutor executor) {
+        final Runnable head = executor.getQueue().peek();
+        if (head instanceof Task && ((Task) head).isExpired()) {
+            shedQueued.increment();
+            return false;
+        }
+        final int limit = pool == ServerConfig.Pool.INTERNODE ? maxInFlight : clientInFlight;
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= limit) {
+                shedOverBudget.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Creates the task of the admitted request to run on the executor of the pool.
+     *
+     * @param action  handles the request
+     * @param expired responds to the request which has waited for a thread too long instead of the action
+     */
+    @NotNull
+    Runnable task(@NotNull final ServerConfig.Pool pool,
+                  @NotNull final Runnable action,
+                  @NotNull final Runnable expired) {
+        return new Task(System.nanoTime() + deadlines[pool.ordinal()], action, expired);
+    }
+
+    /**
+     * Keeps the request of the stream in flight until the iterator is exhausted or closed.
+     */
+    @NotNull
+    <T> Iterator<T> releasing(@NotNull final Iterator<T> iterator) {
+        return new ReleasingIterator<>(iterator);
+    }
+
+    private final class Task implements Runnable {
+        private final long deadline;
+        private final Runnable action;
+        private final Runnable expired;
+
+        Task(final long deadline, @NotNull final Runnable action, @NotNull final Runnable expired) {
+            this.deadline = deadline;
+            this.action = action;
+            this.expired = expired;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - deadline > 0;
+        }
+
+        @Override
+        public void run() {
+            if (isExpired()) {
+                shedExpired.increment();
+                expired.run();
+            } else {
+                action.run();
+            }
+        }
+    }
+
+    private final class ReleasingIterator<T> implements Iterator<T>, Closeable {
+        private final Iterator<T> iterator;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ReleasingIterator(@NotNull final Iterator<T> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (iterator instanceof Closeable) {
+                    ((Closeable) iterator).close();
+                }
+            } finally {
+                if (released.compareAndSet(false, true)) {
+                    release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ru.mail.polis.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.ExtendedRecord;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoding of batch request and response bodies.
+ * Requests carry ids separated by {@code '\n'}, responses carry
+ * {@code length bytes} entries with {@code -1} length for absent entries.
+ * Batch writes carry {@code keyLength key valueLength value} entries with {@code -1} value length for removals,
+ * which are sent to the replicas as {@code keyLength key recordLength record} entries
+ * and answered with a {@code short} status per entry.
+ *
+ * @author Pavel Pokatilo
+ */
+final class BatchCodec {
+    private static final int ABSENT = -1;
+
+    private BatchCodec() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    @NotNull
+    static List<String> decodeIds(@NotNull final byte[] body) {
+        return Splitter.on('\n').omitEmptyStrings().splitToList(new String(body, Charsets.UTF_8));
+    }
+
+    @NotNull
+    static byte[] encodeIds(@NotNull final List<String> ids) {
+        return String.join("\n", ids).getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * Encodes values, {@code null} value is encoded as absent.
+     */
+    @NotNull
+    static byte[] encodeValues(@NotNull final List<ByteBuffer> values) {
+        int size = 0;
+        for (final ByteBuffer value : values) {
+            size += Integer.BYTES + (value == null ? 0 : value.remaining());
+        }
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        for (final ByteBuffer value : values) {
+            if (value == null) {
+                result.putInt(ABSENT);
+            } else {
+                result.putInt(value.remaining()).put(value.duplicate());
+            }
+        }
+        return result.array();
+    }
+
+    /**
+     * Encodes records in internode format, {@code null} record is encoded as absent.
+     */
+    @NotNull
+    static byte[] encodeRecords(@NotNull final List<ExtendedRecord> records) {
+        final List<ByteBuffer> values = new ArrayList<>(records.size());
+        for (final ExtendedRecord record : records) {
+            values.add(record == null ? null : ByteBuffer.wrap(record.toBytes()));
+        }
+        return encodeValues(values);
+    }
+
+    /**
+     * Decodes the writes of a client into records of the timestamp, the values are slices of the body.
+     *
+     * @throws IllegalArgumentException if the body is broken or a key is empty
+     */
+    @NotNull
+    static List<Map.Entry<ByteBuffer, ExtendedRecord>> decodeWrites(@NotNull final byte[] body,
+                                                                    final long timestamp) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final List<Map.Entry<ByteBuffer, ExtendedRecord>> writes = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                final ByteBuffer key = slice(buffer, buffer.getInt());
+                if (!key.hasRemaining()) {
+                    throw new IllegalArgumentException("Empty key in the batch");
+                }
+                final int length = buffer.getInt();
+                final ExtendedRecord record = length == ABSENT
+                        ? new ExtendedRecord(ByteBuffer.allocate(0), timestamp, true)
+                        : new ExtendedRecord(slice(buffer, length), timestamp, false);
+                writes.add(new AbstractMap.SimpleImmutableEntry<>(key, record));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Batch is truncated", e);
+        }
+        return writes;
+    }
+
+    /**
+     * Encodes the records a replica stores in internode format.
+     */
+    @NotNull
+    static byte[] encodeWrites(@NotNull final List<Map.Entry<ByteBuffer, ExtendedRecord>> writes) {
+        int size = 0;
+        for (final Map.Entry<ByteBuffer, ExtendedRecord> write : writes) {
+            size += Integer.BYTES * 2 + write.getKey().remaining() + write.getValue().sizeInBytes();
+        }
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        for (final Map.Entry<ByteBuffer, ExtendedRecord> write : writes) {
+            final ExtendedRecord record = write.getValue();
+            result.putInt(write.getKey().remaining()).put(write.getKey().duplicate()).putInt(record.sizeInBytes());
+            record.writeTo(result);
+        }
+        return result.array();
+    }
+
+    /**
+     * Decodes the records sent by the coordinator, which carry its timestamp.
+     *
+     * @throws IllegalArgumentException if the body is broken or a record points to a value log
+     */
+    @NotNull
+    static List<Map.Entry<ByteBuffer, ExtendedRecord>> decodeReplicatedWrites(@NotNull final byte[] body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final List<Map.Entry<ByteBuffer, ExtendedRecord>> writes = new ArrayList<>();
+        try {
+            while (buffer.hasRemaining()) {
+                final ByteBuffer key = slice(buffer, buffer.getInt());
+                final ByteBuffer bytes = slice(buffer, buffer.getInt());
+                if (!bytes.hasRemaining()) {
+                    throw new IllegalArgumentException("Empty record in the batch");
+                }
+                final ExtendedRecord record = ExtendedRecord.fromBytes(bytes);
+                // A pointer would refer to the value log of another node
+                if (record.isExternal()) {
+                    throw new IllegalArgumentException("Records of the batch can't be external");
+                }
+                writes.add(new AbstractMap.SimpleImmutableEntry<>(key, record));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Batch is truncated", e);
+        }
+        return writes;
+    }
+
+    /**
+     * Encodes the statuses of the writes in their order.
+     */
+    @NotNull
+    static byte[] encodeStatuses(@NotNull final int[] statuses) {
+        final ByteBuffer result = ByteBuffer.allocate(statuses.length * Short.BYTES);
+        for (final int status : statuses) {
+            result.putShort((short) status);
+        }
+        return result.array();
+    }
+
+    /**
+     * Cuts the next bytes of the buffer out without copying.
+     */
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Negative length in the batch");
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    @NotNull
+    static List<ExtendedRecord> decodeRecords(@NotNull final byte[] body) {
+        final ByteBuffer buffer = ByteBuffer.wrap(body);
+        final List<ExtendedRecord> records = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            records.add(decodeRecord(buffer));
+        }
+        return records;
+    }
+
+    @Nullable
+    private static ExtendedRecord decodeRecord(@NotNull final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length == ABSENT) {
+            return null;
+        }
+        final ByteBuffer record = buffer.slice();
+        record.limit(length);
+        buffer.position(buffer.position() + length);
+        return ExtendedRecord.fromBytes(record);
+    }
+}
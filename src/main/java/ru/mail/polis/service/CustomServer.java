@@ -1,50 +1,130 @@
 package ru.mail.polis.service;
 
 import com.google.common.base.Charsets;
-import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableSet;
 import one.nio.http.*;
 import one.nio.net.ConnectionString;
 import one.nio.net.Socket;
 import one.nio.pool.PoolException;
-import one.nio.server.AcceptorConfig;
 import one.nio.server.RejectedSessionException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.Record;
+import ru.mail.polis.dao.AsyncDAO;
+import ru.mail.polis.dao.CompactionManager;
 import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.Durability;
 import ru.mail.polis.dao.ExtendedRecord;
+import ru.mail.polis.dao.MergeOperator;
+import ru.mail.polis.dao.RecordFeed;
+import ru.mail.polis.dao.Snapshots;
 import ru.mail.polis.dao.StreamHttpSession;
 import ru.mail.polis.utils.CompletableFutureExecutor;
-import ru.mail.polis.utils.RocksByteBufferUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class CustomServer extends HttpServer implements Service {
 
     private static final Log log = LogFactory.getLog(CustomServer.class);
     private final DAO dao;
+    /**
+     * Storage executor, which is started and stopped with the server.
+     */
+    private volatile AsyncDAO storage;
+    private final ServerConfig config;
+    /**
+     * Executors of the {@link ServerConfig.Pool}s, which are started and stopped with the server.
+     */
+    private volatile Map<ServerConfig.Pool, ThreadPoolExecutor> executors = Collections.emptyMap();
+    private final Map<ServerConfig.Pool, LongAdder> rejected = new EnumMap<>(ServerConfig.Pool.class);
+    private final AdmissionControl admission;
 
     private static final String SERVICE_REQUEST_HEADER = "X-Service-Request:";
+    private static final EncodedResponse NO_ID = EncodedResponse.of(Response.BAD_REQUEST, "Query requires id");
+    private static final EncodedResponse BAD_OPERATION = EncodedResponse.of(Response.BAD_REQUEST, "Bad op or operand");
+    private static final EncodedResponse BAD_DURABILITY = EncodedResponse.of(Response.BAD_REQUEST, "Bad durability");
+    private static final EncodedResponse BAD_RECORD = EncodedResponse.of(Response.BAD_REQUEST, "Bad record");
+    private static final EncodedResponse BAD_REPLICAS =
+            EncodedResponse.of(Response.BAD_REQUEST, "Bad replicas parameter");
+    private static final EncodedResponse BAD_TTL = EncodedResponse.of(Response.BAD_REQUEST, "Bad ttl parameter");
+    private static final EncodedResponse BAD_TIMESTAMP =
+            EncodedResponse.of(Response.BAD_REQUEST, "Bad timestamp parameter");
+    private static final EncodedResponse KEY_NOT_FOUND = EncodedResponse.of(Response.NOT_FOUND, "Key not found");
+    private static final EncodedResponse BAD_BATCH = EncodedResponse.of(Response.BAD_REQUEST, "Broken batch");
+    private static final String ENTITY_PATH = "/v0/entity";
     private final Map<String, HttpClient> clusterPool;
     private static final int TIMEOUT = 100;
+    private static final Duration INGEST_TIMEOUT = Duration.ofMinutes(1);
+    /**
+     * Range removal takes the same time whatever the size of the range is.
+     */
+    private static final Duration REMOVE_RANGE_TIMEOUT = Duration.ofMillis(500);
+    /**
+     * Replica stores its whole share of a batch at once, which takes longer than a single write.
+     */
+    private static final Duration BATCH_TIMEOUT = Duration.ofSeconds(1);
     private final Topology topology;
+    /**
+     * Every valid {@code ack/from} of the topology at {@code (from - 1) * nodes + ack - 1}, shared by the requests.
+     */
+    private final Replicas[] replicasTable;
+    private final Replicas defaultReplicas;
     private final java.net.http.HttpClient httpClient;
 
     public CustomServer(final int port, @NotNull final DAO dao, final Topology topology) throws IOException {
-        super(getConfig(port));
+        this(port, dao, topology, ServerConfig.load());
+    }
+
+    /**
+     * Creates server with the threads and socket settings of the config.
+     */
+    public CustomServer(final int port,
+                        @NotNull final DAO dao,
+                        final Topology topology,
+                        @NotNull final ServerConfig config) throws IOException {
+        super(getConfig(port, config));
         this.dao = dao;
         this.topology = topology;
+        this.config = config;
+        final int nodes = topology.size();
+        this.replicasTable = new Replicas[nodes * nodes];
+        for (int from = 1; from <= nodes; from++) {
+            for (int ack = 1; ack <= from; ack++) {
+                replicasTable[(from - 1) * nodes + ack - 1] = new Replicas(ack, from);
+            }
+        }
+        this.defaultReplicas = replicasTable[(nodes - 1) * nodes + nodes / 2];
+        this.admission = new AdmissionControl(config, dao.metrics());
+        for (final ServerConfig.Pool pool : ServerConfig.Pool.values()) {
+            final String label = "{pool=\"" + pool.getName() + "\"}";
+            rejected.put(pool, dao.metrics().counter("http_rejected_total" + label));
+            dao.metrics().gauge("http_queue_size" + label, () -> queueSize(pool));
+        }
         clusterPool = topology.getNodes().stream().filter(
                 node -> !topology.isCurrentNode(node))
                 .collect(Collectors.toMap(
@@ -69,98 +149,617 @@ public class CustomServer extends HttpServer implements Service {
         return Response.ok("OK");
     }
 
+    /**
+     * Provides node metrics in Prometheus text format.
+     *
+     * @return metrics
+     */
+    @Path("/v0/metrics")
+    public Response metrics() {
+        final StringBuilder builder = new StringBuilder();
+        dao.metrics().writeTo(builder);
+        final Response response = Response.ok(builder.toString());
+        response.addHeader("Content-Type: text/plain; version=0.0.4");
+        return response;
+    }
+
+    /**
+     * Controls the background compaction of this node.
+     * GET provides its state, POST with {@code action=start|pause|resume} changes it.
+     *
+     * @param action  action for POST request
+     * @param request Http request
+     * @return compaction state
+     */
+    @Path("/v0/admin/compaction")
+    public Response compaction(@Param("action") final String action, final Request request) {
+        final CompactionManager manager = dao.compactionManager();
+        if (manager == null) {
+            return new Response(Response.NOT_IMPLEMENTED, "Compaction isn't managed".getBytes(Charsets.UTF_8));
+        }
+        if (request.getMethod() == Request.METHOD_POST) {
+            if ("start".equals(action)) {
+                if (!manager.start()) {
+                    return new Response(Response.CONFLICT, "Compaction is running".getBytes(Charsets.UTF_8));
+                }
+            } else if ("pause".equals(action)) {
+                manager.pause();
+            } else if ("resume".equals(action)) {
+                manager.resume();
+            } else {
+                return new Response(Response.BAD_REQUEST, "Unknown action".getBytes(Charsets.UTF_8));
+            }
+        } else if (request.getMethod() != Request.METHOD_GET) {
+            return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+        }
+        final StringBuilder builder = new StringBuilder();
+        manager.writeStatusTo(builder);
+        return Response.ok(builder.toString());
+    }
+
+    /**
+     * Streams a fresh snapshot of the storage to bootstrap another node, see {@link Snapshots}.
+     *
+     * @param session Http session
+     */
+    @Path(Snapshots.PATH)
+    public void snapshot(final HttpSession session) {
+        execute(ServerConfig.Pool.STREAM, session, () -> {
+            final File snapshot;
+            try {
+                snapshot = dao.checkpoint();
+            } catch (UnsupportedOperationException exception) {
+                sendResponse(new Response(Response.NOT_IMPLEMENTED, Response.EMPTY), session);
+                return;
+            } catch (IOException exception) {
+                log.error("Can't create snapshot", exception);
+                sendResponse(EncodedResponse.INTERNAL_ERROR, session);
+                return;
+            }
+            try {
+                Snapshots.send(snapshot, (StreamHttpSession) session);
+            } catch (IOException exception) {
+                log.error("Can't send snapshot", exception);
+                session.close();
+            }
+        });
+    }
+
     /**
      * Provides an entry by the id (key). id is strongly required.
+     * A PUT may set {@code ttl} in seconds after which the entry is gone.
+     * The value of a PUT is read after the room for the record header, so it is framed as the record in place
+     * and the same array is stored and sent to the replicas, which get the timestamp and the expiration with it.
+     * A POST merges the body into the value with {@code op}, see {@link MergeOperator}:
+     * {@code append} responds with 201, {@code incr} with the new counter value
+     * and 409 if the value isn't a number. The operand is merged by the owner of the key only,
+     * then the merged record is stored by the other replicas like a PUT of its timestamp.
+     * A DELETE stores a tombstone of the time of the coordinator on every replica,
+     * the replicas get it in {@code timestamp}.
+     * A PUT or DELETE may choose its {@code durability=none|async|sync}, see {@link Durability},
+     * the storage default is used otherwise.
+     * Responds with 503 at once if the node is overloaded, see {@link AdmissionControl}.
      *
      * @param id      id from /v0/entity&id request
      * @param request Http request
      * @param session Http session
      */
-    @Path("/v0/entity")
+    @Path(ENTITY_PATH)
     public void entity(@Param("id") final String id,
                        @Param("replicas") final String replicas,
+                       @Param("ttl") final String ttl,
+                       @Param("op") final String op,
+                       @Param("durability") final String durability,
+                       @Param("timestamp") final String timestamp,
                        final Request request,
                        final HttpSession session) {
 
         if (id == null || id.isEmpty()) {
-            sendResponse(new Response(Response.BAD_REQUEST, "Query requires id".getBytes(Charsets.UTF_8)), session);
+            sendResponse(NO_ID, session);
+            return;
+        }
+        MergeOperator operator = null;
+        if (request.getMethod() == Request.METHOD_POST) {
+            try {
+                operator = MergeOperator.of(op == null ? "" : op);
+                operator.validate(ByteBuffer.wrap(body(request)));
+            } catch (IllegalArgumentException e) {
+                sendResponse(BAD_OPERATION, session);
+                return;
+            }
+        }
+        final Durability level;
+        try {
+            level = durability == null || durability.isEmpty() ? null : Durability.of(durability);
+        } catch (IllegalArgumentException e) {
+            sendResponse(BAD_DURABILITY, session);
             return;
         }
       //  System.out.println("on node [" + port + "] | is service:" + getServiceMarkerHeader(request));
 
+        // The key is encoded once for the topology and the storage
+        final ByteBuffer key = ByteBuffer.wrap(id.getBytes(Charsets.UTF_8));
+        if (getServiceMarkerHeader(request)) {
+            ExtendedRecord value = null;
+            if (request.getMethod() == Request.METHOD_PUT) {
+                try {
+                    value = ExtendedRecord.fromFrame(body(request));
+                } catch (IllegalArgumentException e) {
+                    sendResponse(BAD_RECORD, session);
+                    return;
+                }
+            } else if (request.getMethod() == Request.METHOD_DELETE) {
+                final long removedAt = parseLong(timestamp);
+                if (removedAt <= 0) {
+                    sendResponse(BAD_TIMESTAMP, session);
+                    return;
+                }
+                value = tombstone(removedAt);
+            }
+            final ExtendedRecord record = value;
+            final MergeOperator mergeOperator = operator;
+            executeAdmitted(ServerConfig.Pool.INTERNODE, session,
+                    () -> processLocally(key, request, record, mergeOperator, level));
+            return;
+        }
+
+        final Replicas replicasObj = replicas(replicas);
+        if (replicasObj == null) {
+            sendResponse(BAD_REPLICAS, session);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long ttlSeconds = parseLong(ttl);
+        if (ttlSeconds < 0 || ttlSeconds > (Long.MAX_VALUE - now) / 1000) {
+            sendResponse(BAD_TTL, session);
+            return;
+        }
+        final long expiresAt = ttlSeconds == 0 ? 0 : now + TimeUnit.SECONDS.toMillis(ttlSeconds);
+        final ExtendedRecord value;
+        if (request.getMethod() == Request.METHOD_PUT) {
+            value = ExtendedRecord.frame(body(request), bodyRoom(request), now, expiresAt);
+        } else if (request.getMethod() == Request.METHOD_DELETE) {
+            value = tombstone(now);
+        } else {
+            value = null;
+        }
+        final MergeOperator mergeOperator = operator;
+
+        executeAdmitted(ServerConfig.Pool.CLIENT, session,
+                () -> executeEntityRequest(id, key, replicasObj, request, value, mergeOperator, level));
+
+    }
+
+    /**
+     * Provides entries for a batch of ids sent in POST body separated by {@code '\n'}.
+     * Responds with {@code <length><value>} entries in the order of ids, {@code -1} length for absent ones.
+     *
+     * @param replicas replicas parameter in ack/from format
+     * @param request  Http request
+     * @param session  Http session
+     */
+    @Path("/v0/entities/batch")
+    public void entitiesBatch(@Param("replicas") final String replicas,
+                              final Request request,
+                              final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_POST) {
+            sendResponse(EncodedResponse.METHOD_NOT_ALLOWED, session);
+            return;
+        }
+        final byte[] body = request.getBody();
+        final List<String> ids = body == null ? Collections.emptyList() : BatchCodec.decodeIds(body);
+        if (ids.isEmpty()) {
+            sendResponse(new Response(Response.BAD_REQUEST, "Query requires ids".getBytes(Charsets.UTF_8)), session);
+            return;
+        }
+
         if (getServiceMarkerHeader(request)) {
-            asyncExecute(() -> {
+            execute(ServerConfig.Pool.INTERNODE, session, () -> {
                 try {
-                    sendResponse(handleEntityRequest(id, request), session);
+                    final List<ExtendedRecord> records = dao.getRecords(toKeys(ids));
+                    sendResponse(Response.ok(BatchCodec.encodeRecords(records)), session);
                 } catch (IOException exception) {
-                    sendResponse(new Response(Response.INTERNAL_ERROR, Response.EMPTY), session);
+                    sendResponse(EncodedResponse.INTERNAL_ERROR, session);
+                }
+            });
+            return;
+        }
+
+        final Replicas replicasObj = replicas(replicas);
+        if (replicasObj == null) {
+            sendResponse(BAD_REPLICAS, session);
+            return;
+        }
+        execute(ServerConfig.Pool.CLIENT, session, () -> executeBatchRequest(ids, replicasObj, session));
+    }
+
+    /**
+     * Stores a {@link RecordFeed} sent in POST body in bulk, see {@link DAO#ingest}.
+     * Every replica gets the sorted part of the feed it owns. Feeds larger than {@code http.max.body}
+     * are sent in several requests.
+     *
+     * @param replicas replicas parameter in ack/from format
+     * @param request  Http request
+     * @param session  Http session
+     */
+    @Path("/v0/entities/ingest")
+    public void ingest(@Param("replicas") final String replicas,
+                       final Request request,
+                       final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_POST) {
+            sendResponse(EncodedResponse.METHOD_NOT_ALLOWED, session);
+            return;
+        }
+        final byte[] body = request.getBody() == null ? Response.EMPTY : request.getBody();
+
+        if (getServiceMarkerHeader(request)) {
+            execute(ServerConfig.Pool.INTERNODE, session, () -> {
+                try {
+                    dao.ingest(RecordFeed.read(new ByteArrayInputStream(body)));
+                    sendResponse(EncodedResponse.CREATED, session);
+                } catch (IllegalArgumentException exception) {
+                    sendResponse(EncodedResponse.BAD_REQUEST, session);
+                } catch (IOException | UncheckedIOException exception) {
+                    log.error("Can't ingest records", exception);
+                    sendResponse(EncodedResponse.INTERNAL_ERROR, session);
                 }
             });
             return;
         }
 
-        Integer[] ackFrom = generateAckFrom();
-        if (replicas != null && !replicas.isEmpty()) {
-            ackFrom = getAckFrom(replicas);
+        final Replicas replicasObj = replicas(replicas);
+        if (replicasObj == null) {
+            sendResponse(BAD_REPLICAS, session);
+            return;
+        }
+        execute(ServerConfig.Pool.CLIENT, session, () -> executeIngest(body, replicasObj, session));
+    }
+
+    /**
+     * Stores the writes sent in POST body as {@code keyLength key valueLength value} entries,
+     * {@code -1} value length removes the key, see {@link BatchCodec}.
+     * Every replica node gets its share of the writes in one request and stores it in one write of the storage,
+     * so a batch costs a request per node instead of a request per key. All the writes get the same timestamp,
+     * the later write of a repeated key wins.
+     * Responds with 200 and a {@code short} status per write in their order: 201 for a put or 202 for a removal
+     * stored by {@code ack} replicas of the key and 504 otherwise, like {@code /v0/entity} does.
+     * Batches larger than {@code http.max.body} are sent in several requests.
+     *
+     * @param replicas replicas parameter in ack/from format
+     * @param request  Http request
+     * @param session  Http session
+     */
+    @Path("/v0/batch")
+    public void batch(@Param("replicas") final String replicas,
+                      final Request request,
+                      final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_POST) {
+            sendResponse(EncodedResponse.METHOD_NOT_ALLOWED, session);
+            return;
+        }
+        final byte[] body = body(request);
+
+        if (getServiceMarkerHeader(request)) {
+            final List<Map.Entry<ByteBuffer, ExtendedRecord>> writes;
+            try {
+                writes = BatchCodec.decodeReplicatedWrites(body);
+            } catch (IllegalArgumentException e) {
+                sendResponse(BAD_BATCH, session);
+                return;
+            }
+            executeAdmitted(ServerConfig.Pool.INTERNODE, session, () -> storeLocally(writes));
+            return;
         }
 
-        if (!checkAckFrom(ackFrom[0], ackFrom[1])) {
-            sendResponse(new Response(Response.BAD_REQUEST, "Bad replicas parameter".getBytes(Charsets.UTF_8)), session);
+        final Replicas replicasObj = replicas(replicas);
+        if (replicasObj == null) {
+            sendResponse(BAD_REPLICAS, session);
             return;
         }
-        final Replicas replicasObj = new Replicas(ackFrom[0], ackFrom[1]);
-        final long timestamp = System.currentTimeMillis();
+        final List<Map.Entry<ByteBuffer, ExtendedRecord>> writes;
+        try {
+            writes = BatchCodec.decodeWrites(body, System.currentTimeMillis());
+        } catch (IllegalArgumentException e) {
+            sendResponse(BAD_BATCH, session);
+            return;
+        }
+        executeAdmitted(ServerConfig.Pool.CLIENT, session, () -> executeBatchWrite(writes, replicasObj));
+    }
+
+    private CompletableFuture<Response> executeBatchWrite(final List<Map.Entry<ByteBuffer, ExtendedRecord>> writes,
+                                                          final Replicas replicas) {
+        final Map<String, List<Map.Entry<ByteBuffer, ExtendedRecord>>> writesByNode = new HashMap<>();
+        final Map<String, List<Integer>> indexesByNode = new HashMap<>();
+        for (int i = 0; i < writes.size(); i++) {
+            for (final String node : topology.selectNodePool(writes.get(i).getKey(), replicas.getFrom())) {
+                writesByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(writes.get(i));
+                indexesByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
+            }
+        }
 
-        asyncExecute(() -> {
-            executeEntityRequest(id, replicasObj, request, session, timestamp);
+        final AtomicIntegerArray stored = new AtomicIntegerArray(writes.size());
+        final List<CompletableFuture<Void>> requests = new ArrayList<>(writesByNode.size());
+        for (final Map.Entry<String, List<Map.Entry<ByteBuffer, ExtendedRecord>>> entry : writesByNode.entrySet()) {
+            final List<Integer> indexes = indexesByNode.get(entry.getKey());
+            requests.add(storeWrites(entry.getKey(), entry.getValue())
+                    .thenAccept(res -> {
+                        if (res.getStatus() == 201) {
+                            for (final int index : indexes) {
+                                stored.incrementAndGet(index);
+                            }
+                        }
+                    })
+                    .exceptionally(e -> null));
+        }
+
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            final int[] statuses = new int[writes.size()];
+            for (int i = 0; i < writes.size(); i++) {
+                if (stored.get(i) < replicas.getAck()) {
+                    statuses[i] = 504;
+                } else {
+                    statuses[i] = writes.get(i).getValue().isDeleted() ? 202 : 201;
+                }
+            }
+            return Response.ok(BatchCodec.encodeStatuses(statuses));
         });
+    }
+
+    /**
+     * Stores the writes on the node in one write of its storage.
+     *
+     * @return 201 response once the writes are stored
+     */
+    private CompletableFuture<Response> storeWrites(@NotNull final String node,
+                                                    @NotNull final List<Map.Entry<ByteBuffer, ExtendedRecord>> writes) {
+        if (topology.isCurrentNode(node)) {
+            return storeLocally(writes);
+        }
+        final HttpRequest httpRequest = HttpRequest.newBuilder()
+                .uri(URI.create(node + "/v0/batch"))
+                .timeout(BATCH_TIMEOUT)
+                .setHeader("X-Service-Request", "true")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(BatchCodec.encodeWrites(writes)))
+                .build();
+        return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(res -> new Response(resultCode(res.statusCode()), res.body()));
+    }
 
+    private CompletableFuture<Response> storeLocally(
+            @NotNull final List<Map.Entry<ByteBuffer, ExtendedRecord>> writes) {
+        final List<ByteBuffer> keys = new ArrayList<>(writes.size());
+        final List<ExtendedRecord> records = new ArrayList<>(writes.size());
+        for (final Map.Entry<ByteBuffer, ExtendedRecord> write : writes) {
+            keys.add(write.getKey());
+            records.add(write.getValue());
+        }
+        return storage.upsertRecordsAsync(keys, records).thenApply(ignored -> EncodedResponse.CREATED);
     }
 
-    private void executeEntityRequest(final String id,
-                                      final Replicas replicas,
-                                      final Request request,
-                                      final HttpSession session,
-                                      final long timestamp) {
-        final ByteBuffer key = ByteBuffer.wrap(id.getBytes(Charsets.UTF_8));
+    private void executeIngest(final byte[] body,
+                               final Replicas replicas,
+                               final HttpSession session) {
+        final Map<String, ByteArrayOutputStream> parts = new HashMap<>();
+        final List<List<String>> pools = new ArrayList<>();
+        try {
+            final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records =
+                    RecordFeed.read(new ByteArrayInputStream(body));
+            while (records.hasNext()) {
+                final Map.Entry<ByteBuffer, ExtendedRecord> entry = records.next();
+                final String id = Charsets.UTF_8.decode(entry.getKey().duplicate()).toString();
+                final List<String> pool = topology.selectNodePool(id, replicas.getFrom());
+                for (final String node : pool) {
+                    final ByteArrayOutputStream part = parts.computeIfAbsent(node, n -> new ByteArrayOutputStream());
+                    RecordFeed.write(entry.getKey(), entry.getValue(), new DataOutputStream(part));
+                }
+                pools.add(pool);
+            }
+        } catch (IllegalArgumentException exception) {
+            sendResponse(new Response(Response.BAD_REQUEST, "Broken feed".getBytes(Charsets.UTF_8)), session);
+            return;
+        } catch (IOException exception) {
+            sendResponse(EncodedResponse.INTERNAL_ERROR, session);
+            return;
+        }
 
-        final List<CompletableFuture<Response>> responses = new ArrayList<>();
+        final Set<String> succeeded = ConcurrentHashMap.newKeySet();
+        final List<CompletableFuture<?>> requests = new ArrayList<>(parts.size());
+        String localNode = null;
+        for (final Map.Entry<String, ByteArrayOutputStream> part : parts.entrySet()) {
+            final String node = part.getKey();
+            if (topology.isCurrentNode(node)) {
+                localNode = node;
+                continue;
+            }
+            final HttpRequest httpRequest = HttpRequest.newBuilder()
+                    .uri(URI.create(node + "/v0/entities/ingest"))
+                    .timeout(INGEST_TIMEOUT)
+                    .setHeader("X-Service-Request", "true")
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(part.getValue().toByteArray()))
+                    .build();
+            requests.add(httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.discarding())
+                    .thenAccept(res -> {
+                        if (res.statusCode() == 201) {
+                            succeeded.add(node);
+                        }
+                    })
+                    .exceptionally(e -> null));
+        }
+        if (localNode != null) {
+            try {
+                dao.ingest(RecordFeed.read(new ByteArrayInputStream(parts.get(localNode).toByteArray())));
+                succeeded.add(localNode);
+            } catch (IOException | UncheckedIOException exception) {
+                log.error("Can't ingest records", exception);
+            }
+        }
 
-        for (String n : topology.selectNodePool(id, replicas.getFrom())) {
-            if (topology.isCurrentNode(n)) {
-                responses.add(processLocally(id, request));
-            } else {
-                //  responses.add(processOnNode(n, request));
-                responses.add(processNoNio(id, request, n, httpClient));
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            for (final List<String> pool : pools) {
+                if (pool.stream().filter(succeeded::contains).count() < replicas.getAck()) {
+                    sendResponse(EncodedResponse.NOT_ENOUGH_REPLICAS, session);
+                    return;
+                }
+            }
+            sendResponse(EncodedResponse.CREATED, session);
+        });
+    }
+
+    private void executeBatchRequest(final List<String> ids,
+                                     final Replicas replicas,
+                                     final HttpSession session) {
+        final Map<String, List<Integer>> indexesByNode = new HashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            for (final String node : topology.selectNodePool(ids.get(i), replicas.getFrom())) {
+                indexesByNode.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
             }
         }
 
-        CompletableFutureExecutor
-                .onComplete(responses, replicas.getAck())
-                .thenAccept(
-                        res -> {
-                            //TODO
-                            try {
-                              //  System.out.println("answering:" + port);
-                                session.sendResponse(extractReplicasResponse(request, replicas.getAck(), res));
-                            } catch (IOException e) {
-                                sendError(session, e.getMessage());
+        final ExtendedRecord[] newest = new ExtendedRecord[ids.size()];
+        final int[] answers = new int[ids.size()];
+        final List<CompletableFuture<Void>> requests = new ArrayList<>(indexesByNode.size());
+        for (final Map.Entry<String, List<Integer>> entry : indexesByNode.entrySet()) {
+            final List<Integer> indexes = entry.getValue();
+            final List<String> nodeIds = indexes.stream().map(ids::get).collect(Collectors.toList());
+            requests.add(getRecords(entry.getKey(), nodeIds)
+                    .thenAccept(records -> {
+                        synchronized (newest) {
+                            for (int i = 0; i < indexes.size(); i++) {
+                                final int index = indexes.get(i);
+                                newest[index] = newest(newest[index], records.get(i));
+                                answers[index]++;
                             }
                         }
-                )
-                .exceptionally(e -> {
-                    try {
+                    })
+                    .exceptionally(e -> null));
+        }
 
-                        //System.out.println("gateway timeout:" + port);
-                        session.sendResponse(new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
-                    } catch (IOException ex) {
+        CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            final List<ByteBuffer> values = new ArrayList<>(ids.size());
+            synchronized (newest) {
+                for (int i = 0; i < ids.size(); i++) {
+                    if (answers[i] < replicas.getAck()) {
+                        sendResponse(EncodedResponse.NOT_ENOUGH_REPLICAS, session);
+                        return;
+                    }
+                    final ExtendedRecord record = newest[i];
+                    values.add(record == null || record.isDeleted() ? null : record.getValue());
+                }
+            }
+            sendResponse(Response.ok(BatchCodec.encodeValues(values)), session);
+        });
+    }
 
-                      //  System.out.println("error:" + port);
-                        sendError(session, ex.getMessage());
+    private CompletableFuture<List<ExtendedRecord>> getRecords(@NotNull final String node,
+                                                               @NotNull final List<String> ids) {
+        if (topology.isCurrentNode(node)) {
+            return storage.getRecordsAsync(toKeys(ids));
+        }
+        final HttpRequest httpRequest = HttpRequest.newBuilder()
+                .uri(URI.create(node + "/v0/entities/batch"))
+                .timeout(Duration.ofMillis(TIMEOUT))
+                .setHeader("X-Service-Request", "true")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(BatchCodec.encodeIds(ids)))
+                .build();
+        return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(res -> {
+                    if (res.statusCode() != 200) {
+                        throw new IllegalStateException("Batch request failed on " + node);
                     }
-                    return null;
+                    final List<ExtendedRecord> records = BatchCodec.decodeRecords(res.body());
+                    if (records.size() != ids.size()) {
+                        throw new IllegalStateException("Broken batch response from " + node);
+                    }
+                    return records;
                 });
+    }
 
+    private static List<ByteBuffer> toKeys(@NotNull final List<String> ids) {
+        final List<ByteBuffer> keys = new ArrayList<>(ids.size());
+        for (final String id : ids) {
+            keys.add(ByteBuffer.wrap(id.getBytes(Charsets.UTF_8)));
+        }
+        return keys;
+    }
+
+    private CompletableFuture<Response> executeEntityRequest(final String id,
+                                                             final ByteBuffer key,
+                                                             final Replicas replicas,
+                                                             final Request request,
+                                                             @Nullable final ExtendedRecord value,
+                                                             @Nullable final MergeOperator operator,
+                                                             @Nullable final Durability durability) {
+        if (operator != null) {
+            return executeMerge(id, key, replicas, request, operator);
+        }
+        final List<String> nodes = topology.selectNodePool(key, replicas.getFrom());
+        final List<CompletableFuture<Response>> responses = new ArrayList<>(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            final String n = nodes.get(i);
+            if (topology.isCurrentNode(n)) {
+                responses.add(processLocally(key, request, value, null, durability));
+            } else {
+                //  responses.add(processOnNode(n, request));
+                responses.add(processNoNio(id, request, n, httpClient, value, null, durability));
+            }
+        }
+
+        return CompletableFutureExecutor
+                .onComplete(responses, replicas.getAck())
+                .thenApply(res -> extractReplicasResponse(request, replicas.getAck(), res))
+                .exceptionally(e -> EncodedResponse.GATEWAY_TIMEOUT);
+    }
+
+    /**
+     * Merges the operand on the owner of the key, the first node of the pool, and stores the merged record
+     * on the other replicas as a PUT of its timestamp. A replica which has missed some operands gets
+     * the merged value this way, the operand merged into its own copy would give a wrong one
+     * which might be newer than the right one.
+     */
+    private CompletableFuture<Response> executeMerge(@NotNull final String id,
+                                                     @NotNull final ByteBuffer key,
+                                                     @NotNull final Replicas replicas,
+                                                     @NotNull final Request request,
+                                                     @NotNull final MergeOperator operator) {
+        final List<String> nodes = topology.selectNodePool(key, replicas.getFrom());
+        final String owner = nodes.get(0);
+        final CompletableFuture<Response> merged = topology.isCurrentNode(owner)
+                ? processLocally(key, request, null, operator, null)
+                : processNoNio(id, request, owner, httpClient, null, operator, null);
+        return merged.thenCompose(response -> {
+            if (response.getStatus() != 200) {
+                // The value can't be merged, so retrying won't help
+                return CompletableFuture.completedFuture(
+                        response.getStatus() == 409 || response.getStatus() == 400
+                                ? response
+                                : EncodedResponse.NOT_ENOUGH_REPLICAS);
+            }
+            final ExtendedRecord record = record(response);
+            final List<CompletableFuture<Response>> responses = new ArrayList<>(nodes.size());
+            responses.add(CompletableFuture.completedFuture(response));
+            for (int i = 1; i < nodes.size(); i++) {
+                final String node = nodes.get(i);
+                responses.add(topology.isCurrentNode(node)
+                        ? storage.upsertRecordAsync(key, record).thenApply(ignored -> EncodedResponse.CREATED)
+                        : storeOnNode(id, node, record));
+            }
+            return CompletableFutureExecutor
+                    .onComplete(responses, replicas.getAck())
+                    .thenApply(res -> {
+                        int successResponses = 0;
+                        for (final Response replica : res) {
+                            if (isSuccess(replica.getStatus())) {
+                                successResponses++;
+                            }
+                        }
+                        if (successResponses < replicas.getAck()) {
+                            return EncodedResponse.NOT_ENOUGH_REPLICAS;
+                        }
+                        return operator == MergeOperator.INCR
+                                ? new RecordResponse(record, false)
+                                : EncodedResponse.CREATED;
+                    });
+        }).exceptionally(e -> EncodedResponse.GATEWAY_TIMEOUT);
     }
 
     private CompletableFuture<Response> processOnNode(@NotNull final String node, @NotNull final Request request) {
@@ -178,52 +777,152 @@ public class CustomServer extends HttpServer implements Service {
         return response;
     }
 
-    private CompletableFuture<Response> processLocally(@NotNull final String id, @NotNull final Request request) {
-        final CompletableFuture<Response> response = new CompletableFuture<>();
-        setServiceMarkerHeader(request);
-        try {
-            final Response r = handleEntityRequest(id, request);
-         //   System.out.println("answeringLocally:" + port);
-            response.complete(r);
-        } catch (IOException e) {
-         //   System.out.println("exceptionallyLocally:" + port + " " + e.getMessage());
-            response.completeExceptionally(e);
+    /**
+     * Handles the request by the local storage on the storage executor.
+     *
+     * @param key        key of the entity
+     * @param value      framed value of a PUT or tombstone of a DELETE
+     * @param operator   merge operator of a POST
+     * @param durability durability of a PUT or DELETE, {@code null} for the storage default
+     */
+    private CompletableFuture<Response> processLocally(@NotNull final ByteBuffer key,
+                                                       @NotNull final Request request,
+                                                       @Nullable final ExtendedRecord value,
+                                                       @Nullable final MergeOperator operator,
+                                                       @Nullable final Durability durability) {
+        switch (request.getMethod()) {
+            case Request.METHOD_GET:
+                return storage.getRecordAsync(key).handle((record, exception) -> {
+                    if (exception == null) {
+                        return new RecordResponse(record, true);
+                    }
+                    if (exception.getCause() instanceof NoSuchElementException) {
+                        return KEY_NOT_FOUND;
+                    }
+                    throw new CompletionException(exception.getCause());
+                });
+            case Request.METHOD_PUT:
+                return (durability == null
+                        ? storage.upsertRecordAsync(key, value)
+                        : storage.upsertRecordAsync(key, value, durability))
+                        .thenApply(ignored -> EncodedResponse.CREATED);
+            case Request.METHOD_DELETE:
+                return (durability == null
+                        ? storage.upsertRecordAsync(key, value)
+                        : storage.upsertRecordAsync(key, value, durability))
+                        .thenApply(ignored -> EncodedResponse.ACCEPTED);
+            case Request.METHOD_POST:
+                return storage.mergeAsync(key, operator, ByteBuffer.wrap(body(request))).handle((merged, exception) -> {
+                    if (exception == null) {
+                        // The coordinator stores the merged record on the other replicas
+                        return new RecordResponse(merged, true);
+                    }
+                    if (exception.getCause() instanceof IllegalStateException) {
+                        final String message = exception.getCause().getMessage();
+                        return new Response(Response.CONFLICT, message.getBytes(Charsets.UTF_8));
+                    }
+                    if (exception.getCause() instanceof IllegalArgumentException) {
+                        return EncodedResponse.BAD_REQUEST;
+                    }
+                    throw new CompletionException(exception.getCause());
+                });
+            default:
+                return CompletableFuture.completedFuture(EncodedResponse.METHOD_NOT_ALLOWED);
         }
-        return response;
     }
 
     public static CompletableFuture<Response> processNoNio(final String id,
                                                            @NotNull final Request request,
                                                            final String node,
-                                                           final java.net.http.HttpClient client) {
+                                                           final java.net.http.HttpClient client,
+                                                           @Nullable final ExtendedRecord value,
+                                                           @Nullable final MergeOperator operator,
+                                                           @Nullable final Durability durability) {
+        final String op = operator == null ? "" : "&op=" + operator.name().toLowerCase(Locale.ROOT);
+        final String level = durability == null ? "" : "&durability=" + durability.getName();
+        final String removedAt = request.getMethod() == Request.METHOD_DELETE
+                ? "&timestamp=" + value.getTimestamp()
+                : "";
         HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
-                .uri(URI.create(node + "/v0/entity?id=" + id))
+                .uri(URI.create(node + ENTITY_PATH + "?id=" + id + op + level + removedAt))
                 .timeout(Duration.ofMillis(100))
                 .setHeader("X-Service-Request", "true");
         if (request.getMethod() == Request.METHOD_GET) {
             requestBuilder = requestBuilder.GET();
         } else if (request.getMethod() == Request.METHOD_PUT) {
-            requestBuilder = requestBuilder.PUT(HttpRequest.BodyPublishers.ofByteArray(request.getBody()));
+            requestBuilder = requestBuilder.PUT(HttpRequest.BodyPublishers.ofByteArray(value.toBytes()));
         } else if (request.getMethod() == Request.METHOD_DELETE) {
             requestBuilder = requestBuilder.DELETE();
+        } else if (request.getMethod() == Request.METHOD_POST) {
+            requestBuilder = requestBuilder.POST(HttpRequest.BodyPublishers.ofByteArray(body(request)));
         } else {
             throw new IllegalStateException();
         }
         final HttpRequest httpRequest = requestBuilder.build();
         return client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
-                .thenApply(res -> new Response("" + res.statusCode(), res.body()));
+                .thenApply(res -> new Response(resultCode(res.statusCode()), res.body()));
+    }
+
+    @NotNull
+    private static ExtendedRecord tombstone(final long timestamp) {
+        return new ExtendedRecord(ByteBuffer.allocate(0), timestamp, true);
+    }
+
+    /**
+     * Stores the record on the replica as a PUT, which keeps the timestamp and the expiration of the record.
+     */
+    private CompletableFuture<Response> storeOnNode(@NotNull final String id,
+                                                    @NotNull final String node,
+                                                    @NotNull final ExtendedRecord record) {
+        final HttpRequest httpRequest = HttpRequest.newBuilder()
+                .uri(URI.create(node + ENTITY_PATH + "?id=" + id))
+                .timeout(Duration.ofMillis(100))
+                .setHeader("X-Service-Request", "true")
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(record.toBytes()))
+                .build();
+        return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(res -> new Response(resultCode(res.statusCode()), res.body()));
+    }
+
+    /**
+     * Provides the result code of the status without building it for the statuses the nodes respond with.
+     */
+    @NotNull
+    private static String resultCode(final int status) {
+        switch (status) {
+            case 200:
+                return Response.OK;
+            case 201:
+                return Response.CREATED;
+            case 202:
+                return Response.ACCEPTED;
+            case 400:
+                return Response.BAD_REQUEST;
+            case 404:
+                return Response.NOT_FOUND;
+            case 409:
+                return Response.CONFLICT;
+            case 500:
+                return Response.INTERNAL_ERROR;
+            case 503:
+                return Response.SERVICE_UNAVAILABLE;
+            default:
+                return Integer.toString(status);
+        }
     }
 
     private Response extractReplicasResponse(@NotNull final Request request,
                                              final int ack,
                                              final List<Response> responses) {
-        final Set<Integer> codes = ImmutableSet.of(200, 201, 202, 404);
-        final long successResponses = responses.stream()
-                .map(Response::getStatus)
-                .filter(codes::contains)
-                .count();
+        int successResponses = 0;
+        for (int i = 0; i < responses.size(); i++) {
+            final Response response = responses.get(i);
+            if (isSuccess(response.getStatus())) {
+                successResponses++;
+            }
+        }
         if (successResponses < ack) {
-            return new Response("504 Not Enough Replicas", Response.EMPTY);
+            return EncodedResponse.NOT_ENOUGH_REPLICAS;
         }
         switch (request.getMethod()) {
             case Request.METHOD_GET: {
@@ -232,86 +931,136 @@ public class CustomServer extends HttpServer implements Service {
                     if (response.getStatus() != 200) {
                         continue;
                     }
-                    final ExtendedRecord record = ExtendedRecord.fromBytes(response.getBody());
-                    if (newest == null || record.getTimestamp() > newest.getTimestamp()) {
-                        newest = record;
-                    }
+                    newest = newest(newest, record(response));
                 }
                 if (newest == null || newest.isDeleted()) {
-                    return new Response(Response.NOT_FOUND, Response.EMPTY);
+                    return EncodedResponse.NOT_FOUND;
                 } else {
-                    final byte[] value = RocksByteBufferUtils.copyByteBuffer(newest.getValue());
-                    return Response.ok(value);
+                    return new RecordResponse(newest, false);
                 }
             }
             case Request.METHOD_PUT: {
-                return new Response(Response.CREATED, Response.EMPTY);
+                return EncodedResponse.CREATED;
             }
             case Request.METHOD_DELETE: {
-                return new Response(Response.ACCEPTED, Response.EMPTY);
+                return EncodedResponse.ACCEPTED;
             }
             default:
-                return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+                return EncodedResponse.METHOD_NOT_ALLOWED;
         }
     }
 
-    private void sendError(@NotNull final HttpSession session, @NotNull final String message) {
-        try {
-            session.sendError(Response.INTERNAL_ERROR, message);
-        } catch (IOException e) {
-            log.error("Error", e);
-       //     System.out.println("error" + e.getMessage());
+    /**
+     * Checks the status of the replica which has handled the request.
+     */
+    private static boolean isSuccess(final int status) {
+        return status == 200 || status == 201 || status == 202 || status == 404;
+    }
+
+    @NotNull
+    private static byte[] body(@NotNull final Request request) {
+        return request.getBody() == null ? Response.EMPTY : request.getBody();
+    }
+
+    /**
+     * Provides the record of a successful response of a replica, either local or sent by another node.
+     */
+    @NotNull
+    private static ExtendedRecord record(@NotNull final Response response) {
+        return response instanceof RecordResponse
+                ? ((RecordResponse) response).getRecord()
+                : ExtendedRecord.fromBytes(response.getBody());
+    }
+
+    @Nullable
+    private static ExtendedRecord newest(@Nullable final ExtendedRecord current,
+                                         @Nullable final ExtendedRecord candidate) {
+        if (candidate == null) {
+            return current;
         }
+        return current == null || candidate.getTimestamp() > current.getTimestamp() ? candidate : current;
     }
 
-    private Integer[] generateAckFrom() {
-        return new Integer[]{topology.getNodes().size() / 2 + 1, topology.getNodes().size()};
+    /**
+     * Parses {@code ack/from} parameter, the replicas are shared by the requests.
+     *
+     * @return replicas, the majority of all the nodes if the parameter is absent or {@code null} if it is invalid
+     */
+    @Nullable
+    private Replicas replicas(@Nullable final String parameter) {
+        if (parameter == null || parameter.isEmpty()) {
+            return defaultReplicas;
+        }
+        final int slash = parameter.indexOf('/');
+        final int ack = parseCount(parameter, 0, slash);
+        final int from = parseCount(parameter, slash + 1, parameter.length());
+        final int nodes = topology.size();
+        if (ack <= 0 || from <= 0 || ack > from || from > nodes) {
+            return null;
+        }
+        return replicasTable[(from - 1) * nodes + ack - 1];
     }
 
-    private boolean checkAckFrom(Integer ack, Integer from) {
-        return ack <= from && ack != 0 && from != 0 && from <= topology.getNodes().size();
+    /**
+     * Parses the decimal digits between the indexes.
+     *
+     * @return the number or -1 if there are no digits, some other chars or too many digits
+     */
+    private static int parseCount(@NotNull final String parameter, final int start, final int end) {
+        if (start >= end || end - start > 4) {
+            return -1;
+        }
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            final char digit = parameter.charAt(i);
+            if (digit < '0' || digit > '9') {
+                return -1;
+            }
+            count = count * 10 + digit - '0';
+        }
+        return count;
     }
 
-    private Integer[] getAckFrom(final String replicas) {
-        final List<String> array = Splitter.on("/").splitToList(replicas);
-        if (array.size() < 2) {
-            return new Integer[]{0, 0};
-        } else {
-            return new Integer[]{Integer.parseInt(array.get(0)), Integer.parseInt(array.get(1))};
+    /**
+     * Parses the optional non-negative parameter.
+     *
+     * @return the value, 0 if the parameter is absent or -1 if it is malformed
+     */
+    private static long parseLong(@Nullable final String parameter) {
+        if (parameter == null || parameter.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(Long.parseLong(parameter), -1);
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
     private void sendResponse(@NotNull final Response response, @NotNull final HttpSession session) {
         try {
-            session.sendResponse(response);
+            send(response, session);
         } catch (IOException e) {
             log.error(e);
         }
     }
 
-    private Response handleEntityRequest(@NotNull final String id, @NotNull final Request request) throws IOException {
-        final ByteBuffer key = ByteBuffer.wrap(id.getBytes(Charsets.UTF_8));
-        Response response;
-        switch (request.getMethod()) {
-            case Request.METHOD_GET:
-                response = handleGet(key);
-                break;
-            case Request.METHOD_PUT:
-                response = handlePut(request, key);
-                break;
-            case Request.METHOD_DELETE:
-                response = handleDelete(key);
-                break;
-            default:
-                response = new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
-                break;
+    private static void send(@NotNull final Response response, @NotNull final HttpSession session) throws IOException {
+        if (response instanceof RecordResponse) {
+            ((RecordResponse) response).send(session);
+        } else if (response instanceof EncodedResponse) {
+            ((EncodedResponse) response).send(session);
+        } else {
+            session.sendResponse(response);
         }
-        return response;
     }
 
     /**
      * Provides all entries from start key to end key, if end key.
      * Retrieves full range from start in case of nonexistent end key.
+     * A DELETE removes the entries from start key to end key, which is required then, on all the nodes,
+     * as the keys of any range are spread over the whole cluster, and responds with 202 once all of them are done.
+     * The nodes get the time of the removal in {@code timestamp}.
      *
      * @param start start key of range
      * @param end   end key of range
@@ -320,6 +1069,8 @@ public class CustomServer extends HttpServer implements Service {
     public void entities(
             @Param("start") final String start,
             @Param("end") final String end,
+            @Param("timestamp") final String timestamp,
+            @NotNull final Request request,
             @NotNull final HttpSession session) throws IOException {
         if (start == null || start.isEmpty()) {
             session.sendResponse(
@@ -327,6 +1078,10 @@ public class CustomServer extends HttpServer implements Service {
                             "Start parameter is required".getBytes(Charsets.UTF_8)));
             return;
         }
+        if (request.getMethod() == Request.METHOD_DELETE) {
+            removeEntities(start, end, timestamp, request, session);
+            return;
+        }
         final ByteBuffer startKey = ByteBuffer.wrap(start.getBytes(Charsets.UTF_8));
         ByteBuffer tempEndKey = null;
 
@@ -335,50 +1090,189 @@ public class CustomServer extends HttpServer implements Service {
         }
         final ByteBuffer endKey = tempEndKey;
         final StreamHttpSession streamSession = (StreamHttpSession) session;
-        asyncExecute(() -> {
+        final ThreadPoolExecutor executor = executors.get(ServerConfig.Pool.STREAM);
+        if (!admission.tryAcquire(ServerConfig.Pool.STREAM, executor)) {
+            sendResponse(EncodedResponse.SERVICE_UNAVAILABLE, session);
+            return;
+        }
+        // The stream is in flight until its iterator is closed
+        final Runnable task = admission.task(ServerConfig.Pool.STREAM, () -> {
+            final Iterator<Record> iterator;
             try {
-                handleEntities(startKey, endKey, streamSession);
+                iterator = dao.range(startKey, endKey);
             } catch (IOException exception) {
+                admission.release();
+                sendResponse(EncodedResponse.INTERNAL_ERROR, session);
+                return;
+            }
+            try {
+                streamSession.openStream(admission.releasing(iterator));
+            } catch (IOException exception) {
+                sendResponse(EncodedResponse.INTERNAL_ERROR, session);
+            }
+        }, () -> {
+            admission.release();
+            sendResponse(EncodedResponse.SERVICE_UNAVAILABLE, session);
+        });
+        if (!submit(ServerConfig.Pool.STREAM, task)) {
+            admission.release();
+            sendResponse(EncodedResponse.SERVICE_UNAVAILABLE, session);
+        }
+    }
+
+    private void removeEntities(@NotNull final String start,
+                                @Nullable final String end,
+                                @Nullable final String timestamp,
+                                @NotNull final Request request,
+                                @NotNull final HttpSession session) {
+        if (end == null || end.isEmpty()) {
+            sendResponse(new Response(Response.BAD_REQUEST, "End parameter is required".getBytes(Charsets.UTF_8)),
+                    session);
+            return;
+        }
+        final ByteBuffer from = ByteBuffer.wrap(start.getBytes(Charsets.UTF_8));
+        final ByteBuffer to = ByteBuffer.wrap(end.getBytes(Charsets.UTF_8));
+        if (getServiceMarkerHeader(request)) {
+            final long removedAt = parseLong(timestamp);
+            if (removedAt <= 0) {
+                sendResponse(
+                        new Response(Response.BAD_REQUEST, "Bad timestamp parameter".getBytes(Charsets.UTF_8)),
+                        session);
+                return;
+            }
+            executeAdmitted(ServerConfig.Pool.INTERNODE, session, () -> {
                 try {
-                    session.sendResponse(new Response(Response.INTERNAL_ERROR));
-                } catch (IOException e) {
-                    log.error("Exception while initializing RocksDB", e);
+                    dao.removeRange(from, to, removedAt);
+                    return CompletableFuture.completedFuture(EncodedResponse.ACCEPTED);
+                } catch (IOException exception) {
+                    log.error("Can't remove range", exception);
+                    return CompletableFuture.completedFuture(EncodedResponse.INTERNAL_ERROR);
                 }
+            });
+            return;
+        }
+        final long removedAt = System.currentTimeMillis();
+        executeAdmitted(ServerConfig.Pool.CLIENT, session,
+                () -> executeRangeRemoval(start, end, from, to, removedAt));
+    }
+
+    private CompletableFuture<Response> executeRangeRemoval(@NotNull final String start,
+                                                            @NotNull final String end,
+                                                            @NotNull final ByteBuffer from,
+                                                            @NotNull final ByteBuffer to,
+                                                            final long timestamp) {
+        final Set<String> nodes = topology.getNodes();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final List<CompletableFuture<?>> requests = new ArrayList<>(nodes.size());
+        final String query = "?start=" + encode(start) + "&end=" + encode(end) + "&timestamp=" + timestamp;
+        for (final String node : nodes) {
+            if (topology.isCurrentNode(node)) {
+                continue;
             }
-        });
+            final HttpRequest httpRequest = HttpRequest.newBuilder()
+                    .uri(URI.create(node + "/v0/entities" + query))
+                    .timeout(REMOVE_RANGE_TIMEOUT)
+                    .setHeader("X-Service-Request", "true")
+                    .DELETE()
+                    .build();
+            requests.add(httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.discarding())
+                    .thenAccept(res -> {
+                        if (res.statusCode() == 202) {
+                            succeeded.incrementAndGet();
+                        }
+                    })
+                    .exceptionally(e -> null));
+        }
+        try {
+            dao.removeRange(from, to, timestamp);
+            succeeded.incrementAndGet();
+        } catch (IOException exception) {
+            log.error("Can't remove range", exception);
+        }
+
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).thenApply(ignored ->
+                succeeded.get() < nodes.size()
+                        ? EncodedResponse.NOT_ENOUGH_REPLICAS
+                        : EncodedResponse.ACCEPTED);
     }
 
-    private void handleEntities(
-            @NotNull final ByteBuffer start,
-            @Nullable final ByteBuffer end,
-            @NotNull final StreamHttpSession session) throws IOException {
-        final Iterator<Record> iterator = dao.range(start, end);
-        session.openStream(iterator);
+    @NotNull
+    private static String encode(@NotNull final String parameter) {
+        return URLEncoder.encode(parameter, StandardCharsets.UTF_8).replace("+", "%20");
     }
 
     @Override
-    public HttpSession createSession(final Socket socket) throws RejectedSessionException {
-        return new StreamHttpSession(socket, this);
+    public synchronized void start() {
+        storage = AsyncDAO.create(dao);
+        final Map<ServerConfig.Pool, ThreadPoolExecutor> started = new EnumMap<>(ServerConfig.Pool.class);
+        for (final ServerConfig.Pool pool : ServerConfig.Pool.values()) {
+            started.put(pool, config.newExecutor(pool));
+        }
+        executors = started;
+        super.start();
     }
 
-    private Response handleGet(final ByteBuffer key) throws IOException {
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        for (final ThreadPoolExecutor executor : executors.values()) {
+            executor.shutdown();
+        }
         try {
-
-            ExtendedRecord record = dao.getRecord(key);
-            return new Response(Response.OK, record.toBytes());
-        } catch (NoSuchElementException e) {
-            return new Response(Response.NOT_FOUND, "Key not found".getBytes(Charsets.UTF_8));
+            for (final ThreadPoolExecutor executor : executors.values()) {
+                if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.error("Request executor hasn't stopped in time");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (storage == null) {
+            return;
+        }
+        try {
+            storage.close();
+        } catch (IOException e) {
+            log.error("Can't stop storage executor", e);
         }
     }
 
-    private Response handlePut(final Request request, final ByteBuffer key) throws IOException {
-        dao.upsert(key, ByteBuffer.wrap(request.getBody()));
-        return new Response(Response.CREATED, Response.EMPTY);
+    @Override
+    public HttpSession createSession(final Socket socket) throws RejectedSessionException {
+        return new StreamHttpSession(socket, this, this::reserveBodyRoom);
     }
 
-    private Response handleDelete(final ByteBuffer key) throws IOException {
-        dao.remove(key);
-        return new Response(Response.ACCEPTED, Response.EMPTY);
+    /**
+     * Reserves the room for the record header in front of the value of a client PUT, see {@link ExtendedRecord#frame}.
+     * The room is predicted with the current time and {@code ttl}, the value is copied if the header differs.
+     */
+    private int reserveBodyRoom(@NotNull final Request request) {
+        if (request.getMethod() != Request.METHOD_PUT
+                || !ENTITY_PATH.equals(request.getPath())
+                || getServiceMarkerHeader(request)) {
+            return 0;
+        }
+        final long now = System.currentTimeMillis();
+        final long ttl = parseLong(request.getParameter("ttl="));
+        final long expiresAt = ttl <= 0 || ttl > (Long.MAX_VALUE - now) / 1000
+                ? 0
+                : now + TimeUnit.SECONDS.toMillis(ttl);
+        return ExtendedRecord.headerSize(now, expiresAt);
+    }
+
+    /**
+     * Provides the room reserved in front of the body.
+     */
+    private static int bodyRoom(@NotNull final Request request) {
+        final String contentLength = request.getHeader("Content-Length:");
+        if (request.getBody() == null || contentLength == null) {
+            return 0;
+        }
+        try {
+            return request.getBody().length - Integer.parseInt(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
   /*  private void setTimestamp(final Request request, final long timestamp) {
@@ -394,27 +1288,109 @@ public class CustomServer extends HttpServer implements Service {
         // request.addHeader(TIMESTAMP_HEADER + timestamp);
     }*/
 
-    private boolean getServiceMarkerHeader(final Request request) {
-        final String header = request.getHeader(SERVICE_REQUEST_HEADER);
-        if (header == null) {
-            return false;
+    /**
+     * Checks the header is {@code true} without cutting its value out, as it is checked for every request.
+     */
+    private static boolean getServiceMarkerHeader(final Request request) {
+        final String[] headers = request.getHeaders();
+        final int name = SERVICE_REQUEST_HEADER.length();
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            final String header = headers[i];
+            if (header.regionMatches(true, 0, SERVICE_REQUEST_HEADER, 0, name)) {
+                int start = name;
+                int end = header.length();
+                while (start < end && Character.isWhitespace(header.charAt(start))) {
+                    start++;
+                }
+                while (end > start && Character.isWhitespace(header.charAt(end - 1))) {
+                    end--;
+                }
+                return end - start == 4 && header.regionMatches(true, start, "true", 0, 4);
+            }
         }
-        // return Boolean.parseBoolean(header);
-        return Boolean.parseBoolean(header.strip());
+        return false;
     }
 
     private void setServiceMarkerHeader(final Request request) {
         request.addHeader(SERVICE_REQUEST_HEADER + "true");
     }
 
-    private static HttpServerConfig getConfig(final int port) {
+    /**
+     * Runs the task on the executor of the pool or responds with 503 if its queue is full.
+     */
+    private void execute(@NotNull final ServerConfig.Pool pool,
+                         @NotNull final HttpSession session,
+                         @NotNull final Runnable task) {
+        if (!submit(pool, task)) {
+            sendResponse(EncodedResponse.SERVICE_UNAVAILABLE, session);
+        }
+    }
+
+    /**
+     * Runs the request on the executor of the pool if {@link AdmissionControl} admits it
+     * and sends the response the request completes with.
+     * Responds with 503 if the request isn't admitted, waits for a thread too long or the storage executor is full.
+     */
+    private void executeAdmitted(@NotNull final ServerConfig.Pool pool,
+                                 @NotNull final HttpSession session,
+                                 @NotNull final Supplier<CompletableFuture<Response>> handler) {
+        if (!admission.tryAcquire(pool, executors.get(pool))) {
+            sendResponse(EncodedResponse.SERVICE_UNAVAILABLE, session);
+            return;
+        }
+        final Runnable task = admission.task(pool, () -> {
+            CompletableFuture<Response> response;
+            try {
+                response = handler.get();
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            response.whenComplete((result, exception) -> {
+                try {
+                    sendResponse(exception == null ? result : failure(exception), session);
+                } finally {
+                    admission.release();
+                }
+            });
+        }, () -> {
+            admission.release();
+            sendResponse(EncodedResponse.SERVICE_UNAVAILABLE, session);
+        });
+        if (!submit(pool, task)) {
+            admission.release();
+            sendResponse(EncodedResponse.SERVICE_UNAVAILABLE, session);
+        }
+    }
+
+    private boolean submit(@NotNull final ServerConfig.Pool pool, @NotNull final Runnable task) {
+        try {
+            executors.get(pool).execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.get(pool).increment();
+            return false;
+        }
+    }
+
+    @NotNull
+    private static Response failure(@NotNull final Throwable exception) {
+        final Throwable cause = exception instanceof CompletionException ? exception.getCause() : exception;
+        if (cause instanceof RejectedExecutionException) {
+            return EncodedResponse.SERVICE_UNAVAILABLE;
+        }
+        log.error("Request failed", cause);
+        return EncodedResponse.INTERNAL_ERROR;
+    }
+
+    private int queueSize(@NotNull final ServerConfig.Pool pool) {
+        final ThreadPoolExecutor executor = executors.get(pool);
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    private static HttpServerConfig getConfig(final int port, @NotNull final ServerConfig config) {
         if (port <= 1024 || port >= 65535) {
             throw new IllegalArgumentException("Invalid port");
         }
-        final AcceptorConfig acceptor = new AcceptorConfig();
-        acceptor.port = port;
-        final HttpServerConfig httpServerConfig = new HttpServerConfig();
-        httpServerConfig.acceptors = new AcceptorConfig[]{acceptor};
-        return httpServerConfig;
+        return config.toHttpServerConfig(port);
     }
 }
@@ -0,0 +1,71 @@
+package ru.mail.polis.service;
+
+import com.google.common.base.Charsets;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.StreamHttpSession;
+
+import java.io.IOException;
+
+/**
+ * Response without a varying part, which is encoded once and shared between the requests.
+ * It is written to the session as is, with the {@code Connection} header the request asks for,
+ * so no response is built per request. The shared response can't be changed.
+ *
+ * @author Pavel Pokatilo
+ */
+final class EncodedResponse extends Response {
+    static final EncodedResponse CREATED = of(Response.CREATED);
+    static final EncodedResponse ACCEPTED = of(Response.ACCEPTED);
+    static final EncodedResponse NOT_FOUND = of(Response.NOT_FOUND);
+    static final EncodedResponse BAD_REQUEST = of(Response.BAD_REQUEST);
+    static final EncodedResponse METHOD_NOT_ALLOWED = of(Response.METHOD_NOT_ALLOWED);
+    static final EncodedResponse INTERNAL_ERROR = of(Response.INTERNAL_ERROR);
+    static final EncodedResponse SERVICE_UNAVAILABLE = of(Response.SERVICE_UNAVAILABLE);
+    static final EncodedResponse GATEWAY_TIMEOUT = of(Response.GATEWAY_TIMEOUT);
+    static final EncodedResponse NOT_ENOUGH_REPLICAS = of("504 Not Enough Replicas");
+
+    private final String resultCode;
+    private final byte[] keepAlive;
+    private final byte[] close;
+
+    private EncodedResponse(@NotNull final String resultCode, @NotNull final byte[] body) {
+        super(resultCode, body);
+        this.resultCode = resultCode;
+        this.keepAlive = encode(resultCode, body, "Connection: Keep-Alive");
+        this.close = encode(resultCode, body, "Connection: close");
+    }
+
+    @NotNull
+    static EncodedResponse of(@NotNull final String resultCode) {
+        return new EncodedResponse(resultCode, Response.EMPTY);
+    }
+
+    @NotNull
+    static EncodedResponse of(@NotNull final String resultCode, @NotNull final String message) {
+        return new EncodedResponse(resultCode, message.getBytes(Charsets.UTF_8));
+    }
+
+    @Override
+    public void addHeader(final String header) {
+        throw new UnsupportedOperationException("Shared response can't be changed");
+    }
+
+    void send(@NotNull final HttpSession session) throws IOException {
+        if (session instanceof StreamHttpSession) {
+            ((StreamHttpSession) session).sendEncoded(keepAlive, close, getBody().length);
+        } else {
+            session.sendResponse(new Response(resultCode, getBody()));
+        }
+    }
+
+    @NotNull
+    private static byte[] encode(@NotNull final String resultCode,
+                                 @NotNull final byte[] body,
+                                 @NotNull final String connection) {
+        final Response response = new Response(resultCode, body);
+        response.addHeader(connection);
+        return response.toBytes(true);
+    }
+}
@@ -0,0 +1,45 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.ExtendedRecord;
+import ru.mail.polis.dao.StreamHttpSession;
+import ru.mail.polis.dao.ValueRegion;
+import ru.mail.polis.utils.RocksByteBufferUtils;
+
+import java.io.IOException;
+
+/**
+ * Successful response carrying a record, which body is built only when it is sent:
+ * the whole record for internode replies or the bare value for clients.
+ * A value stored in a value log is sent from the file by sendfile without copying to the heap.
+ *
+ * @author Pavel Pokatilo
+ */
+final class RecordResponse extends Response {
+    private final ExtendedRecord record;
+    private final boolean internode;
+
+    RecordResponse(@NotNull final ExtendedRecord record, final boolean internode) {
+        super(Response.OK);
+        this.record = record;
+        this.internode = internode;
+    }
+
+    @NotNull
+    ExtendedRecord getRecord() {
+        return record;
+    }
+
+    void send(@NotNull final HttpSession session) throws IOException {
+        final ValueRegion region = record.getValueRegion();
+        if (region != null && session instanceof StreamHttpSession) {
+            ((StreamHttpSession) session).sendRegion(internode ? record.headerBytes() : Response.EMPTY, region);
+        } else if (internode) {
+            session.sendResponse(Response.ok(record.toBytes()));
+        } else {
+            session.sendResponse(Response.ok(RocksByteBufferUtils.copyByteBuffer(record.getValue())));
+        }
+    }
+}
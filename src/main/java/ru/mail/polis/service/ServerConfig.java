@@ -0,0 +1,230 @@
+package ru.mail.polis.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import one.nio.http.HttpServerConfig;
+import one.nio.server.AcceptorConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threads and socket settings of {@link CustomServer} sized for the number of cores of the node.
+ * Every setting can be overridden with its own {@code http.*} system property, see {@link #load()}.
+ *
+ * <p>The selectors parse the requests and run the handlers, unless one-nio workers are configured.
+ * The handlers pass the work on to one of the {@link Pool}s, so a flood of client requests can't starve
+ * the requests of the other nodes, which the clients of those nodes are waiting for, and a long range stream
+ * can't hold up the point requests.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class ServerConfig {
+    private final int cores;
+    private final int selectors;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final int queueTime;
+    private final int keepAlive;
+    private final int recvBuf;
+    private final int sendBuf;
+    private final int[] threads;
+    private final int[] queues;
+    private final int maxInFlight;
+    private final int internodeReserve;
+    private final int clientDeadline;
+    private final int internodeDeadline;
+
+    /**
+     * Executors the handlers run the requests on.
+     */
+    public enum Pool {
+        /**
+         * Requests of the clients, coordinating the replicas.
+         */
+        CLIENT,
+        /**
+         * Requests of the other nodes marked with {@code X-Service-Request} header.
+         */
+        INTERNODE,
+        /**
+         * Range streams and snapshots, which take long and are few.
+         */
+        STREAM;
+
+        @NotNull
+        public String getName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private ServerConfig(final int cores,
+                         final int selectors,
+                         final int minWorkers,
+                         final int maxWorkers,
+                         final int queueTime,
+                         final int keepAlive,
+                         final int recvBuf,
+                         final int sendBuf,
+                         @NotNull final int[] threads,
+                         @NotNull final int[] queues,
+                         final int maxInFlight,
+                         final int internodeReserve,
+                         final int clientDeadline,
+                         final int internodeDeadline) {
+        this.cores = cores;
+        this.selectors = selectors;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+        this.queueTime = queueTime;
+        this.keepAlive = keepAlive;
+        this.recvBuf = recvBuf;
+        this.sendBuf = sendBuf;
+        this.threads = threads;
+        this.queues = queues;
+        this.maxInFlight = maxInFlight;
+        this.internodeReserve = internodeReserve;
+        this.clientDeadline = clientDeadline;
+        this.internodeDeadline = internodeDeadline;
+    }
+
+    /**
+     * Creates config for the number of cores without overrides:
+     * a selector and a client and an internode thread per core, a stream thread per two cores,
+     * no one-nio workers and the socket buffers of the OS.
+     * A quarter of the in-flight budget of 256 requests per core is reserved for the other nodes,
+     * a client request waits for a thread at most 500 ms and a request of another node at most 100 ms,
+     * which is as long as the coordinator waits for the replica.
+     */
+    @NotNull
+    public static ServerConfig forCores(final int cores) {
+        if (cores <= 0) {
+            throw new IllegalArgumentException("Cores must be positive");
+        }
+        return new ServerConfig(
+                cores,
+                cores,
+                0,
+                0,
+                0,
+                0,
+                0,
+                0,
+                new int[]{cores, cores, Math.max(1, cores / 2)},
+                new int[]{1024, 1024, 64},
+                256 * cores,
+                64 * cores,
+                500,
+                100);
+    }
+
+    /**
+     * Creates config for {@code http.cores} (the available processors if not set) overridden with
+     * {@code http.selectors}, {@code http.workers.min}, {@code http.workers.max}, {@code http.queue.time},
+     * {@code http.keepalive}, {@code http.recv.buffer}, {@code http.send.buffer} and
+     * {@code http.<pool>.threads} and {@code http.<pool>.queue} of every {@link Pool},
+     * {@code http.inflight.max}, {@code http.inflight.reserve}, {@code http.deadline.client} and
+     * {@code http.deadline.internode} system properties.
+     */
+    @NotNull
+    public static ServerConfig load() {
+        final ServerConfig defaults = forCores(
+                Integer.getInteger("http.cores", Runtime.getRuntime().availableProcessors()));
+        final int[] threads = new int[Pool.values().length];
+        final int[] queues = new int[Pool.values().length];
+        for (final Pool pool : Pool.values()) {
+            threads[pool.ordinal()] = Integer.getInteger(
+                    "http." + pool.getName() + ".threads", defaults.getThreads(pool));
+            queues[pool.ordinal()] = Integer.getInteger(
+                    "http." + pool.getName() + ".queue", defaults.getQueueSize(pool));
+        }
+        return new ServerConfig(
+                defaults.cores,
+                Integer.getInteger("http.selectors", defaults.selectors),
+                Integer.getInteger("http.workers.min", defaults.minWorkers),
+                Integer.getInteger("http.workers.max", defaults.maxWorkers),
+                Integer.getInteger("http.queue.time", defaults.queueTime),
+                Integer.getInteger("http.keepalive", defaults.keepAlive),
+                Integer.getInteger("http.recv.buffer", defaults.recvBuf),
+                Integer.getInteger("http.send.buffer", defaults.sendBuf),
+                threads,
+                queues,
+                Integer.getInteger("http.inflight.max", defaults.maxInFlight),
+                Integer.getInteger("http.inflight.reserve", defaults.internodeReserve),
+                Integer.getInteger("http.deadline.client", defaults.clientDeadline),
+                Integer.getInteger("http.deadline.internode", defaults.internodeDeadline));
+    }
+
+    public int getCores() {
+        return cores;
+    }
+
+    public int getSelectors() {
+        return selectors;
+    }
+
+    public int getThreads(@NotNull final Pool pool) {
+        return threads[pool.ordinal()];
+    }
+
+    public int getQueueSize(@NotNull final Pool pool) {
+        return queues[pool.ordinal()];
+    }
+
+    /**
+     * Provides the number of requests which may be handled at once.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Provides the part of {@link #getMaxInFlight()} which only the requests of the other nodes may take.
+     */
+    public int getInternodeReserve() {
+        return internodeReserve;
+    }
+
+    /**
+     * Provides the time in millis a request of the pool may wait for a thread.
+     */
+    public int getDeadline(@NotNull final Pool pool) {
+        return pool == Pool.INTERNODE ? internodeDeadline : clientDeadline;
+    }
+
+    /**
+     * Builds one-nio config of the server listening to the port.
+     */
+    @NotNull
+    HttpServerConfig toHttpServerConfig(final int port) {
+        final AcceptorConfig acceptor = new AcceptorConfig();
+        acceptor.port = port;
+        acceptor.recvBuf = recvBuf;
+        acceptor.sendBuf = sendBuf;
+        final HttpServerConfig config = new HttpServerConfig();
+        config.acceptors = new AcceptorConfig[]{acceptor};
+        config.selectors = selectors;
+        config.minWorkers = minWorkers;
+        config.maxWorkers = maxWorkers;
+        config.queueTime = queueTime;
+        config.keepAlive = keepAlive;
+        return config;
+    }
+
+    /**
+     * Creates the executor of the pool, which rejects the tasks once its queue is full.
+     */
+    @NotNull
+    ThreadPoolExecutor newExecutor(@NotNull final Pool pool) {
+        final int size = getThreads(pool);
+        return new ThreadPoolExecutor(
+                size,
+                size,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(getQueueSize(pool)),
+                new ThreadFactoryBuilder().setNameFormat(pool.getName() + "-%d").setDaemon(true).build());
+    }
+}
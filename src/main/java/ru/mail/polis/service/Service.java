@@ -32,6 +32,10 @@ package ru.mail.polis.service;
  * upsert (create or replace) data by {@code ID}. Returns {@code 201}.</li>
  * <li>{@code DELETE /v0/entity?id=<ID>} --
  * remove data by {@code ID}. Returns {@code 202}.</li>
+ * <li>{@code POST /v0/entities/batch} --
+ * get data by {@code ID}s sent in the body separated by {@code \n}.
+ * Returns {@code 200} and {@code <length><value>} entries in the order of {@code ID}s,
+ * where {@code length} is a 4-byte integer, {@code -1} if not found.</li>
  * </ul>
  *
  * <p>{@code ID} is a non empty char sequence.
@@ -1,21 +1,28 @@
 package ru.mail.polis.service;
 
 import com.google.common.base.Charsets;
-import com.google.common.collect.*;
-import com.google.common.hash.Hashing;
+import com.google.common.collect.ImmutableList;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class Topology {
     private final String currentNode;
     private final List<String> nodes;
-    private final TreeRangeMap<Integer, String> nodesTable;
+    /**
+     * Pools of replicas of every owner by their size, built once as the requests select them all the time.
+     */
+    private final List<List<List<String>>> pools;
 
-    private static final int PART_SIZE = 1 << 22;
-    private static final int PARTS_NUMBER = 1 << (Integer.SIZE - 22);
+    private static final int PART_BITS = 22;
+    private static final int HASH_BYTES = 32;
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(Topology::sha256);
+    private static final ThreadLocal<byte[]> HASH = ThreadLocal.withInitial(() -> new byte[HASH_BYTES]);
 
     public Topology(String currentNode, final Set<String> topology) {
         if (!topology.contains(currentNode)) {
@@ -23,58 +30,98 @@ public class Topology {
         }
         this.currentNode = currentNode;
         this.nodes = topology.stream().sorted().collect(Collectors.toList());
-        this.nodesTable = createTable();
+        this.pools = createPools();
     }
 
-    private TreeRangeMap<Integer, String> createTable() {
-        final TreeRangeMap<Integer, String> table = TreeRangeMap.create();
-        final Iterator<String> nodeIterator = Iterators.cycle(nodes);
-        for (int i = 0; i < PARTS_NUMBER; i++) {
-            final String node = nodeIterator.next();
-            final int lowerBound = Integer.MIN_VALUE + i * PART_SIZE;
-            final int upperBound = Integer.MIN_VALUE + (i + 1) * PART_SIZE - 1;
-            final Range<Integer> key = Range.closed(lowerBound, upperBound);
-            table.put(key, node);
+    private List<List<List<String>>> createPools() {
+        final List<List<List<String>>> result = new ArrayList<>(nodes.size());
+        for (int owner = 0; owner < nodes.size(); owner++) {
+            final List<List<String>> ownerPools = new ArrayList<>(nodes.size() + 1);
+            for (int size = 0; size <= nodes.size(); size++) {
+                final ImmutableList.Builder<String> pool = ImmutableList.builder();
+                for (int i = 0; i < size; i++) {
+                    pool.add(nodes.get((owner + i) % nodes.size()));
+                }
+                ownerPools.add(pool.build());
+            }
+            result.add(ownerPools);
         }
-        return table;
+        return result;
     }
 
     public boolean isCurrentNode(@NotNull final String node) {
         return currentNode.equals(node);
     }
 
-    private int hash(final ByteBuffer key) {
-        final var keyCopy = key.duplicate();
-        return Hashing.sha256()
-                .newHasher(keyCopy.remaining())
-                .putBytes(keyCopy)
-                .hash()
-                .asInt();
+    /**
+     * Provides the number of the nodes without copying them.
+     */
+    public int size() {
+        return nodes.size();
     }
 
-    public String getNode(@NotNull final ByteBuffer key) {
-        final int hash = hash(key);
-        final String node = nodesTable.get(hash);
-        if (node == null) {
-            throw new IllegalStateException("Node doesn't exist for hash: " + hash);
+    /**
+     * Hashes the key with SHA-256 without allocations, the first 4 bytes of the digest are taken
+     * in little-endian order like {@code HashCode.asInt()} of Guava does.
+     */
+    private static int hash(@NotNull final ByteBuffer key) {
+        final MessageDigest digest = DIGEST.get();
+        if (key.hasArray()) {
+            digest.update(key.array(), key.arrayOffset() + key.position(), key.remaining());
+        } else {
+            digest.update(key.duplicate());
+        }
+        final byte[] hash = HASH.get();
+        try {
+            digest.digest(hash, 0, HASH_BYTES);
+        } catch (DigestException e) {
+            throw new IllegalStateException("Can't hash key", e);
         }
-        return node;
+        return (hash[0] & 0xFF)
+                | (hash[1] & 0xFF) << 8
+                | (hash[2] & 0xFF) << 16
+                | (hash[3] & 0xFF) << 24;
+    }
+
+    /**
+     * Provides the index of the owner of the key, the hash space is split into {@code 2^10} equal parts
+     * assigned to the sorted nodes in turn.
+     */
+    private int owner(@NotNull final ByteBuffer key) {
+        final int part = (hash(key) ^ Integer.MIN_VALUE) >>> PART_BITS;
+        return part % nodes.size();
     }
+
+    public String getNode(@NotNull final ByteBuffer key) {
+        return nodes.get(owner(key));
+    }
+
     public List<String> selectNodePool(@NotNull final String keyString, final int numOfNodes) {
-        final ByteBuffer key = ByteBuffer.wrap(keyString.getBytes(Charsets.UTF_8));
-        final int keyHash = Hashing.sha256().hashBytes(key.duplicate()).asInt();
-        final String node = this.nodesTable.get(keyHash);
-        final List<String> resultNodes = new ArrayList<>(numOfNodes);
-        final PeekingIterator<String> iterator = Iterators.peekingIterator(Iterators.cycle(nodes));
-        while (!iterator.peek().equals(node)) {
-            iterator.next();
-        }
-        for (int i = 0; i < numOfNodes; i++) {
-            resultNodes.add(iterator.next());
+        return selectNodePool(ByteBuffer.wrap(keyString.getBytes(Charsets.UTF_8)), numOfNodes);
+    }
+
+    /**
+     * Selects the owner of the key followed by the next nodes, the pool is shared and can't be changed.
+     *
+     * @param key        key, which position isn't changed
+     * @param numOfNodes size of the pool, no more than the number of the nodes
+     */
+    public List<String> selectNodePool(@NotNull final ByteBuffer key, final int numOfNodes) {
+        if (numOfNodes < 0 || numOfNodes > nodes.size()) {
+            throw new IllegalArgumentException("Pool can't have " + numOfNodes + " nodes");
         }
-        return resultNodes;
+        return pools.get(owner(key)).get(numOfNodes);
     }
+
     public Set<String> getNodes() {
         return new HashSet<>(nodes);
     }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 isn't supported", e);
+        }
+    }
 }
@@ -0,0 +1,182 @@
+package ru.mail.polis.utils;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.service.CustomServer;
+import ru.mail.polis.service.ServerConfig;
+import ru.mail.polis.service.Topology;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Measures the bytes the server threads allocate per {@code PUT}, {@code GET} and {@code DELETE} of
+ * {@code /v0/entity} of a single node and of two nodes replicating every value,
+ * for values of 100 bytes, 1 KB and 16 KB (or the given sizes).
+ * The allocations of the client, which runs in the benchmark thread, aren't counted.
+ * The allocated bytes divided by the value size show how many times the value is copied on the heap,
+ * the bytes per request of the small values show the cost of handling the request itself.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class AllocationBenchmark {
+    private static final int[] VALUE_SIZES = {100, 1024, 16 * 1024};
+    private static final int[] NODES = {1, 2};
+    private static final String[] METHODS = {"PUT", "GET", "DELETE"};
+
+    private AllocationBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage:\n\tjava -Xmx256m -cp build/classes/java/main:<dependencies> "
+                    + "ru.mail.polis.utils.AllocationBenchmark <requests> [value bytes...]");
+            System.exit(-1);
+        }
+
+        final int requests = Integer.parseInt(args[0]);
+        int[] sizes = VALUE_SIZES;
+        if (args.length > 1) {
+            sizes = Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray();
+        }
+
+        System.out.printf(Locale.ROOT, "%-6s %-7s %10s %14s %14s %8s%n",
+                "nodes", "method", "value", "bytes/request", "value copies", "failed");
+        for (final int nodes : NODES) {
+            final Cluster cluster = new Cluster(nodes);
+            try {
+                final HttpClient client = new HttpClient(new ConnectionString(cluster.endpoint(0) + "?timeout=1000"));
+                try {
+                    for (final int size : sizes) {
+                        final byte[] value = new byte[size];
+                        for (final String method : METHODS) {
+                            // Warms up the path and the storage before the measurement
+                            send(client, method, value, requests, nodes);
+                            final long allocated = serverAllocatedBytes();
+                            final int failed = send(client, method, value, requests, nodes);
+                            final double perRequest = (double) (serverAllocatedBytes() - allocated) / requests;
+                            System.out.printf(Locale.ROOT, "%-6d %-7s %10d %14.0f %14.2f %8d%n",
+                                    nodes, method, size, perRequest, perRequest / size, failed);
+                        }
+                    }
+                } finally {
+                    client.close();
+                }
+            } finally {
+                cluster.close();
+            }
+        }
+    }
+
+    /**
+     * Puts, gets or deletes the value with all the replicas.
+     *
+     * @return number of the requests which have failed
+     */
+    private static int send(@NotNull final HttpClient client,
+                            @NotNull final String method,
+                            @NotNull final byte[] value,
+                            final int requests,
+                            final int nodes) throws Exception {
+        int failed = 0;
+        for (int i = 0; i < requests; i++) {
+            final String uri = "/v0/entity?id=" + i + "&replicas=" + nodes + "/" + nodes;
+            final Response response;
+            switch (method) {
+                case "PUT":
+                    response = client.put(uri, value);
+                    break;
+                case "GET":
+                    response = client.get(uri);
+                    break;
+                default:
+                    response = client.delete(uri);
+                    break;
+            }
+            if (response.getStatus() >= 300 && response.getStatus() != 404) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Sums the bytes allocated by the live threads but the current one.
+     */
+    private static long serverAllocatedBytes() {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long current = Thread.currentThread().getId();
+        final long[] ids = Arrays.stream(threads.getAllThreadIds()).filter(id -> id != current).toArray();
+        return Arrays.stream(threads.getThreadAllocatedBytes(ids)).filter(bytes -> bytes > 0).sum();
+    }
+
+    /**
+     * Local nodes with their own storages.
+     */
+    private static final class Cluster {
+        private final List<String> endpoints = new ArrayList<>();
+        private final List<Path> data = new ArrayList<>();
+        private final List<DAO> daos = new ArrayList<>();
+        private final List<CustomServer> servers = new ArrayList<>();
+
+        Cluster(final int nodes) throws IOException {
+            for (int i = 0; i < nodes; i++) {
+                endpoints.add("http://localhost:" + freePort());
+            }
+            final Set<String> topology = new LinkedHashSet<>(endpoints);
+            for (final String endpoint : endpoints) {
+                final Path directory = Files.createTempDirectory("benchmark-allocation");
+                data.add(directory);
+                final DAO dao = DAOFactory.create(directory.toFile());
+                daos.add(dao);
+                final CustomServer server = new CustomServer(
+                        Integer.parseInt(endpoint.substring(endpoint.lastIndexOf(':') + 1)),
+                        dao,
+                        new Topology(endpoint, topology),
+                        ServerConfig.load());
+                servers.add(server);
+                server.start();
+            }
+        }
+
+        @NotNull
+        String endpoint(final int node) {
+            return endpoints.get(node);
+        }
+
+        void close() throws IOException {
+            servers.forEach(CustomServer::stop);
+            for (final DAO dao : daos) {
+                dao.close();
+            }
+            for (final Path directory : data) {
+                try (Stream<Path> paths = Files.walk(directory)) {
+                    paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+                }
+            }
+        }
+
+        private static int freePort() throws IOException {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                return socket.getLocalPort();
+            }
+        }
+    }
+}
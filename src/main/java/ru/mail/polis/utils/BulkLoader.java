@@ -0,0 +1,158 @@
+package ru.mail.polis.utils;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.dao.ExtendedRecord;
+import ru.mail.polis.dao.RecordFeed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+/**
+ * Bulk import of {@link RecordFeed}s bypassing {@code PUT /v0/entity}.
+ * <ul>
+ * <li>{@code generate <records>} writes a sorted feed with the keys and values of {@link TankGenerator}
+ * to stdout</li>
+ * <li>{@code load <endpoint> [ack/from]} sends the feed from stdin to {@code /v0/entities/ingest}
+ * of a cluster node in parts fitting {@code http.max.body}</li>
+ * <li>{@code ingest <directory>} stores the feed from stdin to the storage of a stopped node</li>
+ * </ul>
+ *
+ * @author Pavel Pokatilo
+ */
+public final class BulkLoader {
+    private static final int PART_SIZE = Integer.getInteger("http.max.body", 4 * 1024 * 1024);
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+
+    private BulkLoader() {
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage:\n\tjava -Xmx256m -cp build/classes/java/main:<dependencies> "
+                    + "ru.mail.polis.utils.BulkLoader "
+                    + "<generate <records>|load <endpoint> [ack/from]|ingest <directory>>");
+            System.exit(-1);
+        }
+
+        switch (args[0]) {
+            case "generate":
+                generate(Long.parseLong(args[1]));
+                break;
+            case "load":
+                load(args[1], args.length > 2 ? args[2] : null);
+                break;
+            case "ingest":
+                ingest(new File(args[1]));
+                break;
+            default:
+                throw new UnsupportedOperationException("Unsupported mode: " + args[0]);
+        }
+    }
+
+    /**
+     * Writes the keys {@code 0..records-1} in the lexicographic order of their decimal form.
+     */
+    private static void generate(final long records) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+        final long timestamp = System.currentTimeMillis();
+        if (records > 0) {
+            write(0, timestamp, out);
+        }
+        long key = 1;
+        for (long i = 1; i < records; i++) {
+            write(key, timestamp, out);
+            if (key * 10 < records) {
+                key *= 10;
+            } else {
+                while (key % 10 == 9 || key + 1 >= records) {
+                    key /= 10;
+                }
+                key++;
+            }
+        }
+        out.flush();
+    }
+
+    private static void write(final long key,
+                              final long timestamp,
+                              @NotNull final DataOutputStream out) throws IOException {
+        final ByteBuffer value = ByteBuffer.wrap(TankGenerator.randomValue());
+        RecordFeed.write(
+                ByteBuffer.wrap(String.valueOf(key).getBytes(StandardCharsets.US_ASCII)),
+                new ExtendedRecord(value, timestamp, false),
+                out);
+    }
+
+    private static void load(@NotNull final String endpoint, final String replicas)
+            throws IOException, InterruptedException {
+        final HttpClient client = HttpClient.newHttpClient();
+        final String query = replicas == null ? "" : "?replicas=" + replicas;
+        final URI uri = URI.create(endpoint + "/v0/entities/ingest" + query);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        final ByteArrayOutputStream part = new ByteArrayOutputStream(PART_SIZE);
+        final DataOutputStream out = new DataOutputStream(part);
+        long parts = 0;
+        while (true) {
+            final byte[] key;
+            final byte[] record;
+            try {
+                key = new byte[in.readInt()];
+            } catch (EOFException e) {
+                break;
+            }
+            in.readFully(key);
+            record = new byte[in.readInt()];
+            in.readFully(record);
+            final int size = Integer.BYTES * 2 + key.length + record.length;
+            if (part.size() > 0 && part.size() + size > PART_SIZE) {
+                send(client, uri, part.toByteArray());
+                part.reset();
+                parts++;
+            }
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(record.length);
+            out.write(record);
+        }
+        if (part.size() > 0) {
+            send(client, uri, part.toByteArray());
+            parts++;
+        }
+        System.out.println("Sent " + parts + " parts");
+    }
+
+    private static void send(@NotNull final HttpClient client,
+                             @NotNull final URI uri,
+                             @NotNull final byte[] part) throws IOException, InterruptedException {
+        final HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(part))
+                .build();
+        final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 201) {
+            throw new IOException("Ingestion failed with " + response.statusCode() + ": " + response.body());
+        }
+    }
+
+    private static void ingest(@NotNull final File directory) throws IOException {
+        try (DAO dao = DAOFactory.create(directory)) {
+            final long stored = dao.ingest(RecordFeed.read(new BufferedInputStream(System.in)));
+            System.out.println("Stored " + stored + " records");
+        }
+    }
+}
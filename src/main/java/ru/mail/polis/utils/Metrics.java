@@ -0,0 +1,87 @@
+package ru.mail.polis.utils;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of named counters and gauges rendered in Prometheus text format.
+ * Names may carry labels, e.g. {@code rocksdb_sst_files{level="0"}}.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class Metrics {
+    private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+    /**
+     * Registers monotonically increasing counter.
+     *
+     * @param name metric name
+     * @return counter to increment
+     */
+    @NotNull
+    public LongAdder counter(@NotNull final String name) {
+        final LongAdder counter = new LongAdder();
+        metrics.put(name, new Metric("counter", counter::sum));
+        return counter;
+    }
+
+    /**
+     * Registers monotonically increasing counter maintained elsewhere, which value is obtained on every rendering.
+     *
+     * @param name  metric name
+     * @param value value supplier
+     */
+    public void counter(@NotNull final String name, @NotNull final DoubleSupplier value) {
+        metrics.put(name, new Metric("counter", value));
+    }
+
+    /**
+     * Registers gauge which value is obtained on every rendering.
+     *
+     * @param name  metric name
+     * @param value value supplier
+     */
+    public void gauge(@NotNull final String name, @NotNull final DoubleSupplier value) {
+        metrics.put(name, new Metric("gauge", value));
+    }
+
+    /**
+     * Renders all the metrics.
+     *
+     * @param builder destination
+     */
+    public void writeTo(@NotNull final StringBuilder builder) {
+        String lastFamily = null;
+        for (final Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            final String name = entry.getKey();
+            final int labels = name.indexOf('{');
+            final String family = labels < 0 ? name : name.substring(0, labels);
+            if (!family.equals(lastFamily)) {
+                builder.append("# TYPE ").append(family).append(' ').append(entry.getValue().type).append('\n');
+                lastFamily = family;
+            }
+            final double value = entry.getValue().value.getAsDouble();
+            builder.append(name).append(' ');
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                builder.append((long) value);
+            } else {
+                builder.append(value);
+            }
+            builder.append('\n');
+        }
+    }
+
+    private static final class Metric {
+        private final String type;
+        private final DoubleSupplier value;
+
+        Metric(@NotNull final String type, @NotNull final DoubleSupplier value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+}
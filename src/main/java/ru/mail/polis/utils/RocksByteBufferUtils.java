@@ -3,9 +3,11 @@ package ru.mail.polis.utils;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 public final class RocksByteBufferUtils {
+    private static final int SIGN_BIT = 0x80;
+    private static final int MAX_REUSABLE_KEY = 64 * 1024;
+    private static final ThreadLocal<byte[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new byte[256]);
 
     private RocksByteBufferUtils() {
         throw new IllegalStateException("Utility class");
@@ -15,34 +17,66 @@ public final class RocksByteBufferUtils {
      * Used for transformation of array in ByteBuffer to unsigned byte array.
      *
      * @param buffer source ByteBuffer
-     * @return ByteBuffer
+     * @return new array of {@code buffer.remaining()} bytes
      */
     @NotNull
-    public static ByteBuffer toUnsignedByteArray(@NotNull final ByteBuffer buffer) {
-        final byte[] array = copyByteBuffer(buffer);
-        arrayTransform(array, true);
-        return ByteBuffer.wrap(array);
+    public static byte[] toUnsignedByteArray(@NotNull final ByteBuffer buffer) {
+        final byte[] array = new byte[buffer.remaining()];
+        toUnsigned(buffer, array);
+        return array;
+    }
+
+    /**
+     * Transforms the key to unsigned bytes in a buffer reused by the calling thread.
+     * Only first {@code key.remaining()} bytes of the result are meaningful,
+     * and they stay valid until the next call in the same thread.
+     *
+     * @param key source ByteBuffer
+     * @return thread local array holding the transformed key
+     */
+    @NotNull
+    public static byte[] toUnsignedKeyBuffer(@NotNull final ByteBuffer key) {
+        final int length = key.remaining();
+        if (length > MAX_REUSABLE_KEY) {
+            return toUnsignedByteArray(key);
+        }
+        byte[] array = KEY_BUFFER.get();
+        if (array.length < length) {
+            array = new byte[Math.max(length, array.length * 2)];
+            KEY_BUFFER.set(array);
+        }
+        toUnsigned(key, array);
+        return array;
     }
 
     /**
-     * Used for transformation of unsigned byte array in ByteBuffer to byte array.
+     * Used for transformation of unsigned byte array to signed bytes.
+     * The array is transformed in place and wrapped without copying.
      *
-     * @param array source byte[] array
+     * @param array source byte[] array, e.g. a key obtained from RocksDB
      * @return ByteBuffer
      */
     @NotNull
     public static ByteBuffer fromUnsignedByteArray(@NotNull final byte[] array) {
-        final byte[] arrayCopy = Arrays.copyOf(array, array.length);
-        arrayTransform(arrayCopy, false);
-        return ByteBuffer.wrap(arrayCopy);
+        for (int i = 0; i < array.length; i++) {
+            array[i] ^= SIGN_BIT;
+        }
+        return ByteBuffer.wrap(array);
     }
 
-    private static void arrayTransform(final byte[] array, final boolean toUnsigned) {
-        for (int i = 0; i < array.length; i++) {
-            final int uint = Byte.toUnsignedInt(array[i]);
-            array[i] = toUnsigned
-                    ?
-                    (byte) (uint - Byte.MIN_VALUE) : (byte) (uint + Byte.MIN_VALUE);
+    private static void toUnsigned(@NotNull final ByteBuffer src, @NotNull final byte[] dst) {
+        final int position = src.position();
+        final int length = src.remaining();
+        if (src.hasArray()) {
+            final byte[] array = src.array();
+            final int offset = src.arrayOffset() + position;
+            for (int i = 0; i < length; i++) {
+                dst[i] = (byte) (array[offset + i] ^ SIGN_BIT);
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst[i] = (byte) (src.get(position + i) ^ SIGN_BIT);
+            }
         }
     }
 
@@ -0,0 +1,169 @@
+package ru.mail.polis.utils;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.service.CustomServer;
+import ru.mail.polis.service.ServerConfig;
+import ru.mail.polis.service.Topology;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Runs a single node {@link CustomServer} configured with {@link ServerConfig#forCores} for 1, 2, 4 and 8 cores
+ * (or the given numbers) and loads it with PUTs and then GETs of four clients per core.
+ * Prints throughput and latencies, so the scaling of the selectors and the pools can be compared.
+ * The JVM should be limited to the cores under test, e.g. with {@code taskset} or
+ * {@code -XX:ActiveProcessorCount}, to measure the scaling rather than the config.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class ServerBenchmark {
+    private static final int[] CORES = {1, 2, 4, 8};
+    private static final int CLIENTS_PER_CORE = 4;
+
+    private ServerBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage:\n\tjava -Xmx256m -cp build/classes/java/main:<dependencies> "
+                    + "ru.mail.polis.utils.ServerBenchmark <requests> [cores...]");
+            System.exit(-1);
+        }
+
+        final long requests = Long.parseLong(args[0]);
+        int[] cores = CORES;
+        if (args.length > 1) {
+            cores = Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray();
+        }
+
+        System.out.printf(Locale.ROOT, "%-6s %-8s %12s %10s %10s%n", "cores", "workload", "ops/s", "p50 us", "p99 us");
+        for (final int count : cores) {
+            final Path data = Files.createTempDirectory("benchmark-server-" + count);
+            final int port = freePort();
+            final String endpoint = "http://localhost:" + port;
+            try (DAO dao = DAOFactory.create(data.toFile())) {
+                final CustomServer server = new CustomServer(
+                        port,
+                        dao,
+                        new Topology(endpoint, Collections.singleton(endpoint)),
+                        ServerConfig.forCores(count));
+                server.start();
+                try {
+                    for (final String workload : new String[]{"put", "get"}) {
+                        final Result result = run(endpoint, workload, requests, count * CLIENTS_PER_CORE);
+                        System.out.printf(Locale.ROOT, "%-6d %-8s %12.0f %10.1f %10.1f%n",
+                                count, workload, result.throughput(), result.quantile(0.5), result.quantile(0.99));
+                    }
+                } finally {
+                    server.stop();
+                }
+            } finally {
+                delete(data);
+            }
+        }
+    }
+
+    @NotNull
+    private static Result run(@NotNull final String endpoint,
+                              @NotNull final String workload,
+                              final long requests,
+                              final int clients) throws InterruptedException {
+        final long perClient = Math.max(1, requests / clients);
+        final List<Thread> threads = new ArrayList<>(clients);
+        final long[][] latencies = new long[clients][];
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            threads.add(new Thread(() -> latencies[client] = load(endpoint, workload, client, perClient)));
+        }
+        final long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        return new Result(latencies, System.nanoTime() - start);
+    }
+
+    @NotNull
+    private static long[] load(@NotNull final String endpoint,
+                               @NotNull final String workload,
+                               final int client,
+                               final long requests) {
+        final HttpClient http = new HttpClient(new ConnectionString(endpoint + "?timeout=1000"));
+        final long[] latencies = new long[Math.toIntExact(requests)];
+        try {
+            for (int i = 0; i < requests; i++) {
+                final String path = "/v0/entity?id=" + client + "-" + i;
+                final long start = System.nanoTime();
+                final Response response = "put".equals(workload)
+                        ? http.put(path, TankGenerator.randomValue())
+                        : http.get(path);
+                latencies[i] = System.nanoTime() - start;
+                if (response.getStatus() != 201 && response.getStatus() != 200) {
+                    throw new IllegalStateException("Request failed with " + response.getStatus());
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Client " + client + " failed", e);
+        } finally {
+            http.close();
+        }
+        return latencies;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void delete(@NotNull final Path data) throws IOException {
+        try (Stream<Path> paths = Files.walk(data)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Latencies of the requests of all the clients.
+     */
+    private static final class Result {
+        private final long[] latencies;
+        private final long elapsed;
+
+        Result(@NotNull final long[][] latencies, final long elapsed) {
+            this.latencies = Arrays.stream(latencies)
+                    .filter(Objects::nonNull)
+                    .flatMapToLong(Arrays::stream)
+                    .sorted()
+                    .toArray();
+            this.elapsed = elapsed;
+        }
+
+        double throughput() {
+            return elapsed == 0 ? 0 : latencies.length * 1e9 / elapsed;
+        }
+
+        double quantile(final double quantile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            return latencies[(int) Math.min(latencies.length - 1, (long) (quantile * latencies.length))] / 1e3;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ru.mail.polis.utils;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOImplementation;
+import ru.mail.polis.dao.StorageConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * Runs the {@link TankGenerator} workloads directly against {@link DAOImplementation}
+ * tuned with each {@link StorageConfig.Profile} and prints throughput and latencies.
+ * Every profile gets a fresh storage, the workloads are run one after another in the order
+ * {@code put1 put2 get1 get2 getput}, so the reads find the written keys.
+ *
+ * @author Pavel Pokatilo
+ */
+public final class StorageBenchmark {
+    private static final String[] WORKLOADS = {"put1", "put2", "get1", "get2", "getput"};
+
+    private StorageBenchmark() {
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage:\n\tjava -cp build/classes/java/main:<dependencies> "
+                    + "ru.mail.polis.utils.StorageBenchmark <requests> [profile...]");
+            System.exit(-1);
+        }
+
+        final long requests = Long.parseLong(args[0]);
+        final List<StorageConfig.Profile> profiles = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            profiles.add(StorageConfig.Profile.of(args[i]));
+        }
+        if (profiles.isEmpty()) {
+            profiles.addAll(Arrays.asList(StorageConfig.Profile.values()));
+        }
+
+        System.out.printf(Locale.ROOT, "%-14s %-8s %12s %10s %10s%n",
+                "profile", "workload", "ops/s", "p50 us", "p99 us");
+        for (final StorageConfig.Profile profile : profiles) {
+            final Path data = Files.createTempDirectory("benchmark-" + profile.getName());
+            try (DAO dao = new DAOImplementation(data.toFile(), new StorageConfig(profile))) {
+                for (final String workload : WORKLOADS) {
+                    final Result result = run(dao, workload, requests);
+                    System.out.printf(Locale.ROOT, "%-14s %-8s %12.0f %10.1f %10.1f%n",
+                            profile.getName(), workload, result.throughput(), result.quantile(0.5),
+                            result.quantile(0.99));
+                }
+            } finally {
+                delete(data);
+            }
+        }
+    }
+
+    @NotNull
+    private static Result run(@NotNull final DAO dao,
+                              @NotNull final String workload,
+                              final long requests) throws IOException {
+        final Result result = new Result(requests);
+        TankGenerator.generate(workload, requests, new TankGenerator.Target() {
+            @Override
+            public void put(final long key) throws IOException {
+                final ByteBuffer value = ByteBuffer.wrap(TankGenerator.randomValue());
+                final long start = System.nanoTime();
+                dao.upsert(key(key), value);
+                result.add(System.nanoTime() - start);
+            }
+
+            @Override
+            public void get(final long key) throws IOException {
+                final long start = System.nanoTime();
+                try {
+                    dao.get(key(key));
+                } catch (NoSuchElementException e) {
+                    // Absent keys are looked up as well
+                }
+                result.add(System.nanoTime() - start);
+            }
+        });
+        return result;
+    }
+
+    @NotNull
+    private static ByteBuffer key(final long key) {
+        return ByteBuffer.wrap(String.valueOf(key).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void delete(@NotNull final Path data) throws IOException {
+        try (Stream<Path> paths = Files.walk(data)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Latencies of the requests of a workload.
+     */
+    private static final class Result {
+        private final long[] latencies;
+        private int count;
+        private long total;
+
+        Result(final long requests) {
+            this.latencies = new long[Math.toIntExact(requests)];
+        }
+
+        void add(final long nanos) {
+            latencies[count++] = nanos;
+            total += nanos;
+        }
+
+        double throughput() {
+            return total == 0 ? 0 : count * 1e9 / total;
+        }
+
+        double quantile(final double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(count - 1, (long) (quantile * count))] / 1e3;
+        }
+    }
+}
@@ -17,8 +17,11 @@ public final class TankGenerator {
     private TankGenerator() {
     }
 
+    /**
+     * Generates a value of the size used by the workloads.
+     */
     @NotNull
-    private static byte[] randomValue() {
+    public static byte[] randomValue() {
         final byte[] result = new byte[VALUE_LENGTH];
         ThreadLocalRandom.current().nextBytes(result);
         return result;
@@ -60,72 +63,92 @@ public final class TankGenerator {
             System.exit(-1);
         }
 
-        final String mode = args[0];
-        final long requests = Long.parseLong(args[1]);
+        generate(args[0], Long.parseLong(args[1]), new Target() {
+            @Override
+            public void put(final long key) throws IOException {
+                TankGenerator.put(key);
+            }
+
+            @Override
+            public void get(final long key) throws IOException {
+                TankGenerator.get(key);
+            }
+        });
+    }
 
+    /**
+     * Runs the workload against the target.
+     *
+     * @param mode     one of {@code put1|put2|get1|get2|getput}
+     * @param requests number of requests
+     * @param target   receiver of the requests
+     */
+    public static void generate(@NotNull final String mode,
+                                final long requests,
+                                @NotNull final Target target) throws IOException {
         switch (mode) {
             case "put1":
-                put1(requests);
+                put1(requests, target);
                 break;
             case "put2":
-                put2(requests);
+                put2(requests, target);
                 break;
             case "get1":
-                get1(requests);
+                get1(requests, target);
                 break;
             case "get2":
-                get2(requests);
+                get2(requests, target);
                 break;
             case "getput":
-                getput(requests);
+                getput(requests, target);
                 break;
             default:
                 throw new UnsupportedOperationException("Unsupported mode: " + mode);
         }
     }
 
-    private static void put1(final long requests) throws IOException {
+    private static void put1(final long requests, @NotNull final Target target) throws IOException {
         for (int i = 0; i < requests; i++) {
-            put(i);
+            target.put(i);
         }
     }
 
-    private static void put2(final long requests) throws IOException {
+    private static void put2(final long requests, @NotNull final Target target) throws IOException {
         int key = 0;
         for (long i = 0; i < requests; i++) {
             if (requests % 10 == 5) {
-                put(nextLong(key));
+                target.put(nextLong(key));
             } else {
-                put(key++);
+                target.put(key++);
             }
         }
     }
 
-    private static void get1(final long requests) throws IOException {
+    private static void get1(final long requests, @NotNull final Target target) throws IOException {
         for (int i = 0; i < requests; i++) {
-            get(nextLong(requests));
+            target.get(nextLong(requests));
         }
     }
 
-    private static void get2(final long requests) throws IOException {
+    private static void get2(final long requests, @NotNull final Target target) throws IOException {
         for (int i = 0; i < requests; i++) {
             final int random = ThreadLocalRandom.current().nextInt(10);
             if (random > 2) {
-                get(ThreadLocalRandom.current().nextLong(requests / 10 * 9, requests));
+                target.get(ThreadLocalRandom.current().nextLong(requests / 10 * 9, requests));
             } else {
-                get(ThreadLocalRandom.current().nextLong(requests / 10 * 9));
+                target.get(ThreadLocalRandom.current().nextLong(requests / 10 * 9));
             }
         }
     }
 
-    private static void getput(final long requests) throws IOException {
+    private static void getput(final long requests, @NotNull final Target target) throws IOException {
         long key = 0;
-        put(++key);
+        target.put(++key);
         for (int i = 1; i < requests; i++) {
             if (ThreadLocalRandom.current().nextBoolean()) {
-                put(++key);
+                target.put(++key);
             } else {
-                get(nextLong(key));
+                target.get(nextLong(key));
             }
         }
     }
@@ -133,4 +156,13 @@ public final class TankGenerator {
     private static long nextLong(final long bound) {
         return ThreadLocalRandom.current().nextLong(bound);
     }
+
+    /**
+     * Receiver of the generated requests identified by the numeric keys.
+     */
+    public interface Target {
+        void put(long key) throws IOException;
+
+        void get(long key) throws IOException;
+    }
 }
@@ -0,0 +1,74 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Storage calls on the bounded executor of {@link AsyncDAO}.
+ */
+class AsyncDAOTest extends TestBase {
+    @Test
+    void runsCalls(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = new DAOImplementation(data);
+             AsyncDAO async = new AsyncDAO(dao, 2, 16)) {
+            async.upsertAsync(key, value).get();
+            assertEquals(value, async.getRecordAsync(key).get().getValue());
+            async.removeAsync(key).get();
+            assertTrue(async.getRecordAsync(key).get().isDeleted());
+            final ExecutionException absent = assertThrows(
+                    ExecutionException.class,
+                    () -> async.getRecordAsync(randomKeyBuffer()).get());
+            assertTrue(absent.getCause() instanceof NoSuchElementException);
+        }
+    }
+
+    @Test
+    void rejectsWhenQueueIsFull(@TempDir File data) throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        try (DAO dao = new BlockingDAO(new DAOImplementation(data), release);
+             AsyncDAO async = new AsyncDAO(dao, 1, 1)) {
+            final CompletableFuture<ExtendedRecord> running = async.getRecordAsync(randomKeyBuffer());
+            final CompletableFuture<ExtendedRecord> queued = async.getRecordAsync(randomKeyBuffer());
+            final CompletableFuture<ExtendedRecord> rejected = async.getRecordAsync(randomKeyBuffer());
+            final ExecutionException exception = assertThrows(ExecutionException.class, rejected::get);
+            assertTrue(exception.getCause() instanceof RejectedExecutionException);
+            release.countDown();
+            assertThrows(ExecutionException.class, running::get);
+            assertThrows(ExecutionException.class, queued::get);
+        }
+    }
+
+    private static final class BlockingDAO extends ForwardingDAO {
+        private final CountDownLatch release;
+
+        BlockingDAO(final DAO delegate, final CountDownLatch release) {
+            super(delegate);
+            this.release = release;
+        }
+
+        @Override
+        public ExtendedRecord getRecord(final ByteBuffer key) throws IOException {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            return super.getRecord(key);
+        }
+    }
+}
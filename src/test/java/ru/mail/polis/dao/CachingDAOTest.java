@@ -0,0 +1,100 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.utils.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hot record cache in front of the storage.
+ */
+class CachingDAOTest extends TestBase {
+    @Test
+    void servesWrittenRecords(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = new CachingDAO(new DAOImplementation(data), 1024 * 1024)) {
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+            dao.upsert(key, join(value, value));
+            assertEquals(join(value, value), dao.get(key));
+            dao.remove(key);
+            assertTrue(dao.getRecord(key).isDeleted());
+            assertTrue(metrics(dao).contains("dao_cache_misses_total 0"));
+        }
+    }
+
+    @Test
+    void keepsNewerRecord() {
+        final RecordCache cache = new RecordCache(1024 * 1024, new Metrics());
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        cache.update(key, new ExtendedRecord(value, 2L, false), cache.epoch());
+        cache.fill(key, new ExtendedRecord(randomValueBuffer(), 1L, false), cache.epoch());
+        cache.update(key, new ExtendedRecord(randomValueBuffer(), 1L, false), cache.epoch());
+        final ExtendedRecord cached = cache.get(key);
+        assertNotNull(cached);
+        assertEquals(2L, cached.getTimestamp());
+        assertEquals(value, cached.getValue());
+    }
+
+    @Test
+    void dropsRecordsOfEarlierEpoch() {
+        final RecordCache cache = new RecordCache(1024 * 1024, new Metrics());
+        final ByteBuffer key = randomKeyBuffer();
+        // Read before the removal, filled after the cache is cleared
+        final long epoch = cache.epoch();
+        cache.clear();
+        cache.fill(key, new ExtendedRecord(randomValueBuffer(), 1L, false), epoch);
+        assertNull(cache.get(key));
+
+        cache.fill(key, new ExtendedRecord(randomValueBuffer(), 1L, false), cache.epoch());
+        cache.update(key, new ExtendedRecord(randomValueBuffer(), 2L, false), epoch);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void scanDoesNotEvictHotKeys() {
+        final RecordCache cache = new RecordCache(1024 * 1024, new Metrics());
+        final ByteBuffer hot = randomKeyBuffer();
+        cache.fill(hot, new ExtendedRecord(randomValueBuffer(), 1L, false), cache.epoch());
+        assertNotNull(cache.get(hot));
+        for (int i = 0; i < 10_000; i++) {
+            cache.fill(randomKeyBuffer(), new ExtendedRecord(randomValueBuffer(), 1L, false), cache.epoch());
+        }
+        assertNotNull(cache.get(hot));
+        assertTrue(cache.sizeInBytes() <= 1024 * 1024);
+    }
+
+    @Test
+    void batchReadsMisses(@TempDir File data) throws IOException {
+        final ByteBuffer cached = randomKeyBuffer();
+        final ByteBuffer stored = randomKeyBuffer();
+        final ByteBuffer absent = randomKeyBuffer();
+        try (DAO storage = new DAOImplementation(data)) {
+            storage.upsert(stored, randomValueBuffer());
+            final DAO dao = new CachingDAO(storage, 1024 * 1024);
+            dao.upsert(cached, randomValueBuffer());
+            final List<ExtendedRecord> records = dao.getRecords(Arrays.asList(cached, stored, absent));
+            assertNotNull(records.get(0));
+            assertNotNull(records.get(1));
+            assertNull(records.get(2));
+            assertEquals(records.get(1).getValue(), dao.get(stored));
+            assertTrue(metrics(dao).contains("dao_cache_hits_total 2"));
+        }
+    }
+
+    private static String metrics(final DAO dao) {
+        final StringBuilder builder = new StringBuilder();
+        dao.metrics().writeTo(builder);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Storage snapshots made by {@link DAO#checkpoint()}.
+ */
+class CheckpointTest extends TestBase {
+    private static final String THRESHOLD_PROPERTY = "dao.vlog.threshold";
+
+    @BeforeEach
+    void beforeEach() {
+        // Every random value goes to the value log, which is snapshotted too
+        System.setProperty(THRESHOLD_PROPERTY, "1");
+    }
+
+    @AfterEach
+    void afterEach() {
+        System.clearProperty(THRESHOLD_PROPERTY);
+    }
+
+    @Test
+    void rocksCheckpoint(@TempDir File root) throws IOException {
+        final File data = directory(root, "data");
+        final File restored = directory(root, "restored");
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final ByteBuffer deleted = randomKeyBuffer();
+        try (DAO dao = new DAOImplementation(data)) {
+            dao.upsert(key, value);
+            dao.remove(deleted);
+            final File snapshot = dao.checkpoint();
+            dao.upsert(key, randomValueBuffer());
+            Snapshots.copy(snapshot, restored);
+            Files.recursiveDelete(snapshot);
+        }
+        try (DAO dao = new DAOImplementation(restored)) {
+            assertEquals(value, dao.get(key));
+            assertTrue(dao.getRecord(deleted).isDeleted());
+        }
+    }
+
+    @Test
+    void lsmCheckpoint(@TempDir File root) throws IOException {
+        final File data = directory(root, "data");
+        final File restored = directory(root, "restored");
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final ByteBuffer deleted = randomKeyBuffer();
+        try (DAO dao = new LsmDAO(data, 64 * 1024)) {
+            for (int i = 0; i < 200; i++) {
+                dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            }
+            dao.upsert(key, value);
+            dao.remove(deleted);
+            final File snapshot = dao.checkpoint();
+            dao.upsert(key, randomValueBuffer());
+            dao.compact();
+            Snapshots.copy(snapshot, restored);
+            Files.recursiveDelete(snapshot);
+        }
+        try (DAO dao = new LsmDAO(restored)) {
+            assertEquals(value, dao.get(key));
+            assertTrue(dao.getRecord(deleted).isDeleted());
+        }
+    }
+
+    @Test
+    void bootstrapsCompleteSnapshot(@TempDir File root) throws IOException {
+        final File data = directory(root, "data");
+        final File restored = directory(root, "restored");
+        final File partial = new File(root, "restored.bootstrap");
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = new DAOImplementation(data)) {
+            dao.upsert(key, value);
+            final File snapshot = dao.checkpoint();
+            try {
+                // Nothing listens to the port, so the fetch fails
+                System.setProperty("dao.bootstrap.peer", "http://localhost:1");
+                assertThrows(IOException.class, () -> Snapshots.bootstrap(restored));
+                assertArrayEquals(new String[0], restored.list());
+                assertFalse(partial.exists());
+
+                // A bootstrap interrupted by a crash has left its directory
+                assertTrue(new File(partial, "garbage").mkdirs());
+                System.setProperty("dao.bootstrap.dir", snapshot.getAbsolutePath());
+                Snapshots.bootstrap(restored);
+                assertFalse(partial.exists());
+            } finally {
+                System.clearProperty("dao.bootstrap.peer");
+                System.clearProperty("dao.bootstrap.dir");
+                Files.recursiveDelete(snapshot);
+            }
+        }
+        try (DAO dao = new DAOImplementation(restored)) {
+            assertEquals(value, dao.get(key));
+        }
+        assertFalse(new File(restored, "garbage").exists());
+    }
+
+    private static File directory(final File root, final String name) throws IOException {
+        return java.nio.file.Files.createDirectory(new File(root, name).toPath()).toFile();
+    }
+}
@@ -0,0 +1,77 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Background compaction controlled by {@link CompactionManager}.
+ */
+class CompactionManagerTest extends TestBase {
+    @Test
+    void compactsAllSlices(@TempDir File data) throws Exception {
+        try (DAOImplementation dao = new DAOImplementation(data)) {
+            fill(dao);
+            final CompactionManager manager = dao.compactionManager();
+            assertTrue(manager.start());
+            awaitIdle(manager);
+            assertTrue(metrics(dao).contains("dao_compaction_slices_total 16\n"));
+        }
+    }
+
+    @Test
+    void waitsWhilePaused(@TempDir File data) throws Exception {
+        try (DAOImplementation dao = new DAOImplementation(data)) {
+            fill(dao);
+            final CompactionManager manager = dao.compactionManager();
+            manager.pause();
+            assertTrue(manager.start());
+            assertFalse(manager.start());
+            Thread.sleep(100);
+            assertEquals(CompactionManager.State.PAUSED, manager.getState());
+            assertTrue(metrics(dao).contains("dao_compaction_slices_total 0\n"));
+            manager.resume();
+            awaitIdle(manager);
+            assertTrue(metrics(dao).contains("dao_compaction_slices_total 16\n"));
+        }
+    }
+
+    @Test
+    void backsOffOnSlowForeground(@TempDir File data) throws Exception {
+        try (DAOImplementation dao = new DAOImplementation(data)) {
+            final CompactionManager manager = dao.compactionManager();
+            manager.recordLatency(TimeUnit.SECONDS.toNanos(1));
+            assertTrue(manager.start());
+            Thread.sleep(100);
+            assertEquals(CompactionManager.State.BACKING_OFF, manager.getState());
+            assertTrue(metrics(dao).contains("dao_compaction_backoffs_total 1\n"));
+            awaitIdle(manager);
+        }
+    }
+
+    private static void fill(final DAO dao) throws IOException {
+        for (int i = 0; i < 1000; i++) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+        }
+    }
+
+    private static void awaitIdle(final CompactionManager manager) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (manager.getState() != CompactionManager.State.IDLE) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static String metrics(final DAO dao) {
+        final StringBuilder builder = new StringBuilder();
+        dao.metrics().writeTo(builder);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,94 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes of the different {@link Durability} levels.
+ */
+class DurabilityTest extends TestBase {
+    @Test
+    void parse() {
+        assertEquals(Durability.NONE, Durability.of("none"));
+        assertEquals(Durability.SYNC, Durability.of("SYNC"));
+        assertEquals("async", Durability.ASYNC.getName());
+        assertThrows(IllegalArgumentException.class, () -> Durability.of("fsync"));
+    }
+
+    @Test
+    void allLevelsSurviveRestart(@TempDir File data) throws IOException {
+        final Map<Durability, ByteBuffer> keys = new EnumMap<>(Durability.class);
+        final Map<Durability, ByteBuffer> values = new EnumMap<>(Durability.class);
+        final ByteBuffer deleted = randomKeyBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(deleted, randomValueBuffer());
+            for (final Durability durability : Durability.values()) {
+                keys.put(durability, randomKeyBuffer());
+                values.put(durability, randomValueBuffer());
+                dao.upsertRecord(
+                        keys.get(durability),
+                        new ExtendedRecord(values.get(durability), System.currentTimeMillis(), false),
+                        durability);
+                assertEquals(values.get(durability), dao.get(keys.get(durability)));
+            }
+            dao.upsertRecord(
+                    deleted,
+                    new ExtendedRecord(ByteBuffer.allocate(0), System.currentTimeMillis(), true),
+                    Durability.SYNC);
+        }
+        // Even the writes without the write-ahead log are flushed on close
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Durability durability : Durability.values()) {
+                assertEquals(values.get(durability), dao.get(keys.get(durability)));
+            }
+            assertTrue(dao.getRecord(deleted).isDeleted());
+        }
+    }
+
+    @Test
+    void lsmSyncedWritesAreLogged(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final ByteBuffer large = randomKeyBuffer();
+        final ByteBuffer largeValue = ByteBuffer.wrap(new byte[128 * 1024]);
+        final LsmDAO dao = new LsmDAO(data);
+        dao.upsertRecord(key, new ExtendedRecord(value, System.currentTimeMillis(), false), Durability.SYNC);
+        // The value goes to the value log, which is synced too
+        dao.upsertRecord(large, new ExtendedRecord(largeValue, System.currentTimeMillis(), false), Durability.SYNC);
+        // Crash: the memtable is lost, the synced logs are left on disk
+
+        try (DAO recovered = new LsmDAO(data)) {
+            assertEquals(value, recovered.get(key));
+            assertEquals(largeValue, recovered.get(large));
+        }
+    }
+
+    @Test
+    void latencyPerLevel(@TempDir File data) throws IOException {
+        try (DAO dao = new DAOImplementation(data)) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            for (int i = 0; i < 3; i++) {
+                dao.upsertRecord(
+                        randomKeyBuffer(),
+                        new ExtendedRecord(randomValueBuffer(), System.currentTimeMillis(), false),
+                        Durability.SYNC);
+            }
+            final StringBuilder builder = new StringBuilder();
+            dao.metrics().writeTo(builder);
+            final String metrics = builder.toString();
+            assertTrue(metrics.contains("dao_writes_total{durability=\"none\"} 0\n"));
+            assertTrue(metrics.contains("dao_writes_total{durability=\"async\"} 1\n"));
+            assertTrue(metrics.contains("dao_writes_total{durability=\"sync\"} 3\n"));
+            assertTrue(metrics.contains("dao_write_seconds_total{durability=\"sync\"} "));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Negative lookups answered by the key filter.
+ */
+class FilteringDAOTest extends TestBase {
+    @Test
+    void answersAbsentKeys(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = open(data)) {
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer absent = randomKeyBuffer();
+                assertThrows(NoSuchElementException.class, () -> dao.getRecord(absent));
+            }
+            assertTrue(metrics(dao).contains("dao_filter_keys 1\n"));
+            assertFalse(metrics(dao).contains("dao_filter_negatives_total 0"));
+        }
+    }
+
+    @Test
+    void keepsTombstonesAfterRestart(@TempDir File data) throws IOException {
+        final ByteBuffer deleted = randomKeyBuffer();
+        final ByteBuffer alive = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = open(data)) {
+            dao.upsert(alive, value);
+            dao.remove(deleted);
+        }
+        assertTrue(new File(data, FilteringDAO.SNAPSHOT).exists());
+
+        // Loaded from the snapshot
+        try (DAO dao = open(data)) {
+            assertEquals(value, dao.get(alive));
+            assertTrue(dao.getRecord(deleted).isDeleted());
+            assertFalse(new File(data, FilteringDAO.SNAPSHOT).exists());
+        }
+
+        // Rebuilt from the storage as after a crash
+        Files.delete(new File(data, FilteringDAO.SNAPSHOT).toPath());
+        try (DAO dao = open(data)) {
+            assertEquals(value, dao.get(alive));
+            assertTrue(dao.getRecord(deleted).isDeleted());
+        }
+    }
+
+    @Test
+    void growsWithinFalsePositiveRate() {
+        final ScalableBloomFilter filter = new ScalableBloomFilter(1000, 0.01);
+        final long keys = 20_000;
+        for (int i = 0; i < keys; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            filter.add(key);
+            assertTrue(filter.mightContain(key));
+        }
+        int falsePositives = 0;
+        final int lookups = 100_000;
+        for (int i = 0; i < lookups; i++) {
+            if (filter.mightContain(randomKeyBuffer())) {
+                falsePositives++;
+            }
+        }
+        assertTrue(filter.size() <= keys);
+        assertTrue(filter.expectedFalsePositiveRate() < 0.01);
+        assertTrue((double) falsePositives / lookups < 0.02);
+    }
+
+    private static DAO open(final File data) throws IOException {
+        return new FilteringDAO(new DAOImplementation(data), data, 1024, 0.01);
+    }
+
+    private static String metrics(final DAO dao) {
+        final StringBuilder builder = new StringBuilder();
+        dao.metrics().writeTo(builder);
+        return builder.toString();
+    }
+}
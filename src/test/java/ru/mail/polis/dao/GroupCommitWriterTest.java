@@ -0,0 +1,225 @@
+package ru.mail.polis.dao;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Leadership, grouping and failures of {@link GroupCommitWriter}.
+ */
+class GroupCommitWriterTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final Set<Thread.State> PARKED =
+            EnumSet.of(Thread.State.WAITING, Thread.State.TIMED_WAITING, Thread.State.TERMINATED);
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    @Test
+    void handsLeadershipOver(@TempDir File data) {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (Options options = new Options().setCreateIfMissing(true);
+                 RocksDB db = RocksDB.open(options, data.getAbsolutePath());
+                 GroupCommitWriter writer = new GroupCommitWriter(db, 100, Durability.ASYNC, 16)) {
+                // The writer queued behind the leader commits its write once the leader is done
+                final CountDownLatch release = new CountDownLatch(1);
+                final Future<?> leader = holdLeader(writer, release);
+                final byte[] key = randomKey();
+                final byte[] value = randomValue();
+                final Future<?> queued = start(() -> {
+                    writer.put(key, value);
+                    return null;
+                });
+                assertFalse(queued.isDone());
+                release.countDown();
+                leader.get();
+                queued.get();
+                assertArrayEquals(value, db.get(key));
+
+                // Every one of the concurrent writers gets its write committed, whoever leads the group
+                final List<Future<?>> writers = new ArrayList<>();
+                final List<byte[]> keys = new ArrayList<>();
+                for (int i = 0; i < 8; i++) {
+                    final List<byte[]> own = new ArrayList<>();
+                    for (int j = 0; j < 200; j++) {
+                        own.add(randomKey());
+                    }
+                    keys.addAll(own);
+                    writers.add(start(() -> {
+                        for (final byte[] ownKey : own) {
+                            writer.put(ownKey, ownKey);
+                        }
+                        return null;
+                    }));
+                }
+                for (final Future<?> future : writers) {
+                    future.get();
+                }
+                for (final byte[] written : keys) {
+                    assertArrayEquals(written, db.get(written));
+                }
+            }
+        });
+    }
+
+    @Test
+    void groupsWithStrictestDurability(@TempDir File data) {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] grouped = randomKey();
+            final byte[] synced = randomKey();
+            final byte[] alone = randomKey();
+            final byte[] value = randomValue();
+            // The memtable is dropped on close, so only the writes in the WAL survive
+            try (Options options = new Options().setCreateIfMissing(true).setAvoidFlushDuringShutdown(true)) {
+                try (RocksDB db = RocksDB.open(options, data.getAbsolutePath());
+                     GroupCommitWriter writer = new GroupCommitWriter(db, 0, Durability.ASYNC, 1024)) {
+                    final CountDownLatch release = new CountDownLatch(1);
+                    final Future<?> leader = holdLeader(writer, release);
+                    final Future<?> none = start(() -> {
+                        writer.put(grouped, value, Durability.NONE);
+                        return null;
+                    });
+                    final Future<?> sync = start(() -> {
+                        writer.put(synced, value, Durability.SYNC);
+                        return null;
+                    });
+                    release.countDown();
+                    leader.get();
+                    none.get();
+                    sync.get();
+
+                    writer.put(alone, value, Durability.NONE);
+                    assertArrayEquals(value, db.get(alone));
+                }
+                try (RocksDB db = RocksDB.open(options, data.getAbsolutePath())) {
+                    assertArrayEquals(value, db.get(grouped));
+                    assertArrayEquals(value, db.get(synced));
+                    assertNull(db.get(alone));
+                }
+            }
+        });
+    }
+
+    @Test
+    void splitsGroupsAtBatchSize(@TempDir File data) {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (Options options = new Options().setCreateIfMissing(true);
+                 RocksDB db = RocksDB.open(options, data.getAbsolutePath())) {
+                // A replacement sees a put of the same batch as a change of the key
+                try (GroupCommitWriter writer = new GroupCommitWriter(db, 0, Durability.ASYNC, 2)) {
+                    assertEquals(0, putThenReplace(writer));
+                }
+                try (GroupCommitWriter writer = new GroupCommitWriter(db, 0, Durability.ASYNC, 1)) {
+                    assertEquals(1, putThenReplace(writer));
+                }
+            }
+        });
+    }
+
+    @Test
+    void failsEveryWriterOfFailedBatch(@TempDir File data) {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            try (Options options = new Options().setCreateIfMissing(true)) {
+                RocksDB.open(options, data.getAbsolutePath()).close();
+                // Every write to a read-only database fails
+                try (RocksDB db = RocksDB.openReadOnly(options, data.getAbsolutePath());
+                     GroupCommitWriter writer = new GroupCommitWriter(db, 0, Durability.ASYNC, 1024)) {
+                    final CountDownLatch release = new CountDownLatch(1);
+                    final Future<?> leader = holdLeader(writer, release);
+                    final List<Future<?>> writers = new ArrayList<>();
+                    for (int i = 0; i < 3; i++) {
+                        writers.add(start(() -> {
+                            writer.put(randomKey(), randomValue());
+                            return null;
+                        }));
+                    }
+                    release.countDown();
+                    leader.get();
+                    for (final Future<?> future : writers) {
+                        final ExecutionException e = assertThrows(ExecutionException.class, future::get);
+                        assertTrue(e.getCause() instanceof IOException);
+                        assertTrue(e.getCause().getCause() instanceof RocksDBException);
+                    }
+
+                    // The writer is still usable
+                    assertThrows(IOException.class, () -> writer.put(randomKey(), randomValue()));
+                }
+            }
+        });
+    }
+
+    @NotNull
+    private static byte[] randomKey() {
+        return randomKeyBuffer().array();
+    }
+
+    /**
+     * Queues a put and a replacement of the value it puts, so they are committed by the same leader.
+     *
+     * @return number of the replaced keys
+     */
+    private static int putThenReplace(final GroupCommitWriter writer) throws Exception {
+        final byte[] key = randomKey();
+        final byte[] value = randomValue();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<?> leader = holdLeader(writer, release);
+        final Future<?> put = start(() -> {
+            writer.put(key, value);
+            return null;
+        });
+        final Future<Integer> replaced = start(() -> writer.replaceIfUnchanged(
+                List.of(key),
+                List.of(value),
+                List.of(randomValue())));
+        release.countDown();
+        leader.get();
+        put.get();
+        return replaced.get();
+    }
+
+    /**
+     * Keeps the leader busy with an exclusive action until the latch is released,
+     * so the writes started meanwhile are queued.
+     */
+    private static Future<?> holdLeader(final GroupCommitWriter writer,
+                                        final CountDownLatch release) throws InterruptedException {
+        return start(() -> {
+            writer.exclusive(() -> Uninterruptibles.awaitUninterruptibly(release));
+            return null;
+        });
+    }
+
+    /**
+     * Runs the task in a new thread and waits for the thread to park, as a writer does once its write is queued.
+     */
+    private static <T> Future<T> start(final Callable<T> task) throws InterruptedException {
+        final FutureTask<T> future = new FutureTask<>(task);
+        final Thread thread = new Thread(future);
+        thread.start();
+        while (!PARKED.contains(thread.getState())) {
+            Thread.sleep(1);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,163 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Bulk ingestion of {@link RecordFeed}s and batches of records.
+ */
+class IngestTest extends TestBase {
+    @Test
+    void ingestsNewerRecords(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int i = 0; i < 3000; i++) {
+            entries.put(randomKeyBuffer(), randomValueBuffer());
+        }
+        final ByteBuffer newer = entries.firstKey();
+        final ByteBuffer older = entries.lastKey();
+        final ByteBuffer newerValue = randomValueBuffer();
+        final ByteBuffer olderValue = randomValueBuffer();
+        final long timestamp = System.currentTimeMillis();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsertRecord(newer, new ExtendedRecord(newerValue, timestamp + 1, false));
+            dao.upsertRecord(older, new ExtendedRecord(olderValue, timestamp - 1, false));
+            // Cached before the ingestion
+            assertEquals(olderValue, dao.get(older));
+
+            final long stored = dao.ingest(RecordFeed.read(new ByteArrayInputStream(feed(entries, timestamp))));
+            assertEquals(entries.size() - 1, stored);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                final ByteBuffer expected = entry.getKey().equals(newer) ? newerValue : entry.getValue();
+                assertEquals(expected, dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKeyBuffer()));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(entries.get(older), dao.get(older));
+        }
+    }
+
+    @Test
+    void keepsWritesDuringIngestion(@TempDir File data) throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>();
+        for (int i = 0; i < 1500; i++) {
+            entries.put(randomKeyBuffer(), randomValueBuffer());
+        }
+        final ByteBuffer newer = entries.firstKey();
+        final ByteBuffer older = entries.higherKey(newer);
+        final ByteBuffer newerValue = randomValueBuffer();
+        final long timestamp = System.currentTimeMillis();
+        try (DAO dao = new DAOImplementation(data)) {
+            final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> feed =
+                    RecordFeed.read(new ByteArrayInputStream(feed(entries, timestamp)));
+            // The keys of the first chunk are written after it has been checked, but before the files are ingested
+            final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records = new Iterator<>() {
+                private int read;
+
+                @Override
+                public boolean hasNext() {
+                    return feed.hasNext();
+                }
+
+                @Override
+                public Map.Entry<ByteBuffer, ExtendedRecord> next() {
+                    if (++read == 1100) {
+                        try {
+                            dao.upsertRecord(newer, new ExtendedRecord(newerValue, timestamp + 1, false));
+                            dao.upsertRecord(older, new ExtendedRecord(randomValueBuffer(), timestamp - 1, false));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    return feed.next();
+                }
+            };
+
+            assertEquals(entries.size(), dao.ingest(records));
+            assertEquals(newerValue, dao.get(newer));
+            assertEquals(entries.get(older), dao.get(older));
+        }
+        try (DAO dao = new DAOImplementation(data)) {
+            assertEquals(newerValue, dao.get(newer));
+            assertEquals(entries.get(older), dao.get(older));
+        }
+    }
+
+    @Test
+    void rejectsUnsortedFeed() throws IOException {
+        final TreeMap<ByteBuffer, ByteBuffer> entries = new TreeMap<>((a, b) -> b.compareTo(a));
+        entries.put(randomKeyBuffer(), randomValueBuffer());
+        entries.put(randomKeyBuffer(), randomValueBuffer());
+        final byte[] feed = feed(entries, System.currentTimeMillis());
+        final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> records = RecordFeed.read(new ByteArrayInputStream(feed));
+        records.next();
+        assertThrows(IllegalArgumentException.class, records::next);
+
+        final byte[] truncated = new byte[feed.length - 1];
+        System.arraycopy(feed, 0, truncated, 0, truncated.length);
+        final Iterator<Map.Entry<ByteBuffer, ExtendedRecord>> broken = RecordFeed.read(new ByteArrayInputStream(truncated));
+        broken.next();
+        assertThrows(IllegalArgumentException.class, broken::next);
+    }
+
+    @Test
+    void storesBatch(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ExtendedRecord> records = new ArrayList<>();
+        final long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            keys.add(randomKeyBuffer());
+            records.add(new ExtendedRecord(randomValueBuffer(), timestamp, false));
+        }
+        final ByteBuffer repeated = keys.get(0);
+        final ByteBuffer latest = randomValueBuffer();
+        keys.add(repeated);
+        records.add(new ExtendedRecord(latest, timestamp, false));
+        final ByteBuffer removed = keys.get(1);
+        keys.add(removed);
+        records.add(new ExtendedRecord(ByteBuffer.allocate(0), timestamp, true));
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsertRecord(removed, new ExtendedRecord(randomValueBuffer(), timestamp - 1, false));
+            // Cached before the batch
+            assertNotNull(dao.get(removed));
+
+            dao.upsertRecords(keys, records);
+            assertEquals(latest, dao.get(repeated));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(records.get(2).getValue(), dao.get(keys.get(2)));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(latest, dao.get(repeated));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            for (int i = 2; i < 1000; i++) {
+                assertEquals(records.get(i).getValue(), dao.get(keys.get(i)));
+            }
+        }
+    }
+
+    private static byte[] feed(final Map<ByteBuffer, ByteBuffer> entries, final long timestamp) throws IOException {
+        final ByteArrayOutputStream feed = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(feed);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+            RecordFeed.write(entry.getKey(), new ExtendedRecord(entry.getValue(), timestamp, false), out);
+        }
+        return feed.toByteArray();
+    }
+}
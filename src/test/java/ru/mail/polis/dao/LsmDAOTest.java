@@ -0,0 +1,243 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Flush, recovery and compaction tests for {@link LsmDAO}.
+ */
+class LsmDAOTest extends TestBase {
+    private static final long SMALL_MEMTABLE = 64 * 1024;
+
+    @Test
+    void flushesAndMergesTables(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final ByteBuffer removed = expected.firstKey();
+            dao.remove(removed);
+            expected.remove(removed);
+
+            assertRange(expected, dao.iterator(ByteBuffer.allocate(0)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertTrue(dao.getRecord(removed).isDeleted());
+        }
+        assertTrue(data.list((dir, name) -> name.endsWith(".db")).length > 1);
+    }
+
+    @Test
+    void recoversFromCommitLog(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final LsmDAO dao = new LsmDAO(data, SMALL_MEMTABLE);
+        dao.upsert(key, value);
+        // Crash: the memtable is lost, the commit log is left on disk
+
+        try (DAO recovered = new LsmDAO(data, SMALL_MEMTABLE)) {
+            assertEquals(value, recovered.get(key));
+        }
+    }
+
+    @Test
+    void recoversLatestOfConcurrentWrites(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKeyBuffer();
+        final LsmDAO dao = new LsmDAO(data, SMALL_MEMTABLE);
+        final ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(writers.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        dao.upsertRecord(key, new ExtendedRecord(randomValueBuffer(), 1L, false));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            writers.shutdown();
+        }
+        final ByteBuffer served = dao.get(key);
+        // Crash: the memtable is lost, the commit log is left on disk
+
+        try (DAO recovered = new LsmDAO(data, SMALL_MEMTABLE)) {
+            assertEquals(served, recovered.get(key));
+        }
+    }
+
+    @Test
+    void keepsCopiesOfBuffers(@TempDir File data) throws IOException {
+        final byte[] key = {2};
+        final byte[] value = {42};
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            dao.upsert(ByteBuffer.wrap(new byte[]{1}), ByteBuffer.wrap(value));
+            dao.upsert(ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+            // The caller reuses its buffers
+            key[0] = 0;
+            value[0] = 0;
+            assertEquals(ByteBuffer.wrap(new byte[]{42}), dao.get(ByteBuffer.wrap(new byte[]{2})));
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            assertEquals(ByteBuffer.wrap(new byte[]{1}), records.next().getKey());
+            assertEquals(ByteBuffer.wrap(new byte[]{2}), records.next().getKey());
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void mergesConcurrentlyWithWrites(@TempDir File data) throws Exception {
+        final ByteBuffer counter = randomKeyBuffer();
+        final ByteBuffer appended = randomKeyBuffer();
+        // Large enough for the value log
+        final byte[] chunk = new byte[40 * 1024];
+        final ExecutorService writers = Executors.newFixedThreadPool(4);
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(writers.submit(() -> {
+                    for (int j = 0; j < 300; j++) {
+                        dao.merge(counter, MergeOperator.INCR, ByteBuffer.allocate(0));
+                    }
+                    return null;
+                }));
+            }
+            futures.add(writers.submit(() -> {
+                for (int j = 0; j < 300; j++) {
+                    dao.upsert(randomKeyBuffer(), randomValueBuffer());
+                }
+                return null;
+            }));
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            dao.merge(appended, MergeOperator.APPEND, ByteBuffer.wrap(chunk));
+            dao.merge(appended, MergeOperator.APPEND, ByteBuffer.wrap(chunk));
+            dao.compact();
+        } finally {
+            writers.shutdown();
+        }
+
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            assertEquals(ByteBuffer.wrap("900".getBytes(StandardCharsets.US_ASCII)), dao.get(counter));
+            assertEquals(2 * chunk.length, dao.get(appended).remaining());
+        }
+    }
+
+    @Test
+    void ingestKeepsConcurrentNewerWrites(@TempDir File data) throws Exception {
+        final long timestamp = System.currentTimeMillis();
+        final TreeMap<ByteBuffer, ExtendedRecord> feed = new TreeMap<>();
+        for (int i = 0; i < 5000; i++) {
+            feed.put(randomKeyBuffer(), new ExtendedRecord(randomValueBuffer(), timestamp, false));
+        }
+        final List<ByteBuffer> written = new ArrayList<>(feed.keySet());
+        Collections.shuffle(written);
+        final ByteBuffer newerValue = randomValueBuffer();
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            final Future<?> writes = writer.submit(() -> {
+                for (final ByteBuffer key : written.subList(0, 1000)) {
+                    dao.upsertRecord(key, new ExtendedRecord(newerValue, timestamp + 1, false));
+                }
+                return null;
+            });
+            dao.ingest(feed.entrySet().iterator());
+            writes.get();
+
+            // Whenever the write got in, the older ingested record doesn't override it
+            for (final ByteBuffer key : written.subList(0, 1000)) {
+                assertEquals(newerValue, dao.get(key));
+            }
+            for (final ByteBuffer key : written.subList(1000, written.size())) {
+                assertEquals(feed.get(key).getValue(), dao.get(key));
+            }
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    @Test
+    void compactsToSingleTable(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer removed = randomKeyBuffer();
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            dao.upsert(removed, randomValueBuffer());
+            for (int i = 0; i < 500; i++) {
+                dao.upsert(key, randomValueBuffer());
+            }
+            dao.remove(removed);
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value);
+
+            dao.compact();
+
+            assertEquals(value, dao.get(key));
+            assertTrue(dao.getRecord(removed).isDeleted());
+        }
+        assertEquals(1, data.list((dir, name) -> name.endsWith(".db")).length);
+    }
+
+    @Test
+    void deletesTablesReplacedByInterruptedCompaction(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            dao.upsertRecord(key, new ExtendedRecord(randomValueBuffer(), 1, false));
+        }
+        final File[] old = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertEquals(1, old.length);
+        final byte[] oldTable = Files.readAllBytes(old[0].toPath());
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            // The tombstone is older than the grace period, so the compaction drops it
+            dao.upsertRecord(key, new ExtendedRecord(ByteBuffer.allocate(0), 2, true));
+        }
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.getRecord(key));
+        }
+        // Crash: the old table is left next to the compacted one
+        assertFalse(old[0].exists());
+        Files.write(old[0].toPath(), oldTable);
+
+        try (DAO dao = new LsmDAO(data, SMALL_MEMTABLE)) {
+            assertThrows(NoSuchElementException.class, () -> dao.getRecord(key));
+        }
+        assertFalse(old[0].exists());
+    }
+
+    private static void assertRange(
+            final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final Iterator<Record> actual) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(actual.hasNext());
+            assertEquals(Record.of(entry.getKey(), entry.getValue()), actual.next());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
@@ -0,0 +1,129 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Values updated with {@link MergeOperator}s.
+ */
+class MergeTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int INCREMENTS = 500;
+
+    @Test
+    void append(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.merge(key, MergeOperator.APPEND, ascii("a"));
+            dao.merge(key, MergeOperator.APPEND, ascii("b"));
+            assertEquals(ascii("ab"), dao.get(key));
+
+            dao.upsertRecord(key, new ExtendedRecord(ascii("c"), after(dao, key), false));
+            assertEquals(ascii("cd"), dao.merge(key, MergeOperator.APPEND, ascii("d")).getValue());
+
+            dao.upsertRecord(key, new ExtendedRecord(ByteBuffer.allocate(0), after(dao, key), true));
+            dao.merge(key, MergeOperator.APPEND, ascii("e"));
+            assertEquals(ascii("e"), dao.get(key));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(ascii("e"), dao.get(key));
+        }
+    }
+
+    @Test
+    void increment(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.merge(key, MergeOperator.INCR, ByteBuffer.allocate(0));
+            dao.merge(key, MergeOperator.INCR, ascii("41"));
+            assertEquals(ascii("42"), dao.get(key));
+            dao.merge(key, MergeOperator.INCR, ascii("-50"));
+            assertEquals(ascii("-8"), dao.get(key));
+
+            assertThrows(IllegalArgumentException.class,
+                    () -> dao.merge(key, MergeOperator.INCR, ascii("one")));
+            dao.upsertRecord(key, new ExtendedRecord(ascii("one"), after(dao, key), false));
+            assertThrows(IllegalStateException.class,
+                    () -> dao.merge(key, MergeOperator.INCR, ascii("1")));
+            assertEquals(ascii("one"), dao.get(key));
+        }
+    }
+
+    @Test
+    void concurrentIncrements(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKeyBuffer();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < INCREMENTS; j++) {
+                        dao.merge(key, MergeOperator.INCR, ByteBuffer.allocate(0));
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(ascii(String.valueOf(THREADS * INCREMENTS)), dao.get(key));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void keepsExpiration(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final long now = System.currentTimeMillis();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsertRecord(key, ExtendedRecord.expiring(ascii("1"), now - 1000, now + 60_000));
+            final ExtendedRecord merged = dao.merge(key, MergeOperator.INCR, ByteBuffer.allocate(0));
+            assertEquals(now + 60_000, merged.getExpiresAt());
+            assertEquals(now + 60_000, dao.getRecord(key).getExpiresAt());
+            assertEquals(ascii("2"), dao.get(key));
+
+            // An expired counter starts from zero without expiration
+            dao.upsertRecord(key, ExtendedRecord.expiring(ascii("5"), now, now - 1));
+            assertEquals(0, dao.merge(key, MergeOperator.INCR, ByteBuffer.allocate(0)).getExpiresAt());
+            assertEquals(ascii("1"), dao.get(key));
+        }
+    }
+
+    @Test
+    void newerThanStored(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        // Written by a node with the clock ahead of ours
+        final long future = System.currentTimeMillis() + 60_000;
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsertRecord(key, new ExtendedRecord(ascii("1"), future, false));
+            assertEquals(future + 1, dao.merge(key, MergeOperator.INCR, ByteBuffer.allocate(0)).getTimestamp());
+            assertEquals(future + 2, dao.merge(key, MergeOperator.APPEND, ascii("0")).getTimestamp());
+            assertEquals(ascii("20"), dao.get(key));
+        }
+    }
+
+    /**
+     * Timestamp of a write newer than the stored record, which may run ahead of the clock after merges.
+     */
+    private static long after(final DAO dao, final ByteBuffer key) throws IOException {
+        return dao.getRecord(key).getTimestamp() + 1;
+    }
+
+    private static ByteBuffer ascii(final String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
+    }
+}
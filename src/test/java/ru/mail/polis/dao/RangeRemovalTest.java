@@ -0,0 +1,154 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Files;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Key ranges removed with {@link DAO#removeRange}.
+ */
+class RangeRemovalTest extends TestBase {
+    private static final int KEYS = 100;
+
+    @Test
+    void removesRange(@TempDir File data) throws IOException {
+        final long timestamp = System.currentTimeMillis();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsertRecord(key(i), new ExtendedRecord(randomValueBuffer(), timestamp - 1, false));
+            }
+            // Cached before the removal
+            dao.get(key(30));
+
+            dao.removeRange(key(20), key(40), timestamp);
+
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = key(i);
+                if (i >= 20 && i < 40) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    final ExtendedRecord tombstone = dao.getRecord(key);
+                    assertTrue(tombstone.isDeleted());
+                    assertEquals(timestamp, tombstone.getTimestamp());
+                } else {
+                    dao.get(key);
+                }
+            }
+            assertEquals(KEYS - 20, keys(dao.iterator(ByteBuffer.allocate(0))).size());
+            assertEquals(key(40), dao.range(key(20), null).next().getKey());
+        }
+    }
+
+    @Test
+    void newerWritesWin(@TempDir File data) throws IOException {
+        final long timestamp = System.currentTimeMillis();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsertRecord(key(1), new ExtendedRecord(randomValueBuffer(), timestamp - 1, false));
+            dao.removeRange(key(0), key(10), timestamp);
+            dao.upsertRecord(key(1), new ExtendedRecord(value, timestamp + 1, false));
+            assertEquals(value, dao.get(key(1)));
+            assertEquals(List.of(key(1)), keys(dao.range(key(0), key(10))));
+        }
+    }
+
+    @Test
+    void newerWritesReceivedEarlierSurvive(@TempDir File data) throws IOException {
+        final long timestamp = System.currentTimeMillis();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            // A write of a coordinator with a clock ahead gets to the replica before the removal
+            dao.upsertRecord(key(1), new ExtendedRecord(value, timestamp + 1, false));
+            dao.upsertRecord(key(2), new ExtendedRecord(randomValueBuffer(), timestamp, false));
+            dao.removeRange(key(0), key(10), timestamp);
+            assertEquals(value, dao.get(key(1)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(2)));
+            assertEquals(List.of(key(1)), keys(dao.range(key(0), key(10))));
+            dao.compact();
+            assertEquals(value, dao.get(key(1)));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key(1)));
+        }
+    }
+
+    @Test
+    void lateOlderWritesAreHidden(@TempDir File root) throws IOException {
+        lateOlderWritesAreHidden(root, DAOImplementation::new);
+    }
+
+    @Test
+    void lateOlderWritesAreHiddenByLsm(@TempDir File root) throws IOException {
+        lateOlderWritesAreHidden(root, LsmDAO::new);
+    }
+
+    private static void lateOlderWritesAreHidden(final File root, final Engine engine) throws IOException {
+        final File data = new File(root, "data");
+        final File restored = new File(root, "restored");
+        assertTrue(data.mkdir());
+        // The removal is older than the writes of the test
+        final long timestamp = System.currentTimeMillis() - 1000;
+        try (DAO dao = engine.open(data)) {
+            dao.removeRange(key(0), key(10), timestamp);
+            // A replica writes the value it has got before the removal
+            dao.upsertRecord(key(5), new ExtendedRecord(randomValueBuffer(), timestamp - 1, false));
+            dao.upsertRecord(key(10), new ExtendedRecord(randomValueBuffer(), timestamp - 1, false));
+
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(5)));
+            assertEquals(timestamp, dao.getRecord(key(5)).getTimestamp());
+            assertEquals(List.of(key(10)), keys(dao.iterator(ByteBuffer.allocate(0))));
+            assertEquals(
+                    ByteBuffer.wrap("1".getBytes(StandardCharsets.US_ASCII)),
+                    dao.merge(key(5), MergeOperator.INCR, ByteBuffer.allocate(0)).getValue());
+            dao.remove(key(5));
+
+            final File snapshot = dao.checkpoint();
+            Snapshots.copy(snapshot, restored);
+            Files.recursiveDelete(snapshot);
+        }
+        try (DAO dao = engine.open(data)) {
+            dao.upsertRecord(key(6), new ExtendedRecord(randomValueBuffer(), timestamp - 1, false));
+            dao.compact();
+            assertTrue(metrics(dao).contains("dao_records_range_removed_total 1\n"));
+            assertTrue(metrics(dao).contains("dao_range_tombstones 1\n"));
+            assertEquals(timestamp, dao.getRecord(key(6)).getTimestamp());
+        }
+        try (DAO dao = engine.open(restored)) {
+            dao.upsertRecord(key(7), new ExtendedRecord(randomValueBuffer(), timestamp - 1, false));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(7)));
+        }
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%03d", i).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static List<ByteBuffer> keys(final Iterator<Record> records) {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        records.forEachRemaining(record -> keys.add(record.getKey()));
+        return keys;
+    }
+
+    @FunctionalInterface
+    private interface Engine {
+        DAO open(File data) throws IOException;
+    }
+
+    private static String metrics(final DAO dao) {
+        final StringBuilder builder = new StringBuilder();
+        dao.metrics().writeTo(builder);
+        return builder.toString();
+    }
+}
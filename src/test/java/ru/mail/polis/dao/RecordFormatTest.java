@@ -0,0 +1,131 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.utils.RocksByteBufferUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Serialization of {@link ExtendedRecord} and migration of the legacy format.
+ */
+class RecordFormatTest extends TestBase {
+    @Test
+    void roundTrip() {
+        final ByteBuffer value = randomValueBuffer();
+        for (final long timestamp : new long[]{0L, 127L, System.currentTimeMillis(), Long.MAX_VALUE, -1L}) {
+            final ExtendedRecord record = new ExtendedRecord(value, timestamp, false);
+            final byte[] bytes = record.toBytes();
+            assertEquals(record.sizeInBytes(), bytes.length);
+            assertFalse(ExtendedRecord.isLegacy(bytes));
+
+            final ExtendedRecord read = ExtendedRecord.fromBytes(bytes);
+            assertEquals(timestamp, read.getTimestamp());
+            assertFalse(read.isDeleted());
+            assertEquals(value, read.getValue());
+        }
+        final ExtendedRecord tombstone = ExtendedRecord.fromBytes(
+                new ExtendedRecord(ByteBuffer.allocate(0), 42L, true).toBytes());
+        assertTrue(tombstone.isDeleted());
+        assertEquals(42L, tombstone.getTimestamp());
+    }
+
+    @Test
+    void headerIsCompact() {
+        final ExtendedRecord record = new ExtendedRecord(ByteBuffer.allocate(0), System.currentTimeMillis(), false);
+        assertEquals(7, record.toBytes().length);
+    }
+
+    @Test
+    void framesValueInPlace() {
+        final byte[] value = randomValue();
+        final long timestamp = System.currentTimeMillis();
+        final long expiresAt = timestamp + 1000;
+        final int room = ExtendedRecord.headerSize(timestamp, expiresAt);
+        final byte[] frame = new byte[room + value.length];
+        System.arraycopy(value, 0, frame, room, value.length);
+
+        final ExtendedRecord record = ExtendedRecord.frame(frame, room, timestamp, expiresAt);
+        assertSame(frame, record.toBytes());
+        assertEquals(ByteBuffer.wrap(value), record.getValue());
+        assertEquals(frame.length, record.sizeInBytes());
+
+        final ExtendedRecord read = ExtendedRecord.fromFrame(frame);
+        assertSame(frame, read.toBytes());
+        assertEquals(timestamp, read.getTimestamp());
+        assertEquals(expiresAt, read.getExpiresAt());
+        assertEquals(ByteBuffer.wrap(value), read.getValue());
+    }
+
+    @Test
+    void copiesValueIfHeaderDoesntFit() {
+        final byte[] value = randomValue();
+        final long timestamp = System.currentTimeMillis();
+        final byte[] frame = new byte[3 + value.length];
+        System.arraycopy(value, 0, frame, 3, value.length);
+
+        final ExtendedRecord record = ExtendedRecord.frame(frame, 3, timestamp, 0);
+        assertNotSame(frame, record.toBytes());
+        assertEquals(ByteBuffer.wrap(value), record.getValue());
+        assertEquals(ByteBuffer.wrap(value), ExtendedRecord.fromFrame(record.toBytes()).getValue());
+    }
+
+    @Test
+    void rejectsBadFrames() {
+        final long timestamp = System.currentTimeMillis();
+        assertThrows(IllegalArgumentException.class, () -> ExtendedRecord.fromFrame(new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> ExtendedRecord.fromFrame(new byte[]{0x10, (byte) 0x80}));
+        assertThrows(IllegalArgumentException.class, () -> ExtendedRecord.fromFrame(
+                new ExtendedRecord(ByteBuffer.allocate(0), timestamp, true).toBytes()));
+        assertThrows(IllegalArgumentException.class, () -> ExtendedRecord.fromFrame(
+                legacy(randomValueBuffer(), timestamp, 'e')));
+    }
+
+    @Test
+    void readsLegacyFormat() {
+        final ByteBuffer value = randomValueBuffer();
+        final long timestamp = System.currentTimeMillis();
+        final byte[] legacy = legacy(value, timestamp, 'e');
+        assertTrue(ExtendedRecord.isLegacy(legacy));
+
+        final ExtendedRecord record = ExtendedRecord.fromBytes(legacy);
+        assertEquals(timestamp, record.getTimestamp());
+        assertEquals(value, record.getValue());
+        assertTrue(ExtendedRecord.fromBytes(legacy(ByteBuffer.allocate(0), timestamp, 'd')).isDeleted());
+    }
+
+    @Test
+    void migratesLegacyRecords(@TempDir File data) throws IOException, RocksDBException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final long timestamp = System.currentTimeMillis();
+        RocksDB.loadLibrary();
+        try (Options options = new Options().setCreateIfMissing(true);
+             RocksDB db = RocksDB.open(options, data.getAbsolutePath())) {
+            db.put(RocksByteBufferUtils.toUnsignedByteArray(key), legacy(value, timestamp, 'e'));
+        }
+
+        try (DAOImplementation dao = new DAOImplementation(data)) {
+            assertEquals(value, dao.get(key));
+            dao.sweep();
+            assertEquals(value, dao.get(key));
+            assertEquals(timestamp, dao.getRecord(key).getTimestamp());
+            final StringBuilder metrics = new StringBuilder();
+            dao.metrics().writeTo(metrics);
+            assertTrue(metrics.toString().contains("dao_records_migrated_total 1"));
+        }
+    }
+
+    private static byte[] legacy(final ByteBuffer value, final long timestamp, final char flag) {
+        return ByteBuffer.allocate(Character.BYTES + Long.BYTES + value.remaining())
+                .putChar(flag).putLong(timestamp).put(value.duplicate()).array();
+    }
+}
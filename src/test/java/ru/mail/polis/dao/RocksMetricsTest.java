@@ -0,0 +1,42 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * RocksDB statistics and properties in the storage metrics.
+ */
+class RocksMetricsTest extends TestBase {
+    @Test
+    void exportsEngineState(@TempDir File data) throws IOException {
+        try (DAO dao = new DAOImplementation(data)) {
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            }
+            final String before = metrics(dao);
+            assertTrue(before.contains("# TYPE rocksdb_sst_files gauge\n"));
+            assertTrue(before.contains("# TYPE rocksdb_stall_micros_total counter\n"));
+            assertTrue(before.contains("rocksdb_sst_files{level=\"0\"} 0\n"));
+            assertTrue(before.contains("rocksdb_estimated_keys 100\n"));
+            assertFalse(before.contains("rocksdb_memtable_bytes 0\n"));
+
+            dao.compact();
+            final String after = metrics(dao);
+            assertFalse(after.contains("rocksdb_sst_files{level=\"1\"} 0\n"));
+            assertTrue(after.contains("rocksdb_stall_micros_total "));
+            assertTrue(after.contains("rocksdb_block_cache_hit_ratio "));
+        }
+    }
+
+    private static String metrics(final DAO dao) {
+        final StringBuilder builder = new StringBuilder();
+        dao.metrics().writeTo(builder);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package ru.mail.polis.dao;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Bounded scans of {@link DAOImplementation} with and without prefix seek.
+ */
+class RocksRangeTest extends TestBase {
+    private static final List<String> KEYS = ImmutableList.of(
+            "aaaa1", "aaaa2", "aaaa3", "aaab1", "aaab2", "aaac1");
+
+    @AfterEach
+    void afterEach() {
+        System.clearProperty("dao.prefix.length");
+    }
+
+    @Test
+    void boundedScan(@TempDir File data) throws IOException {
+        assertScans(data);
+    }
+
+    @Test
+    void boundedPrefixScan(@TempDir File data) throws IOException {
+        System.setProperty("dao.prefix.length", "4");
+        assertScans(data);
+    }
+
+    private static void assertScans(final File data) throws IOException {
+        try (DAO dao = new DAOImplementation(data)) {
+            for (final String key : KEYS) {
+                dao.upsert(buffer(key), buffer(key));
+            }
+            dao.remove(buffer("aaaa2"));
+
+            // Within a prefix
+            assertEquals(ImmutableList.of("aaaa1", "aaaa3"), keys(dao.range(buffer("aaaa"), buffer("aaaa4"))));
+            // Across prefixes
+            assertEquals(ImmutableList.of("aaaa3", "aaab1", "aaab2"), keys(dao.range(buffer("aaaa3"), buffer("aaac1"))));
+            // Unbounded
+            assertEquals(ImmutableList.of("aaab2", "aaac1"), keys(dao.range(buffer("aaab2"), null)));
+            // Empty
+            assertEquals(ImmutableList.of(), keys(dao.range(buffer("aaab"), buffer("aaaa"))));
+        }
+    }
+
+    private static List<String> keys(final Iterator<Record> records) throws IOException {
+        final List<String> keys = Lists.newArrayList(records).stream()
+                .map(record -> Charsets.UTF_8.decode(record.getKey()).toString())
+                .collect(Collectors.toList());
+        if (records instanceof Closeable) {
+            ((Closeable) records).close();
+        }
+        return keys;
+    }
+
+    private static ByteBuffer buffer(final String value) {
+        return ByteBuffer.wrap(value.getBytes(Charsets.UTF_8));
+    }
+}
@@ -0,0 +1,62 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Storage tuning profiles.
+ */
+class StorageConfigTest extends TestBase {
+    @Test
+    void parsesProfileNames() {
+        for (final StorageConfig.Profile profile : StorageConfig.Profile.values()) {
+            assertEquals(profile, StorageConfig.Profile.of(profile.getName()));
+        }
+        assertEquals(StorageConfig.Profile.POINT_LOOKUP, StorageConfig.Profile.of("point-lookup"));
+        assertThrows(IllegalArgumentException.class, () -> StorageConfig.Profile.of("unknown"));
+    }
+
+    @Test
+    void overridesProfile() {
+        System.setProperty(StorageConfig.PROFILE_PROPERTY, "range-scan");
+        System.setProperty("dao.bloom.bits", "5");
+        try {
+            final StorageConfig config = StorageConfig.load();
+            assertEquals(StorageConfig.Profile.RANGE_SCAN, config.getProfile());
+            assertEquals(5, config.getBloomBits());
+            assertEquals(2 * 1024 * 1024, config.getReadaheadSize());
+        } finally {
+            System.clearProperty(StorageConfig.PROFILE_PROPERTY);
+            System.clearProperty("dao.bloom.bits");
+        }
+    }
+
+    @Test
+    void everyProfileKeepsData(@TempDir File data) throws IOException {
+        for (final StorageConfig.Profile profile : StorageConfig.Profile.values()) {
+            final File directory = new File(data, profile.getName());
+            assertTrue(directory.mkdir());
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            try (DAO dao = new DAOImplementation(directory, new StorageConfig(profile))) {
+                dao.upsert(key, value);
+                dao.compact();
+            }
+            try (DAO dao = new DAOImplementation(directory, new StorageConfig(profile))) {
+                assertEquals(value, dao.get(key));
+                final Iterator<Record> iterator = dao.iterator(key);
+                assertTrue(iterator.hasNext());
+                assertEquals(key, iterator.next().getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Collection of tombstones older than the grace period.
+ */
+class TombstoneTest extends TestBase {
+    private static final ExtendedRecord EXPIRED = new ExtendedRecord(ByteBuffer.allocate(0), 1L, true);
+
+    @Test
+    void collectsExpiredTombstones(@TempDir File data) throws IOException {
+        final ByteBuffer expired = randomKeyBuffer();
+        final ByteBuffer fresh = randomKeyBuffer();
+        final ByteBuffer alive = randomKeyBuffer();
+        try (DAOImplementation dao = new DAOImplementation(data)) {
+            dao.upsertRecord(expired, EXPIRED);
+            dao.upsert(fresh, randomValueBuffer());
+            dao.remove(fresh);
+            dao.upsert(alive, randomValueBuffer());
+
+            dao.sweep();
+
+            assertThrows(NoSuchElementException.class, () -> dao.getRecord(expired));
+            assertTrue(dao.getRecord(fresh).isDeleted());
+            assertFalse(dao.getRecord(alive).isDeleted());
+            assertTrue(metrics(dao).contains("dao_tombstones_collected_total 1"));
+        }
+    }
+
+    @Test
+    void dropsExpiredTombstonesOnLsmCompaction(@TempDir File data) throws IOException {
+        final ByteBuffer expired = randomKeyBuffer();
+        final ByteBuffer fresh = randomKeyBuffer();
+        try (DAO dao = new LsmDAO(data, 64 * 1024)) {
+            dao.upsertRecord(expired, EXPIRED);
+            dao.upsert(fresh, randomValueBuffer());
+            dao.remove(fresh);
+
+            dao.compact();
+
+            assertThrows(NoSuchElementException.class, () -> dao.getRecord(expired));
+            assertTrue(dao.getRecord(fresh).isDeleted());
+            assertTrue(metrics(dao).contains("dao_tombstones_collected_total 1"));
+        }
+    }
+
+    private static String metrics(final DAO dao) {
+        final StringBuilder builder = new StringBuilder();
+        dao.metrics().writeTo(builder);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Records written with a TTL.
+ */
+class TtlTest extends TestBase {
+    @Test
+    void expiryRoundTrip() {
+        final ByteBuffer value = randomValueBuffer();
+        final long timestamp = System.currentTimeMillis();
+        final ExtendedRecord record = ExtendedRecord.expiring(value, timestamp, timestamp + 60_000);
+        final byte[] bytes = record.toBytes();
+        assertEquals(record.sizeInBytes(), bytes.length);
+
+        final ExtendedRecord read = ExtendedRecord.fromBytes(bytes);
+        assertEquals(timestamp, read.getTimestamp());
+        assertEquals(timestamp + 60_000, read.getExpiresAt());
+        assertFalse(read.isDeleted());
+        assertEquals(value, read.getValue());
+
+        final ExtendedRecord expired = ExtendedRecord.fromBytes(
+                ExtendedRecord.expiring(value, timestamp, timestamp - 1).toBytes());
+        assertTrue(expired.isExpired());
+        assertTrue(expired.isDeleted());
+        assertEquals(value, expired.getValue());
+    }
+
+    @Test
+    void expiredValuesAreHidden(@TempDir File data) throws IOException {
+        final ByteBuffer expiring = randomKeyBuffer();
+        final ByteBuffer expired = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final long now = System.currentTimeMillis();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsertRecord(expired, new ExtendedRecord(randomValueBuffer(), now - 1000, false));
+            dao.upsertRecord(expiring, ExtendedRecord.expiring(value, now, now + 60_000));
+            dao.upsertRecord(expired, ExtendedRecord.expiring(value, now, now - 1));
+
+            assertEquals(value, dao.get(expiring));
+            assertThrows(NoSuchElementException.class, () -> dao.get(expired));
+            assertTrue(dao.getRecord(expired).isDeleted());
+            dao.iterator(ByteBuffer.allocate(0))
+                    .forEachRemaining(record -> assertNotEquals(expired, record.getKey()));
+        }
+    }
+
+    @Test
+    void compactionDropsExpiredValues(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        // Large enough for the value log
+        final byte[] bytes = new byte[128 * 1024];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        final long now = System.currentTimeMillis();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsertRecord(key, ExtendedRecord.expiring(ByteBuffer.wrap(bytes), now, now + 200));
+            assertEquals(ByteBuffer.wrap(bytes), dao.get(key));
+            assertEquals(now + 200, dao.getRecord(key).getExpiresAt());
+        }
+        while (System.currentTimeMillis() <= now + 200) {
+            Thread.onSpinWait();
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+            final ExtendedRecord record = dao.getRecord(key);
+            assertTrue(record.isDeleted());
+            assertFalse(record.isExpired());
+            assertEquals(now, record.getTimestamp());
+            assertTrue(metrics(dao).contains("dao_records_expired_total 1\n"));
+        }
+    }
+
+    private static String metrics(final DAO dao) {
+        final StringBuilder builder = new StringBuilder();
+        dao.metrics().writeTo(builder);
+        return builder.toString();
+    }
+}
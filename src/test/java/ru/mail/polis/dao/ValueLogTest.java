@@ -0,0 +1,89 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Values stored in {@link ValueLog} instead of the storage itself.
+ */
+class ValueLogTest extends TestBase {
+    private static final String THRESHOLD_PROPERTY = "dao.vlog.threshold";
+
+    @BeforeEach
+    void beforeEach() {
+        // Every random value goes to the value log
+        System.setProperty(THRESHOLD_PROPERTY, "1");
+    }
+
+    @AfterEach
+    void afterEach() {
+        System.clearProperty(THRESHOLD_PROPERTY);
+    }
+
+    @Test
+    void rocksStoresPointers(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = new DAOImplementation(data)) {
+            dao.upsert(key, value);
+            assertStored(dao, key, value);
+        }
+        try (DAO dao = new DAOImplementation(data)) {
+            assertStored(dao, key, value);
+        }
+        assertTrue(new File(data, ValueLog.DIRECTORY).list().length > 0);
+    }
+
+    @Test
+    void lsmCompactsPointers(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = new LsmDAO(data, 64 * 1024)) {
+            dao.upsert(key, value);
+            for (int i = 0; i < 200; i++) {
+                dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            }
+            dao.compact();
+            assertStored(dao, key, value);
+        }
+        try (DAO dao = new LsmDAO(data, 64 * 1024)) {
+            assertStored(dao, key, value);
+        }
+    }
+
+    @Test
+    void keepsResolvedValuesReadable(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = new LsmDAO(data, 64 * 1024)) {
+            dao.upsert(key, value);
+            // Resolved, but not read yet, as a response waiting to be sent
+            final ExtendedRecord record = dao.getRecord(key);
+            for (int i = 0; i < 3; i++) {
+                dao.upsert(randomKeyBuffer(), randomValueBuffer());
+                dao.compact();
+            }
+            assertEquals(value, record.getValue());
+        }
+    }
+
+    private static void assertStored(final DAO dao, final ByteBuffer key, final ByteBuffer value) throws IOException {
+        assertEquals(value, dao.get(key));
+        final ExtendedRecord record = dao.getRecord(key);
+        assertNotNull(record.getValueRegion());
+        assertEquals(value.remaining(), record.getValueRegion().getLength());
+        final Iterator<Record> iterator = dao.range(key, null);
+        assertEquals(Record.of(key, value), iterator.next());
+    }
+}
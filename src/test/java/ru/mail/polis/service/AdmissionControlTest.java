@@ -0,0 +1,159 @@
+package ru.mail.polis.service;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.utils.Metrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load shedding of {@link AdmissionControl}.
+ */
+class AdmissionControlTest {
+    @Test
+    void reservesBudgetForInternode() {
+        final Metrics metrics = new Metrics();
+        final AdmissionControl admission = new AdmissionControl(load("4", "2", "1000"), metrics);
+        final ThreadPoolExecutor executor = config().newExecutor(ServerConfig.Pool.CLIENT);
+        try {
+            assertTrue(admission.tryAcquire(ServerConfig.Pool.CLIENT, executor));
+            assertTrue(admission.tryAcquire(ServerConfig.Pool.STREAM, executor));
+            assertFalse(admission.tryAcquire(ServerConfig.Pool.CLIENT, executor));
+            assertTrue(admission.tryAcquire(ServerConfig.Pool.INTERNODE, executor));
+            assertTrue(admission.tryAcquire(ServerConfig.Pool.INTERNODE, executor));
+            assertFalse(admission.tryAcquire(ServerConfig.Pool.INTERNODE, executor));
+
+            admission.release();
+            admission.release();
+            admission.release();
+            assertEquals(1, admission.getInFlight());
+            assertTrue(admission.tryAcquire(ServerConfig.Pool.CLIENT, executor));
+            assertEquals(2, admission.getInFlight());
+            assertTrue(text(metrics).contains("http_shed_total{reason=\"budget\"} 2\n"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void dropsExpiredRequests() throws InterruptedException {
+        final Metrics metrics = new Metrics();
+        final AdmissionControl admission = new AdmissionControl(load("16", "4", "50"), metrics);
+        final ThreadPoolExecutor executor = config().newExecutor(ServerConfig.Pool.STREAM);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        try {
+            // Single stream thread is busy, so the next request waits in the queue
+            executor.execute(() -> awaitQuietly(blocked));
+            assertTrue(admission.tryAcquire(ServerConfig.Pool.STREAM, executor));
+            final AtomicBoolean handled = new AtomicBoolean();
+            final CountDownLatch expired = new CountDownLatch(1);
+            executor.execute(admission.task(
+                    ServerConfig.Pool.STREAM,
+                    () -> handled.set(true),
+                    () -> {
+                        admission.release();
+                        expired.countDown();
+                    }));
+            Thread.sleep(100);
+
+            // The head of the queue is overdue, so the node is too slow for the new requests
+            assertFalse(admission.tryAcquire(ServerConfig.Pool.STREAM, executor));
+            blocked.countDown();
+            assertTrue(expired.await(1, TimeUnit.SECONDS));
+            assertFalse(handled.get());
+            assertEquals(0, admission.getInFlight());
+            final String text = text(metrics);
+            assertTrue(text.contains("http_shed_total{reason=\"queue\"} 1\n"));
+            assertTrue(text.contains("http_shed_total{reason=\"deadline\"} 1\n"));
+        } finally {
+            blocked.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void releasesClosedStream() throws IOException {
+        final AdmissionControl admission = admission("4", "0", "1000");
+        final ThreadPoolExecutor executor = config().newExecutor(ServerConfig.Pool.STREAM);
+        try {
+            assertTrue(admission.tryAcquire(ServerConfig.Pool.STREAM, executor));
+            final AtomicBoolean closed = new AtomicBoolean();
+            final Iterator<Integer> iterator = admission.releasing(new ClosingIterator(closed));
+            assertEquals(1, iterator.next());
+            assertEquals(1, admission.getInFlight());
+            ((Closeable) iterator).close();
+            ((Closeable) iterator).close();
+            assertTrue(closed.get());
+            assertEquals(0, admission.getInFlight());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static AdmissionControl admission(final String max, final String reserve, final String deadline) {
+        return new AdmissionControl(load(max, reserve, deadline), new Metrics());
+    }
+
+    private static ServerConfig config() {
+        return ServerConfig.forCores(1);
+    }
+
+    private static ServerConfig load(final String max, final String reserve, final String deadline) {
+        System.setProperty("http.inflight.max", max);
+        System.setProperty("http.inflight.reserve", reserve);
+        System.setProperty("http.deadline.client", deadline);
+        try {
+            return ServerConfig.load();
+        } finally {
+            System.clearProperty("http.inflight.max");
+            System.clearProperty("http.inflight.reserve");
+            System.clearProperty("http.deadline.client");
+        }
+    }
+
+    private static String text(final Metrics metrics) {
+        final StringBuilder builder = new StringBuilder();
+        metrics.writeTo(builder);
+        return builder.toString();
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class ClosingIterator implements Iterator<Integer>, Closeable {
+        private final Iterator<Integer> values = List.of(1, 2).iterator();
+        private final AtomicBoolean closed;
+
+        ClosingIterator(final AtomicBoolean closed) {
+            this.closed = closed;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return values.hasNext();
+        }
+
+        @Override
+        public Integer next() {
+            return values.next();
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package ru.mail.polis.service;
+
+import com.google.common.base.Charsets;
+import one.nio.http.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.dao.ExtendedRecord;
+import ru.mail.polis.dao.RecordFeed;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Batch GET, batch write and bulk ingestion tests for a two node replicated {@link Service} cluster.
+ */
+class BatchTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private File data0;
+    private File data1;
+    private DAO dao0;
+    private DAO dao1;
+    private Service storage0;
+    private Service storage1;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int port0 = randomPort();
+        final int port1 = randomPort();
+        endpoints = new LinkedHashSet<>(Arrays.asList(endpoint(port0), endpoint(port1)));
+        data0 = Files.createTempDirectory();
+        dao0 = DAOFactory.create(data0);
+        storage0 = ServiceFactory.create(port0, dao0, endpoints);
+        start(0, storage0);
+        data1 = Files.createTempDirectory();
+        dao1 = DAOFactory.create(data1);
+        storage1 = ServiceFactory.create(port1, dao1, endpoints);
+        start(1, storage1);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        stop(0, storage0);
+        dao0.close();
+        Files.recursiveDelete(data0);
+        stop(1, storage1);
+        dao1.close();
+        Files.recursiveDelete(data1);
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void getsExistingAndAbsent() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String existing = randomId();
+            final String removed = randomId();
+            final String absent = randomId();
+            final byte[] value = randomValue();
+            for (final DAO dao : Arrays.asList(dao0, dao1)) {
+                dao.upsert(key(existing), ByteBuffer.wrap(value));
+                dao.upsert(key(removed), ByteBuffer.wrap(randomValue()));
+            }
+            // Explicitly newer than the upserts above, which may share the same millisecond
+            dao1.upsertRecord(key(removed),
+                    new ExtendedRecord(ByteBuffer.allocate(0), System.currentTimeMillis() + 1, true));
+
+            final byte[] ids = String.join("\n", existing, removed, absent).getBytes(Charsets.UTF_8);
+            for (int node = 0; node < 2; node++) {
+                final Response response = batchWithRetry(node, ids);
+                assertEquals(200, response.getStatus());
+                final ByteBuffer body = ByteBuffer.wrap(response.getBody());
+                assertEquals(value.length, body.getInt());
+                final byte[] actual = new byte[value.length];
+                body.get(actual);
+                assertArrayEquals(value, actual);
+                assertEquals(-1, body.getInt());
+                assertEquals(-1, body.getInt());
+                assertFalse(body.hasRemaining());
+            }
+        });
+    }
+
+    private Response batchWithRetry(final int node, final byte[] ids) throws Exception {
+        // The very first internode request of a cold JVM may exceed the replica timeout
+        Response response = batch(node, ids, 2, 2);
+        for (int attempt = 0; attempt < 3 && response.getStatus() == 504; attempt++) {
+            response = batch(node, ids, 2, 2);
+        }
+        return response;
+    }
+
+    private static ByteBuffer key(final String id) {
+        return ByteBuffer.wrap(id.getBytes(Charsets.UTF_8));
+    }
+
+    @Test
+    void ingestsFeed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final TreeMap<String, byte[]> entries = new TreeMap<>();
+            for (int i = 0; i < 100; i++) {
+                entries.put(randomId(), randomValue());
+            }
+            final long timestamp = System.currentTimeMillis();
+            final ByteArrayOutputStream feed = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(feed);
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                RecordFeed.write(
+                        key(entry.getKey()),
+                        new ExtendedRecord(ByteBuffer.wrap(entry.getValue()), timestamp, false),
+                        out);
+            }
+            assertEquals(201, ingest(0, feed.toByteArray(), 2, 2).getStatus());
+
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                for (final DAO dao : Arrays.asList(dao0, dao1)) {
+                    final ExtendedRecord record = dao.getRecord(key(entry.getKey()));
+                    assertEquals(timestamp, record.getTimestamp());
+                    assertEquals(ByteBuffer.wrap(entry.getValue()), record.getValue());
+                }
+            }
+        });
+    }
+
+    @Test
+    void rejectsUnsortedFeed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final ByteArrayOutputStream feed = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(feed);
+            final ExtendedRecord record = new ExtendedRecord(ByteBuffer.wrap(randomValue()), 1L, false);
+            RecordFeed.write(key("b"), record, out);
+            RecordFeed.write(key("a"), record, out);
+            assertEquals(400, ingest(0, feed.toByteArray(), 1, 2).getStatus());
+        });
+    }
+
+    @Test
+    void writesBatch() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String removed = randomId();
+            for (final DAO dao : Arrays.asList(dao0, dao1)) {
+                dao.upsert(key(removed), ByteBuffer.wrap(randomValue()));
+            }
+            final TreeMap<String, byte[]> entries = new TreeMap<>();
+            for (int i = 0; i < 100; i++) {
+                entries.put(randomId(), randomValue());
+            }
+            final ByteArrayOutputStream writes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(writes);
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                writeEntry(out, entry.getKey(), entry.getValue());
+            }
+            writeEntry(out, removed, null);
+
+            final Response response = writeBatchWithRetry(0, writes.toByteArray(), 2, 2);
+            assertEquals(200, response.getStatus());
+            final ByteBuffer statuses = ByteBuffer.wrap(response.getBody());
+            for (int i = 0; i < entries.size(); i++) {
+                assertEquals(201, statuses.getShort());
+            }
+            assertEquals(202, statuses.getShort());
+            assertFalse(statuses.hasRemaining());
+
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                final ExtendedRecord record = dao0.getRecord(key(entry.getKey()));
+                assertEquals(ByteBuffer.wrap(entry.getValue()), record.getValue());
+                // Replicas store the timestamp of the coordinator
+                assertEquals(record.getTimestamp(), dao1.getRecord(key(entry.getKey())).getTimestamp());
+                assertEquals(ByteBuffer.wrap(entry.getValue()), dao1.getRecord(key(entry.getKey())).getValue());
+            }
+            for (final DAO dao : Arrays.asList(dao0, dao1)) {
+                assertTrue(dao.getRecord(key(removed)).isDeleted());
+            }
+        });
+    }
+
+    @Test
+    void reportsMissedReplicas() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final ByteArrayOutputStream writes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(writes);
+            final String id = randomId();
+            writeEntry(out, id, randomValue());
+            writeEntry(out, randomId(), null);
+            stop(1, storage1);
+
+            final ByteBuffer missed = ByteBuffer.wrap(writeBatch(0, writes.toByteArray(), 2, 2).getBody());
+            assertEquals(504, missed.getShort());
+            assertEquals(504, missed.getShort());
+            final ByteBuffer stored = ByteBuffer.wrap(writeBatch(0, writes.toByteArray(), 1, 2).getBody());
+            assertEquals(201, stored.getShort());
+            assertEquals(202, stored.getShort());
+            assertNotNull(dao0.getRecord(key(id)));
+        });
+    }
+
+    @Test
+    void rejectsBrokenBatch() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final ByteArrayOutputStream writes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(writes);
+            writeEntry(out, randomId(), randomValue());
+            final byte[] batch = writes.toByteArray();
+            assertEquals(400, writeBatch(0, Arrays.copyOf(batch, batch.length - 1), 1, 2).getStatus());
+            writeEntry(out, "", randomValue());
+            assertEquals(400, writeBatch(0, writes.toByteArray(), 1, 2).getStatus());
+            assertEquals(400, writeBatch(0, batch, 0, 2).getStatus());
+            assertEquals(200, writeBatch(0, new byte[0], 1, 2).getStatus());
+        });
+    }
+
+    private Response writeBatchWithRetry(final int node,
+                                         final byte[] writes,
+                                         final int ack,
+                                         final int from) throws Exception {
+        // The very first internode request of a cold JVM may exceed the replica timeout
+        Response response = writeBatch(node, writes, ack, from);
+        for (int attempt = 0; attempt < 3 && ByteBuffer.wrap(response.getBody()).getShort() == 504; attempt++) {
+            response = writeBatch(node, writes, ack, from);
+        }
+        return response;
+    }
+
+    private static void writeEntry(final DataOutputStream out, final String id, final byte[] value) throws IOException {
+        final byte[] key = id.getBytes(Charsets.UTF_8);
+        out.writeInt(key.length);
+        out.write(key);
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    @Test
+    void tooSmallRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final byte[] ids = randomId().getBytes(Charsets.UTF_8);
+            assertEquals(400, batch(0, ids, 0, 2).getStatus());
+        });
+    }
+}
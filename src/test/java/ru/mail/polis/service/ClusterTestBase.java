@@ -39,7 +39,7 @@ abstract class ClusterTestBase extends TestBase {
     Set<String> endpoints;
 
     @NotNull
-    private HttpClient client(final int node) {
+    HttpClient client(final int node) {
         final String endpoint = Iterators.get(endpoints.iterator(), node);
         return hostToClient.computeIfAbsent(
                 endpoint,
@@ -131,4 +131,65 @@ abstract class ClusterTestBase extends TestBase {
             final int from) throws Exception {
         return client(node).put(path(key, ack, from), data);
     }
+
+    Response upsert(
+            final int node,
+            @NotNull final String key,
+            @NotNull final byte[] data,
+            final int ack,
+            final int from,
+            final long ttlSeconds) throws Exception {
+        return client(node).put(path(key, ack, from) + "&ttl=" + ttlSeconds, data);
+    }
+
+    Response merge(
+            final int node,
+            @NotNull final String key,
+            @NotNull final String op,
+            @NotNull final byte[] operand,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post(path(key, ack, from) + "&op=" + op, operand);
+    }
+
+    Response removeRange(
+            final int node,
+            @NotNull final String start,
+            @NotNull final String end) throws Exception {
+        return client(node).delete("/v0/entities?start=" + start + "&end=" + end);
+    }
+
+    Response upsert(
+            final int node,
+            @NotNull final String key,
+            @NotNull final byte[] data,
+            final int ack,
+            final int from,
+            @NotNull final String durability) throws Exception {
+        return client(node).put(path(key, ack, from) + "&durability=" + durability, data);
+    }
+
+    Response batch(
+            final int node,
+            @NotNull final byte[] ids,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post("/v0/entities/batch?replicas=" + ack + "/" + from, ids);
+    }
+
+    Response writeBatch(
+            final int node,
+            @NotNull final byte[] writes,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post("/v0/batch?replicas=" + ack + "/" + from, writes);
+    }
+
+    Response ingest(
+            final int node,
+            @NotNull final byte[] feed,
+            final int ack,
+            final int from) throws Exception {
+        return client(node).post("/v0/entities/ingest?replicas=" + ack + "/" + from, feed);
+    }
 }
@@ -0,0 +1,74 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Threads and socket settings of {@link CustomServer}.
+ */
+class ServerConfigTest extends TestBase {
+    @Test
+    void sizesForCores() {
+        final ServerConfig config = ServerConfig.forCores(8);
+        assertEquals(8, config.getSelectors());
+        assertEquals(8, config.getThreads(ServerConfig.Pool.CLIENT));
+        assertEquals(8, config.getThreads(ServerConfig.Pool.INTERNODE));
+        assertEquals(4, config.getThreads(ServerConfig.Pool.STREAM));
+        assertEquals(1, ServerConfig.forCores(1).getThreads(ServerConfig.Pool.STREAM));
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.forCores(0));
+    }
+
+    @Test
+    void overridesDefaults() {
+        System.setProperty("http.cores", "2");
+        System.setProperty("http.internode.threads", "3");
+        System.setProperty("http.stream.queue", "5");
+        try {
+            final ServerConfig config = ServerConfig.load();
+            assertEquals(2, config.getCores());
+            assertEquals(2, config.getSelectors());
+            assertEquals(2, config.getThreads(ServerConfig.Pool.CLIENT));
+            assertEquals(3, config.getThreads(ServerConfig.Pool.INTERNODE));
+            assertEquals(5, config.getQueueSize(ServerConfig.Pool.STREAM));
+        } finally {
+            System.clearProperty("http.cores");
+            System.clearProperty("http.internode.threads");
+            System.clearProperty("http.stream.queue");
+        }
+    }
+
+    @Test
+    void servesWithSingleCore(@TempDir File data) throws Exception {
+        final int port = randomPort();
+        final String endpoint = endpoint(port);
+        try (DAO dao = DAOFactory.create(data)) {
+            final CustomServer server = new CustomServer(
+                    port, dao, new Topology(endpoint, Collections.singleton(endpoint)), ServerConfig.forCores(1));
+            server.start();
+            final HttpClient client = new HttpClient(new ConnectionString(endpoint + "?timeout=1000"));
+            try {
+                final String id = randomId();
+                final byte[] value = randomValue();
+                assertEquals(201, client.put("/v0/entity?id=" + id, value).getStatus());
+                assertArrayEquals(value, client.get("/v0/entity?id=" + id).getBody());
+                assertEquals(200, client.get("/v0/entities?start=" + id).getStatus());
+                final String metrics = client.get("/v0/metrics").getBodyUtf8();
+                assertTrue(metrics.contains("http_rejected_total{pool=\"client\"} 0\n"));
+                assertTrue(metrics.contains("http_queue_size{pool=\"stream\"} 0\n"));
+            } finally {
+                client.close();
+                server.stop();
+            }
+        }
+    }
+}
@@ -32,6 +32,7 @@ import java.io.File;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -152,6 +153,24 @@ class SingleNodeTest extends TestBase {
         });
     }
 
+    @Test
+    void insertLarge() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            // Above the value log threshold and the default one-nio request body limit
+            final byte[] value = new byte[512 * 1024];
+            ThreadLocalRandom.current().nextBytes(value);
+
+            // Insert
+            assertEquals(201, upsert(key, value).getStatus());
+
+            // Check
+            final Response response = get(key);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+        });
+    }
+
     @Test
     void insertEmpty() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
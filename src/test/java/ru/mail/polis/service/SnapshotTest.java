@@ -0,0 +1,68 @@
+package ru.mail.polis.service;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.dao.Snapshots;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Bootstrap of a node from a snapshot streamed by a running node.
+ */
+class SnapshotTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+
+    @Test
+    void bootstrapsFromPeer() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final int port = randomPort();
+            final File data = Files.createTempDirectory();
+            final File restored = Files.createTempDirectory();
+            final Map<ByteBuffer, ByteBuffer> entries = new HashMap<>();
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 100; i++) {
+                    final ByteBuffer key = randomKeyBuffer();
+                    final ByteBuffer value = randomValueBuffer();
+                    dao.upsert(key, value);
+                    entries.put(key, value);
+                }
+                // Large enough for the value log
+                final ByteBuffer large = randomKeyBuffer();
+                final byte[] bytes = new byte[128 * 1024];
+                ThreadLocalRandom.current().nextBytes(bytes);
+                final ByteBuffer value = ByteBuffer.wrap(bytes);
+                dao.upsert(large, value);
+                entries.put(large, value);
+
+                final Service storage = ServiceFactory.create(port, dao, Collections.singleton(endpoint(port)));
+                storage.start();
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+                    Snapshots.fetch(endpoint(port), restored);
+                } finally {
+                    storage.stop();
+                }
+            }
+            try (DAO dao = DAOFactory.create(restored)) {
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : entries.entrySet()) {
+                    assertEquals(entry.getValue(), dao.get(entry.getKey()));
+                }
+            } finally {
+                Files.recursiveDelete(data);
+                Files.recursiveDelete(restored);
+            }
+        });
+    }
+}
@@ -0,0 +1,51 @@
+package ru.mail.polis.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Placement of the keys by {@link Topology}.
+ */
+class TopologyTest extends TestBase {
+    private static final Set<String> NODES = new LinkedHashSet<>(List.of(
+            "http://localhost:8082", "http://localhost:8080", "http://localhost:8081"));
+    private static final List<String> SORTED = List.of(
+            "http://localhost:8080", "http://localhost:8081", "http://localhost:8082");
+
+    @Test
+    void keepsPlacement() {
+        final Topology topology = new Topology("http://localhost:8080", NODES);
+        for (int i = 0; i < 1000; i++) {
+            final String id = randomId();
+            // Equal parts of the SHA-256 hash space are assigned to the sorted nodes in turn
+            final int hash = Hashing.sha256().hashBytes(id.getBytes(Charsets.UTF_8)).asInt();
+            final int owner = (int) (((long) hash - Integer.MIN_VALUE) / (1 << 22)) % SORTED.size();
+            final List<String> pool = topology.selectNodePool(id, 2);
+            assertEquals(List.of(SORTED.get(owner), SORTED.get((owner + 1) % SORTED.size())), pool);
+            assertEquals(SORTED.get(owner), topology.getNode(ByteBuffer.wrap(id.getBytes(Charsets.UTF_8))));
+        }
+    }
+
+    @Test
+    void sharesPools() {
+        final Topology topology = new Topology("http://localhost:8080", NODES);
+        final String id = randomId();
+        final ByteBuffer key = ByteBuffer.wrap(id.getBytes(Charsets.UTF_8));
+        final List<String> pool = topology.selectNodePool(key, 3);
+        assertSame(pool, topology.selectNodePool(id, 3));
+        assertEquals(0, key.position());
+        assertEquals(3, topology.size());
+        assertTrue(topology.selectNodePool(key, 0).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> topology.selectNodePool(key, 4));
+        assertThrows(UnsupportedOperationException.class, () -> pool.add("http://localhost:8083"));
+    }
+}
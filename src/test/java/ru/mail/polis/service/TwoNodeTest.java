@@ -26,6 +26,7 @@ import ru.mail.polis.dao.DAOFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
@@ -94,6 +95,18 @@ class TwoNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void malformedRF() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            for (final String replicas : new String[]{"1", "/2", "1/", "a/2", "1/2/2", "-1/2", "00001/2"}) {
+                final String path = "/v0/entity?id=" + randomId() + "&replicas=" + replicas;
+                assertEquals(400, client(0).get(path).getStatus(), replicas);
+                assertEquals(400, client(0).put(path, randomValue()).getStatus(), replicas);
+            }
+            assertEquals(404, client(0).get("/v0/entity?id=" + randomId() + "&replicas=01/2").getStatus());
+        });
+    }
+
     @Test
     void unreachableRF() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -210,6 +223,187 @@ class TwoNodeTest extends ClusterTestBase {
         });
     }
 
+    @Test
+    void deleteOfCoordinatorTime() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(0, key, value, 2, 2).getStatus());
+
+            // A replica stores the tombstone of the coordinator, not of its own clock
+            final Response stale = client(1).delete("/v0/entity?id=" + key + "&timestamp=1", "X-Service-Request: true");
+            assertEquals(202, stale.getStatus());
+            final Response response = get(0, key, 2, 2);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            assertEquals(400, client(1).delete("/v0/entity?id=" + key, "X-Service-Request: true").getStatus());
+        });
+    }
+
+    @Test
+    void missedExpiringUpsert() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+
+            // Insert
+            assertEquals(201, upsert(0, key, randomValue(), 2, 2).getStatus());
+
+            // Stop node 0
+            stop(0, storage0);
+
+            // Help implementors with second precision for conflict resolution
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+
+            // Overwrite with TTL
+            final byte[] value = randomValue();
+            assertEquals(201, upsert(1, key, value, 1, 2, 1).getStatus());
+            final Response alive = get(1, key, 1, 2);
+            assertEquals(200, alive.getStatus());
+            assertArrayEquals(value, alive.getBody());
+
+            // Start node 0
+            storage0 = ServiceFactory.create(port0, dao0, endpoints);
+            start(0, storage0);
+
+            // The expired value hides the older one
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            assertEquals(404, get(0, key, 2, 2).getStatus());
+        });
+    }
+
+    @Test
+    void badTtl() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(400, upsert(0, randomId(), randomValue(), 1, 2, -1).getStatus());
+            assertEquals(400, upsert(0, randomId(), randomValue(), 1, 2, Long.MAX_VALUE).getStatus());
+        });
+    }
+
+    @Test
+    void mergeReplicas() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String counter = randomId();
+            assertEquals(200, merge(0, counter, "incr", new byte[0], 2, 2).getStatus());
+            final Response incremented = merge(1, counter, "incr", "41".getBytes(StandardCharsets.US_ASCII), 2, 2);
+            assertEquals(200, incremented.getStatus());
+            assertArrayEquals("42".getBytes(StandardCharsets.US_ASCII), incremented.getBody());
+            assertArrayEquals("42".getBytes(StandardCharsets.US_ASCII), get(0, counter, 1, 1).getBody());
+            assertArrayEquals("42".getBytes(StandardCharsets.US_ASCII), get(1, counter, 1, 1).getBody());
+
+            final String key = randomId();
+            final byte[] value = randomValue();
+            final byte[] suffix = randomValue();
+            assertEquals(201, upsert(0, key, value, 2, 2).getStatus());
+            assertEquals(201, merge(1, key, "append", suffix, 2, 2).getStatus());
+            final byte[] appended = Arrays.copyOf(value, value.length + suffix.length);
+            System.arraycopy(suffix, 0, appended, value.length, suffix.length);
+            assertArrayEquals(appended, get(0, key, 2, 2).getBody());
+
+            // The value isn't a number
+            assertEquals(409, merge(0, key, "incr", new byte[0], 2, 2).getStatus());
+        });
+    }
+
+    @Test
+    void missedMerges() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Node 0 isn't the owner of the counter, so it can miss the merges
+            final Topology topology = new Topology(endpoint(port0), endpoints);
+            String counter = randomId();
+            while (!topology.selectNodePool(counter, 2).get(0).equals(endpoint(port1))) {
+                counter = randomId();
+            }
+            assertEquals(200, merge(0, counter, "incr", new byte[0], 2, 2).getStatus());
+
+            // Stop node 0
+            stop(0, storage0);
+
+            for (int i = 0; i < 4; i++) {
+                assertEquals(200, merge(1, counter, "incr", new byte[0], 1, 2).getStatus());
+            }
+
+            // Start node 0
+            storage0 = ServiceFactory.create(port0, dao0, endpoints);
+            start(0, storage0);
+
+            // The merged value of the owner is stored by node 0 instead of its own older one
+            final Response incremented = merge(0, counter, "incr", new byte[0], 2, 2);
+            assertEquals(200, incremented.getStatus());
+            assertArrayEquals("6".getBytes(StandardCharsets.US_ASCII), incremented.getBody());
+            assertArrayEquals("6".getBytes(StandardCharsets.US_ASCII), get(0, counter, 1, 1).getBody());
+            assertArrayEquals("6".getBytes(StandardCharsets.US_ASCII), get(1, counter, 2, 2).getBody());
+        });
+    }
+
+    @Test
+    void badMerge() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(400, merge(0, randomId(), "multiply", new byte[0], 1, 2).getStatus());
+            assertEquals(400, merge(0, randomId(), "incr", randomValue(), 1, 2).getStatus());
+        });
+    }
+
+    @Test
+    void removeRange() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String prefix = randomId();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(201, upsert(0, prefix + i, randomValue(), 2, 2).getStatus());
+            }
+
+            assertEquals(202, removeRange(1, prefix + 2, prefix + 5).getStatus());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i >= 2 && i < 5 ? 404 : 200, get(0, prefix + i, 2, 2).getStatus());
+            }
+
+            // A later write wins
+            assertEquals(201, upsert(1, prefix + 3, randomValue(), 2, 2).getStatus());
+            assertEquals(200, get(0, prefix + 3, 2, 2).getStatus());
+        });
+    }
+
+    @Test
+    void missedRemoveRange() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String prefix = randomId();
+            for (int i = 0; i < 5; i++) {
+                assertEquals(201, upsert(0, prefix + i, randomValue(), 2, 2).getStatus());
+            }
+
+            // Stop node 1
+            stop(1, storage1);
+
+            // Help implementors with second precision for conflict resolution
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+
+            // Not all the nodes remove the range
+            assertEquals(504, removeRange(0, prefix, prefix + 9).getStatus());
+
+            // Start node 1
+            storage1 = ServiceFactory.create(port1, dao1, endpoints);
+            start(1, storage1);
+
+            // The removal hides the values node 1 still has
+            for (int i = 0; i < 5; i++) {
+                assertEquals(404, get(1, prefix + i, 2, 2).getStatus());
+            }
+        });
+    }
+
+    @Test
+    void durability() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            for (final String durability : new String[]{"none", "async", "sync"}) {
+                final String key = randomId();
+                final byte[] value = randomValue();
+                assertEquals(201, upsert(0, key, value, 2, 2, durability).getStatus());
+                assertArrayEquals(value, get(1, key, 2, 2).getBody());
+            }
+            assertEquals(400, upsert(0, randomId(), randomValue(), 2, 2, "fsync").getStatus());
+        });
+    }
+
     @Test
     void respectRF() {
         assertTimeoutPreemptively(TIMEOUT, () -> {